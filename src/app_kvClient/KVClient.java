@@ -202,6 +202,44 @@ public class KVClient implements IKVClient {
 						"Invalid number of parameters. Usage: subscribe <key>");
 				}
 				break;
+			case "writeConcern":
+				if (tokens.length == 2) {
+					if (kvStore != null && kvStore.connected) {
+						try {
+							kvStore.setWriteConcern(Integer.parseInt(tokens[1]));
+							System.out.println(PROMPT +
+								"Write concern changed to " + tokens[1]);
+						} catch (NumberFormatException nfe) {
+							System.out.println("Write concern must be a number.");
+						} catch (Exception e) {
+							logger.error("Unable to set write concern " + tokens[1]);
+						}
+					} else {
+						System.out.println("Not connected to a server.");
+					}
+				} else {
+					System.out.println(
+						"Invalid number of parameters. Usage: writeConcern <1|2|3>");
+				}
+				break;
+			case "readQuorum":
+				if (tokens.length == 2) {
+					if (kvStore != null && kvStore.connected) {
+						try {
+							kvStore.setReadQuorum(Integer.parseInt(tokens[1]));
+							System.out.println(PROMPT +
+								"Read quorum changed to " + tokens[1]);
+						} catch (NumberFormatException nfe) {
+							System.out.println("Read quorum must be a number.");
+						}
+					} else {
+						System.out.println("Not connected to a server.");
+					}
+				} else {
+					System.out.println(
+						"Invalid number of parameters. Usage: readQuorum <1|2|3>");
+				}
+				break;
 			case "disconnect":
 				if (kvStore != null) {
 					kvStore.disconnect();
@@ -252,6 +290,10 @@ public class KVClient implements IKVClient {
 		sb.append("\t sends a subscribe request to the storage server \n");
 		sb.append(PROMPT).append("unsubscribe <key>");
 		sb.append("\t sends an unsubscribe request to the storage server \n");
+		sb.append(PROMPT).append("writeConcern <1|2|3>");
+		sb.append("\t acknowledge puts after coordinator, one replica, or all replicas \n");
+		sb.append(PROMPT).append("readQuorum <1|2|3>");
+		sb.append("\t return gets once this many servers answered, repairing stale ones \n");
 		
 		sb.append(PROMPT).append("logLevel");
 		sb.append("\t\t changes the logLevel \n");
@@ -4,7 +4,14 @@ import java.util.Map;
 import java.util.List;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -47,12 +54,75 @@ public class ECSClient implements IECSClient {
     private String address;
     private int port;
 
+    private int replicationFactor = 3;
+    private String replicationMode = "star";
+
+    // ring epoch, incremented with every metadata broadcast; starts at
+    // the clock so epochs keep increasing across ECS restarts
+    private volatile long ringEpoch = System.currentTimeMillis();
+
+    // metadata entry of every node as last broadcast, and the epoch
+    // each node was last sent, to send nodes only what changed
+    private Map<String, String> broadcastEntries = new HashMap<String, String>();
+    private Map<String, Long> nodeEpochs = new HashMap<String, Long>();
+
+    // how long a broadcast waits for every node to acknowledge
+    private static final int METADATA_ACK_TIMEOUT = 5000;
+
+    // highest ring epoch each node has acknowledged; guarded by itself
+    private final Map<String, Long> ackedEpochs = new HashMap<String, Long>();
+
+    private final ExecutorService broadcastExecutor =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metadata-broadcast");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // changed under w, but read without locks by the heartbeat
+    // threads so failures are found while w is held
     private Map<String, IECSNode> nodes;
     private List<BigInteger> nodePositions;
+
+    // number of tokens every new server is placed at on the ring
+    private int virtualNodes = 1;
+
+    // token name at every ring position, position and range of every
+    // token; tokens are placed at the hash of their name unless they
+    // were added to split a hot range
+    private Map<BigInteger, String> tokenAt = new HashMap<BigInteger, String>();
+    private Map<String, BigInteger> tokenPositions = new HashMap<String, BigInteger>();
+    private Map<String, String[]> tokenRanges = new HashMap<String, String[]>();
+
+    // load a token's range was last reported with, as
+    // {requests per second, keys}; guarded by itself
+    private final Map<String, long[]> tokenLoads = new HashMap<String, long[]>();
+
+    // a range is split once it has this many times the mean load
+    private static final double HOT_RANGE_FACTOR = 2.0;
+    // and at least this load, so idle clusters are left alone
+    private static final long MIN_HOT_RATE = 10;
+    private static final long MIN_HOT_KEYS = 100;
     private Stack<ECSNode> availableServers;
 
+    private final RebalancePlanner rebalancePlanner = new RebalancePlanner();
+
+    // servers connecting within this window join the ring together
+    private static final long JOIN_WINDOW = 200;
+    private boolean joinScheduled = false;
+
+    // phi above which a node is taken to have failed
+    private volatile double phiThreshold = 8.0;
+
+    private volatile boolean running = true;
+
     private ECSServerSocket ecsServerSocket;
     private ECSHeartbeatHandler heartbeatHandler;
+    private ECSHeartbeatReceiver heartbeatReceiver;
+    private ECSLoadBalancer loadBalancer;
+    private Thread loadBalancerThread;
 
     private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
     private final Lock r = rwl.readLock();
@@ -64,22 +134,121 @@ public class ECSClient implements IECSClient {
         this.address = address;
         this.port = port;
 
-        nodes = new HashMap<String, IECSNode>();
+        nodes = new ConcurrentHashMap<String, IECSNode>();
         nodePositions = new ArrayList<BigInteger>();
         availableServers = new Stack<ECSNode>();
 
         ecsServerSocket = new ECSServerSocket(this, address, port);
         new Thread(ecsServerSocket).start();
 
+        heartbeatReceiver = new ECSHeartbeatReceiver(this, address, port);
+        new Thread(heartbeatReceiver).start();
+
         heartbeatHandler = new ECSHeartbeatHandler(this);
         new Thread(heartbeatHandler).start();
 
+        loadBalancer = new ECSLoadBalancer(this);
+        loadBalancerThread = new Thread(loadBalancer, "ecs-load-balancer-" + port);
+        loadBalancerThread.start();
+
+    }
+
+    /**
+     * Sets how many servers hold every key: the coordinator and
+     * replicationFactor - 1 successor replicas, so 1 turns
+     * replication off. Applies to nodes added afterwards and is
+     * pushed to all current nodes.
+     *
+     * @param replicationFactor copies of every key, at least 1
+     * @throws IllegalArgumentException if replicationFactor is below 1
+     */
+    public void setReplicationFactor(int replicationFactor) {
+        if (replicationFactor < 1) {
+            throw new IllegalArgumentException(
+                    "Replication factor must be at least 1: " + replicationFactor);
+        }
+        w.lock();
+        try {
+            this.replicationFactor = replicationFactor;
+            for (IECSNode node : nodes.values()) {
+                node.sendMessage(new KVMessage(
+                        "CLUSTER_CONFIG replication_factor " + replicationFactor));
+            }
+            if (!nodes.isEmpty()) {
+                updateHashranges();
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Sets how coordinators replicate: "star" sends every write from
+     * the coordinator to each replica, "chain" sends it down the
+     * chain of successors and serves reads at the tail. Pushed to
+     * all current nodes.
+     *
+     * @param replicationMode "star" or "chain"
+     */
+    public void setReplicationMode(String replicationMode) {
+        w.lock();
+        try {
+            this.replicationMode = replicationMode;
+            for (IECSNode node : nodes.values()) {
+                node.sendMessage(new KVMessage(
+                        "CLUSTER_CONFIG replication_mode " + replicationMode));
+            }
+            if (!nodes.isEmpty()) {
+                updateHashranges();
+            }
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Sets how many tokens servers are placed at on the ring. More
+     * tokens spread keys more evenly, and a join or leave moves
+     * small ranges to or from many servers instead of one large
+     * range. Applies to servers that join afterwards.
+     *
+     * @param virtualNodes tokens per server, at least 1
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        w.lock();
+        try {
+            this.virtualNodes = Math.max(1, virtualNodes);
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Sets how suspicious the failure detector must be before a node
+     * is removed. Each step of 1 makes a false detection 10 times
+     * less likely but takes a little longer to detect a failure.
+     *
+     * @param phiThreshold suspicion level, 8 by default
+     */
+    public void setPhiThreshold(double phiThreshold) {
+        this.phiThreshold = phiThreshold;
+    }
+
+    /**
+     * @return true until the ECS is closed
+     */
+    public boolean isRunning() {
+        return running;
     }
 
     public void close() {
         logger.info("Closing ECS Server");
+        running = false;
+        loadBalancerThread.interrupt();
+        heartbeatReceiver.close();
         ecsServerSocket.setRunning(false);
         ecsServerSocket = null;
+        broadcastExecutor.shutdown();
         // for (Map.Entry<String, IECSNode> node : nodes.entrySet()) {
         // node.getValue().tearDownConnection();
         // }
@@ -248,52 +417,61 @@ public class ECSClient implements IECSClient {
      */
     @Override
     public IECSNode addNode(String cacheStrategy, int cacheSize) {
-        IECSNode node;
-        if (availableServers.isEmpty()) {
-            logger.error("There are no servers available to add!");
-            return null;
-        }
-        w.lock();
-        try {
-            node = availableServers.pop();
-
-            logger.info("Adding " + node.getNodeName());
-            nodes.put(node.getNodeName(), node);
-
-            // start node
-            startNode(node);
-
-            // do this after put! uses nodes.size()
-            Set<IECSNode> toRebalance = addHashRange(node);
-
-            updateHashranges();
-
-            for (IECSNode rebalNode : toRebalance) {
-                logger.info("Rebalancing node " + rebalNode.getNodeName());
-                rebalanceNode(rebalNode);
-            }
-        } finally {
-            w.unlock();
-        }
-
-        return node;
+        Collection<IECSNode> added = addNodes(1, cacheStrategy, cacheSize);
+        return added.isEmpty() ? null : added.iterator().next();
     }
 
     /**
-     * calls addNode
+     * Adds up to `count` available servers in one step: all of them
+     * are placed on the ring before the metadata is broadcast once
+     * and the nodes whose ranges changed are rebalanced once, so
+     * keys move straight to their final owners.
      *
-     * @return set of strings containing the names of the nodes
+     * @return set of nodes added
      */
     @Override
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
-        Set<IECSNode> nodes = new HashSet<IECSNode>();
+        List<IECSNode> added = new ArrayList<IECSNode>();
+        w.lock();
+        try {
+            while (added.size() < count && !availableServers.isEmpty()) {
+                IECSNode node = availableServers.pop();
+
+                logger.info("Adding " + node.getNodeName());
+                nodes.put(node.getNodeName(), node);
+
+                // start node
+                startNode(node);
+                node.sendMessage(new KVMessage(
+                        "CLUSTER_CONFIG replication_factor " + replicationFactor));
+                node.sendMessage(new KVMessage(
+                        "CLUSTER_CONFIG replication_mode " + replicationMode));
+                added.add(node);
+            }
+            if (added.isEmpty()) {
+                logger.error("There are no servers available to add!");
+                return added;
+            }
 
-        for (int i = 0; i < count; i++) {
-            nodes.add(addNode(cacheStrategy, cacheSize));
+            Map<String, String[]> oldRanges = new HashMap<String, String[]>(tokenRanges);
 
+            // do this after put! uses nodes.size()
+            Set<IECSNode> toRebalance = new HashSet<IECSNode>();
+            for (IECSNode node : added) {
+                toRebalance.addAll(addHashRange(node));
+            }
+
+            // rebalance only once every node routes by the new ring
+            if (!updateHashranges()) {
+                logger.warn("Rebalancing before the ring converged");
+            }
+
+            rebalance(oldRanges, toRebalance);
+        } finally {
+            w.unlock();
         }
 
-        return nodes;
+        return added;
     }
 
     /**
@@ -342,13 +520,18 @@ public class ECSClient implements IECSClient {
     }
 
     /**
-     * Removes nodes with names matching the nodeNames array
+     * Removes nodes with names matching the nodeNames array. Does
+     * nothing once the ECS is closed, as servers that stop with it
+     * still report leaving.
      *
      * @param nodeNames names of nodes to remove
      * @return true on success, false otherwise
      */
     @Override
     public boolean removeNodes(Collection<String> nodeNames) {
+        if (!running) {
+            return false;
+        }
         boolean rebalanceSuccess = true;
         w.lock();
         try {
@@ -385,10 +568,164 @@ public class ECSClient implements IECSClient {
 
     }
 
-    public void updateHashranges() {
+    /**
+     * Sends the current metadata to every node, stamped with a new
+     * ring epoch. Nodes that hold the previous epoch are only sent
+     * the entries that changed and the nodes that left, so a join or
+     * leave costs O(changed nodes) per node instead of the whole
+     * ring. Other nodes, such as new ones, get the full metadata.
+     * 
+     * Nodes are sent their update concurrently, and the broadcast
+     * waits until every node acknowledged the new epoch or
+     * METADATA_ACK_TIMEOUT passed, so it takes as long as the
+     * slowest node rather than the sum of all of them.
+     *
+     * @return true if every node acknowledged the new epoch in time,
+     *         false as well once the ECS is closed
+     */
+    public boolean updateHashranges() {
+        if (!running) {
+            return false;
+        }
+        Map<String, String> entries = buildMetadataEntries();
+        StringBuilder delta = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!entry.getValue().equals(broadcastEntries.get(entry.getKey()))) {
+                delta.append(entry.getValue()).append(";");
+            }
+        }
+        for (String nodeName : broadcastEntries.keySet()) {
+            if (!entries.containsKey(nodeName)) {
+                delta.append("-").append(nodeName).append(";");
+            }
+        }
+
         String metadata = buildMetadataString();
-        for (IECSNode node : nodes.values()) {
-            node.sendMessage(new KVMessage("KEYRANGE_UPDATE " + metadata));
+        long prevEpoch = ringEpoch;
+        ringEpoch++;
+        List<Future<?>> sends = new ArrayList<Future<?>>();
+        for (final IECSNode node : nodes.values()) {
+            Long sent = nodeEpochs.get(node.getNodeName());
+            final KVMessage msg;
+            if (sent != null && sent == prevEpoch) {
+                msg = new KVMessage(
+                        "@" + ringEpoch + " KEYRANGE_DELTA " + prevEpoch + " " + delta);
+            } else {
+                msg = new KVMessage("@" + ringEpoch + " KEYRANGE_UPDATE " + metadata);
+            }
+            try {
+                sends.add(broadcastExecutor.submit(new Runnable() {
+                    public void run() {
+                        node.sendMessage(msg);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // closed since the check above
+                logger.info("ECS closed, metadata not sent");
+                return false;
+            }
+            nodeEpochs.put(node.getNodeName(), ringEpoch);
+        }
+        nodeEpochs.keySet().retainAll(nodes.keySet());
+        broadcastEntries = entries;
+
+        return awaitRingConvergence(sends, ringEpoch, METADATA_ACK_TIMEOUT);
+    }
+
+    /**
+     * Barrier after a broadcast: waits until the updates are written
+     * and every node acknowledged the given epoch.
+     *
+     * @param sends   pending writes of the updates
+     * @param epoch   epoch the nodes must reach
+     * @param timeout the timeout in milliseconds
+     * @return true if every node reached the epoch in time
+     */
+    private boolean awaitRingConvergence(List<Future<?>> sends, long epoch, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            for (Future<?> send : sends) {
+                send.get(Math.max(1, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            logger.warn("Metadata update not sent in time: " + e);
+        }
+
+        List<String> lagging = new ArrayList<String>();
+        synchronized (ackedEpochs) {
+            ackedEpochs.keySet().retainAll(nodes.keySet());
+            while (true) {
+                lagging.clear();
+                for (String nodeName : nodes.keySet()) {
+                    Long acked = ackedEpochs.get(nodeName);
+                    if (acked == null || acked < epoch) {
+                        lagging.add(nodeName);
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (lagging.isEmpty() || remaining <= 0) {
+                    break;
+                }
+                try {
+                    ackedEpochs.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        if (!lagging.isEmpty()) {
+            logger.warn("Nodes did not acknowledge epoch " + epoch + ": " + lagging);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that a node applied the metadata of an epoch.
+     *
+     * @param nodeName "ADDR:PORT" of the node
+     * @param epoch    epoch the node is at
+     */
+    public void metadataAcked(String nodeName, long epoch) {
+        synchronized (ackedEpochs) {
+            Long acked = ackedEpochs.get(nodeName);
+            if (acked == null || acked < epoch) {
+                ackedEpochs.put(nodeName, epoch);
+                ackedEpochs.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param nodeName "ADDR:PORT" of the node
+     * @return highest epoch the node acknowledged, -1 if none
+     */
+    public long getAckedEpoch(String nodeName) {
+        synchronized (ackedEpochs) {
+            Long acked = ackedEpochs.get(nodeName);
+            return acked == null ? -1 : acked;
+        }
+    }
+
+    public long getRingEpoch() {
+        return ringEpoch;
+    }
+
+    /**
+     * Sends the full metadata to a node that could not apply a delta
+     * because it missed an earlier update.
+     *
+     * @param nodeName "ADDR:PORT" of the node
+     */
+    public void resendMetadata(String nodeName) {
+        IECSNode node = nodes.get(nodeName);
+        if (node != null) {
+            logger.info("Sending full metadata to " + nodeName);
+            node.sendMessage(new KVMessage(
+                    "@" + ringEpoch + " KEYRANGE_UPDATE " + buildMetadataString()));
         }
     }
 
@@ -407,13 +744,13 @@ public class ECSClient implements IECSClient {
     public IECSNode getNodeByKey(String Key) {
         IECSNode responsibleNode = null;
 
-        for (Map.Entry<String, IECSNode> node : nodes.entrySet()) {
-            String[] hashRange = node.getValue().getNodeHashRange();
+        for (Map.Entry<String, String[]> token : tokenRanges.entrySet()) {
+            String[] hashRange = token.getValue();
             BigInteger hashRangeStart = new BigInteger(hashRange[0], 16);
-            BigInteger hashRangeEnd = new BigInteger(hashRange[0], 16);
+            BigInteger hashRangeEnd = new BigInteger(hashRange[1], 16);
 
             if (Hash.inHashRange(Key, hashRangeStart, hashRangeEnd)) {
-                responsibleNode = node.getValue();
+                responsibleNode = nodes.get(Hash.serverOf(token.getKey()));
             }
         }
 
@@ -422,41 +759,106 @@ public class ECSClient implements IECSClient {
 
     /**
      * Creates an ECSNode for an available server and adds it to a
-     * map of available servers.
+     * map of available servers. Servers that connect within
+     * JOIN_WINDOW of each other are added together.
+     * 
+     * A server is given weight times as many tokens as a server of
+     * weight 1, so it is expected to own that many times as many
+     * keys.
      *
      * @param hostname hostname of the server
      * @param port     port of the server
+     * @param weight   capacity the server advertised, at least 1
      * @param socket   ECS-server socket
      */
-    public void addServerToPool(String hostname, int port, Socket socket) {
+    public void addServerToPool(String hostname, int port, int weight, Socket socket) {
+        boolean scheduled;
         w.lock();
         try {
-            availableServers.add(new ECSNode(hostname, port, socket));
+            ECSNode node = new ECSNode(hostname, port, socket);
+            node.setTokens(virtualNodes * Math.max(1, weight));
+            availableServers.add(node);
+            scheduled = joinScheduled;
+            joinScheduled = true;
         } finally {
             w.unlock();
         }
-        addNode("None", 0);
+        if (scheduled) {
+            // joins with the servers already waiting
+            return;
+        }
+
+        try {
+            Thread.sleep(JOIN_WINDOW);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int count;
+        w.lock();
+        try {
+            joinScheduled = false;
+            count = availableServers.size();
+        } finally {
+            w.unlock();
+        }
+        addNodes(count, "None", 0);
     }
 
     /**
      * Logic for adding a new node to the hash ring and
      * updating the ranges of all affected nodes.
      * 
+     * Every token of the node takes over part of the range of the
+     * token after it, so with several tokens per node the keys of a
+     * new node come from many servers.
+     * 
      * @param node node to add into the hash ring
      * @return set of nodes to rebalance
      */
     private Set<IECSNode> addHashRange(IECSNode node) {
-        BigInteger position = node.getPosition();
-
         // first, add to positions
-        nodePositions.add(position);
+        for (String token : node.getTokens()) {
+            BigInteger position = Hash.hash(token);
+            nodePositions.add(position);
+            tokenAt.put(position, token);
+            tokenPositions.put(token, position);
+        }
         Collections.sort(nodePositions);
 
+        // then recalculate hashranges
+        return updateTokenRanges();
+    }
+
+    /**
+     * Logic for removing a node from the hash ring and
+     * updating the ranges of all affected nodes.
+     * 
+     * @param node node to remove from the hash ring
+     */
+    private void removeHashRange(IECSNode node) {
+        for (String token : node.getTokens()) {
+            BigInteger position = tokenPositions.remove(token);
+            nodePositions.remove(position);
+            tokenAt.remove(position);
+            tokenRanges.remove(token);
+        }
+
+        updateTokenRanges();
+    }
+
+    /**
+     * Recalculates the range of every token from the sorted token
+     * positions. Each token covers the positions after the token
+     * before it, up to and including its own.
+     * 
+     * @return set of nodes whose ranges changed
+     */
+    private Set<IECSNode> updateTokenRanges() {
         int n = nodePositions.size();
 
-        Set<IECSNode> toRebalance = new HashSet<IECSNode>();
+        Set<IECSNode> changed = new HashSet<IECSNode>();
 
-        // then recalculate hashranges
         for (int i = 0; i < n; i++) {
             BigInteger startRange;
             if (i == 0) {
@@ -470,130 +872,251 @@ public class ECSClient implements IECSClient {
                     nodePositions.get(i).toString(16)
             };
 
-            for (IECSNode toUpdate : nodes.values()) {
-                String[] oldHashRange = toUpdate.getNodeHashRange();
-                if (toUpdate.getPosition().compareTo(nodePositions.get(i)) == 0) {
-                    if (oldHashRange == null) {
+            String token = tokenAt.get(nodePositions.get(i));
+            String[] oldHashRange = tokenRanges.get(token);
+            if (oldHashRange == null
+                    || !oldHashRange[0].equals(hashRange[0])
+                    || !oldHashRange[1].equals(hashRange[1])) {
+                tokenRanges.put(token, hashRange);
+                IECSNode toUpdate = nodes.get(Hash.serverOf(token));
+                if (toUpdate != null) {
+                    if (token.equals(toUpdate.getNodeName())) {
                         toUpdate.setNodeHashRange(hashRange);
-                        toRebalance.add(toUpdate);
-                    } else if (!oldHashRange[0].equals(hashRange[0])
-                            || !oldHashRange[1].equals(hashRange[1])) {
-                        toUpdate.setNodeHashRange(hashRange);
-                        toRebalance.add(toUpdate);
                     }
+                    changed.add(toUpdate);
                 }
             }
         }
 
-        return toRebalance;
+        return changed;
     }
 
     /**
-     * Logic for adding a new node to the hash ring and
-     * updating the ranges of all affected nodes.
+     * Records the load a node reported for its tokens.
      * 
-     * @param node node to add into the hash ring
-     * @return set of nodes to rebalance
+     * @param nodeName "ADDR:PORT" of the node
+     * @param report   TOKEN,REQUESTS_PER_SECOND,KEYS;... for every
+     *                 token of the node, null if it has none
      */
-    private void removeHashRange(IECSNode node) {
-        BigInteger position = node.getPosition();
+    public void loadReported(String nodeName, String report) {
+        synchronized (tokenLoads) {
+            if (report == null) {
+                return;
+            }
+            for (String entry : report.split(";")) {
+                String[] load = entry.split(",");
+                if (load.length != 3 || !Hash.serverOf(load[0]).equals(nodeName)) {
+                    continue;
+                }
+                try {
+                    tokenLoads.put(load[0], new long[] {
+                            Long.parseLong(load[1]), Long.parseLong(load[2]) });
+                } catch (NumberFormatException e) {
+                    logger.error("Invalid load report from " + nodeName + ": " + entry);
+                }
+            }
+        }
+    }
 
-        int i = nodePositions.indexOf(position);
-        nodePositions.remove(i);
+    /**
+     * Finds the range with the most requests or keys relative to the
+     * mean of all ranges and, if it is hot, splits it: the least
+     * loaded other node gets a new token in the middle of the range
+     * and takes over its first half through the usual rebalance.
+     * One range is split per call, so load is moved gradually.
+     * 
+     * @return true if a range was split
+     */
+    public boolean balanceLoad() {
+        w.lock();
+        try {
+            if (nodes.size() < 2) {
+                return false;
+            }
 
-        int n = nodePositions.size();
+            Map<String, long[]> loads = new HashMap<String, long[]>();
+            synchronized (tokenLoads) {
+                tokenLoads.keySet().retainAll(tokenRanges.keySet());
+                loads.putAll(tokenLoads);
+            }
+            if (loads.isEmpty()) {
+                return false;
+            }
 
-        if (n > 0) {
-            BigInteger startRange;
-            if (i == 0) {
-                startRange = nodePositions.get(n - 1).add(BigInteger.ONE);
-            } else {
-                startRange = nodePositions.get(i - 1).add(BigInteger.ONE);
+            double meanRate = 0;
+            double meanKeys = 0;
+            for (long[] load : loads.values()) {
+                meanRate += load[0];
+                meanKeys += load[1];
+            }
+            meanRate /= tokenRanges.size();
+            meanKeys /= tokenRanges.size();
+
+            // the hottest range, by how far it is above the mean
+            String hotToken = null;
+            double hottest = HOT_RANGE_FACTOR;
+            for (Map.Entry<String, long[]> token : loads.entrySet()) {
+                long[] load = token.getValue();
+                double heat = Math.max(
+                        load[0] >= MIN_HOT_RATE ? load[0] / Math.max(meanRate, 1) : 0,
+                        load[1] >= MIN_HOT_KEYS ? load[1] / Math.max(meanKeys, 1) : 0);
+                if (heat >= hottest) {
+                    hottest = heat;
+                    hotToken = token.getKey();
+                }
+            }
+            if (hotToken == null) {
+                return false;
             }
 
-            if (i == n) {
-                i = 0;
+            // the node with the least load takes over half the range
+            String hotNode = Hash.serverOf(hotToken);
+            IECSNode target = null;
+            double targetLoad = Double.MAX_VALUE;
+            for (IECSNode node : nodes.values()) {
+                if (node.getNodeName().equals(hotNode)) {
+                    continue;
+                }
+                double nodeLoad = 0;
+                for (String token : node.getTokens()) {
+                    long[] load = loads.get(token);
+                    if (load != null) {
+                        nodeLoad += load[0] / Math.max(meanRate, 1)
+                                + load[1] / Math.max(meanKeys, 1);
+                    }
+                }
+                if (nodeLoad < targetLoad) {
+                    targetLoad = nodeLoad;
+                    target = node;
+                }
             }
 
-            String[] hashRange = {
-                    startRange.toString(16),
-                    nodePositions.get(i).toString(16)
-            };
+            String[] hashRange = tokenRanges.get(hotToken);
+            BigInteger start = new BigInteger(hashRange[0], 16);
+            BigInteger end = new BigInteger(hashRange[1], 16);
+            BigInteger ring = BigInteger.ONE.shiftLeft(128);
+            BigInteger size = end.subtract(start).mod(ring);
+            if (size.compareTo(BigInteger.ONE) <= 0) {
+                return false;
+            }
+            BigInteger position = start.add(size.shiftRight(1)).mod(ring);
+
+            String token = target.addToken();
+            logger.info("Splitting hot range of " + hotToken + " at "
+                    + position.toString(16) + " to " + token);
+            nodePositions.add(position);
+            Collections.sort(nodePositions);
+            tokenAt.put(position, token);
+            tokenPositions.put(token, position);
+            synchronized (tokenLoads) {
+                tokenLoads.remove(hotToken);
+            }
 
-            for (IECSNode toUpdate : nodes.values()) {
-                if (toUpdate.getPosition().compareTo(nodePositions.get(i)) == 0) {
-                    toUpdate.setNodeHashRange(hashRange);
-                }
+            Map<String, String[]> oldRanges = new HashMap<String, String[]>(tokenRanges);
+            Set<IECSNode> toRebalance = updateTokenRanges();
+
+            if (!updateHashranges()) {
+                logger.warn("Rebalancing before the ring converged");
             }
+
+            rebalance(oldRanges, toRebalance);
+            return true;
+        } finally {
+            w.unlock();
         }
     }
 
     /**
-     * Sends a rebalance request to an ECSNode.
+     * Moves every range whose owner changed since `oldRanges` from
+     * its old owner straight to its new one.
      * 
-     * @param node node to rebalance
-     * @return true on success, false on failure
+     * @param oldRanges range of every token before the change
+     * @param changed   nodes whose ranges changed
+     * @return true if every range was moved
      */
-    private boolean rebalanceNode(IECSNode node) {
-        // latch = new CountDownLatch(1); // awaiting node rebal
-        node.rebalance();
-        // try {
-        //     latch.await();
-        // } catch (InterruptedException e) {
-        //     logger.error(e);
-        // }
-        // KVMessage res = node.rebalance(metadata);
-        // if (res == null) {
-        // logger.error(
-        // "Failed to communicate with " + node.getNodeName());
-        // return false;
-        // } else if (res.getStatus() == StatusType.SERVER_STOPPED) {
-        // logger.error(
-        // "Server " + node.getNodeName() +
-        // " is currently stopped, skipping rebalance.");
-        // return false;
-        // } else if (res.getStatus() == StatusType.REBALANCE_ERROR) {
-        // logger.error(
-        // "Server " + node.getNodeName() + " failed to rebalance.");
-        // return false;
-        // }
+    private boolean rebalance(Map<String, String[]> oldRanges, Set<IECSNode> changed) {
+        List<RangeTransfer> plan = RebalancePlanner.plan(oldRanges, tokenRanges);
+        logger.info("Rebalancing " + changed.size() + " nodes in "
+                + plan.size() + " transfers");
+
+        if (!rebalancePlanner.execute(plan, nodes)) {
+            logger.error("Rebalance did not move every range");
+            return false;
+        }
+        for (IECSNode node : changed) {
+            node.setNodeStatus(StatusType.REBALANCE_SUCCESS);
+        }
         return true;
     }
 
+    /**
+     * Records a node's answer to its transfers of a rebalance.
+     * 
+     * @param nodeName  "ADDR:PORT" of the node that sent the ranges
+     * @param transfers "START END DESTINATION ..." of the ranges
+     * @param success   true if every range was sent
+     */
+    public void transferDone(String nodeName, String transfers, boolean success) {
+        rebalancePlanner.transferDone(nodeName, transfers, success);
+    }
+
     /**
      * Serializes metadata in the format
-     * KEYRANGE_START,KEYRANGE_END,HOST:PORT;...
+     * KEYRANGE_START,KEYRANGE_END,TOKEN;...
      * 
      * @return string of metadata
      */
     private String buildMetadataString() {
         StringBuilder sb = new StringBuilder();
 
-        for (IECSNode node : nodes.values()) {
-            String[] hashRange = node.getNodeHashRange();
-            String host = node.getNodeHost();
-            int port = node.getNodePort();
+        for (String entry : buildMetadataEntries().values()) {
+            sb.append(entry + ";");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return "KEYRANGE_START,KEYRANGE_END,TOKEN" of every token on
+     *         the ring, by token name; a node's first token is named
+     *         ADDR:PORT and its virtual tokens ADDR:PORT#i
+     */
+    private Map<String, String> buildMetadataEntries() {
+        Map<String, String> entries = new HashMap<String, String>();
+
+        for (Map.Entry<String, String[]> token : tokenRanges.entrySet()) {
+            String[] hashRange = token.getValue();
 
-            sb.append(
+            entries.put(
+                    token.getKey(),
                     hashRange[0] + "," +
                             hashRange[1] + "," +
-                            host + ":" + port + ";");
+                            token.getKey());
         }
 
-        return sb.toString();
+        return entries;
     }
 
     /**
+     * Finds the nodes whose heartbeats are overdue by more than the
+     * phi threshold allows. Does not wait for the ECS lock, so a
+     * rebalance in progress learns of a failed node right away and
+     * stops waiting for its transfers.
      * 
-     * @return
+     * @return names of the nodes taken to have failed
      */
     public Set<String> checkFailed() {
         Set<String> failNodes = new HashSet<String>();
         for (IECSNode node : nodes.values()) {
-            if (!node.getHeartbeat()) {
+            double phi = node.getPhi();
+            if (phi > phiThreshold) {
+                logger.warn("Node " + node.getNodeName()
+                        + " failed, phi " + phi);
                 failNodes.add(node.getNodeName());
             }
-            node.setHeartbeat(false);
+        }
+        if (!failNodes.isEmpty()) {
+            rebalancePlanner.nodesFailed(failNodes);
         }
         return failNodes;
     }
@@ -601,6 +1124,10 @@ public class ECSClient implements IECSClient {
     public static void main(String[] args) {
         Integer port = null;
         String address = "localhost";
+        int replicationFactor = 3;
+        String replicationMode = "star";
+        int virtualNodes = 1;
+        Double phiThreshold = null;
 
         // Parse args
         for (int i = 0; i < args.length; i++) {
@@ -617,6 +1144,41 @@ public class ECSClient implements IECSClient {
                 case "-a": // Address
                     address = args[i + 1];
                     break;
+                case "-r": // Replication factor
+                    try {
+                        replicationFactor = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        System.out.println(
+                                "Error: Invalid argument <replicas>! Not a number!");
+                        System.exit(1);
+                    }
+                    if (replicationFactor < 1) {
+                        System.out.println(
+                                "Error: Invalid argument <replicas>! Must be at least 1!");
+                        System.exit(1);
+                    }
+                    break;
+                case "-m": // Replication mode
+                    replicationMode = args[i + 1];
+                    break;
+                case "-v": // Virtual nodes per server
+                    try {
+                        virtualNodes = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        System.out.println(
+                                "Error: Invalid argument <vnodes>! Not a number!");
+                        System.exit(1);
+                    }
+                    break;
+                case "-f": // Failure detection threshold
+                    try {
+                        phiThreshold = Double.parseDouble(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        System.out.println(
+                                "Error: Invalid argument <phi>! Not a number!");
+                        System.exit(1);
+                    }
+                    break;
                 default:
                     break;
             }
@@ -630,6 +1192,12 @@ public class ECSClient implements IECSClient {
         try {
             new LogSetup("logs/ecs.log", Level.ALL);
             ECSClient ecs = new ECSClient(address, port);
+            ecs.setReplicationFactor(replicationFactor);
+            ecs.setReplicationMode(replicationMode);
+            ecs.setVirtualNodes(virtualNodes);
+            if (phiThreshold != null) {
+                ecs.setPhiThreshold(phiThreshold);
+            }
 
             ECSUserInterface cli = new ECSUserInterface(ecs);
             cli.start();
@@ -675,12 +1243,12 @@ public class ECSClient implements IECSClient {
 
         }
 
-        logger.info(server1.replica1);
-        logger.info(server1.replica2);
-        logger.info(server2.replica1);
-        logger.info(server2.replica2);
-        logger.info(server3.replica1);
-        logger.info(server3.replica2);
+        logger.info(server1.getReplica(1));
+        logger.info(server1.getReplica(2));
+        logger.info(server2.getReplica(1));
+        logger.info(server2.getReplica(2));
+        logger.info(server3.getReplica(1));
+        logger.info(server3.getReplica(2));
         try {
             Thread.sleep(500);
         } catch (InterruptedException e) {
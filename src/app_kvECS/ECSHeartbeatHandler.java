@@ -10,6 +10,9 @@ public class ECSHeartbeatHandler implements Runnable {
 
 	private static Logger logger = Logger.getRootLogger();
 
+    // checking every node is cheap, so failures are acted on quickly
+    private static final long CHECK_INTERVAL = 100;
+
     private ECSClient ecs;
 
     public ECSHeartbeatHandler(ECSClient ecs) {
@@ -17,10 +20,8 @@ public class ECSHeartbeatHandler implements Runnable {
     }
 
     private void handleHeartbeats() {
-        logger.info("Checking heartbeats");
         Set<String> failNodes = ecs.checkFailed();
         if (failNodes.isEmpty()) {
-            logger.info("No node failures");
             return;
         } else {
             ecs.removeNodes(failNodes);
@@ -28,10 +29,10 @@ public class ECSHeartbeatHandler implements Runnable {
     }
 
     public void run() {
-        while (true) {
+        while (ecs.isRunning()) {
             try {
                 handleHeartbeats();
-                Thread.sleep(20000);
+                Thread.sleep(CHECK_INTERVAL);
             } catch (InterruptedException e) {
                 logger.error("ECS Heartbeat thread interrupted ");
             }
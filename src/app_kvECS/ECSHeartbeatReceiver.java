@@ -0,0 +1,83 @@
+package app_kvECS;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import ecs.IECSNode;
+import shared.messages.KVMessage;
+import shared.messages.IKVMessage.StatusType;
+
+/**
+ * Receives server heartbeats as UDP datagrams on the ECS's port.
+ * Heartbeats do not share the TCP connection the ECS sends
+ * KEYRANGE_UPDATE and REBALANCE_RANGE on, so a long transfer or a
+ * blocked write on that connection cannot delay them. A lost
+ * datagram only widens one interval the failure detector sees.
+ */
+public class ECSHeartbeatReceiver implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    // "HEARTBEAT ADDR PORT" fits easily
+    private static final int MAX_DATAGRAM = 512;
+
+    private ECSClient ecs;
+    private DatagramSocket socket;
+
+    public ECSHeartbeatReceiver(ECSClient ecs, String address, int port) {
+        this.ecs = ecs;
+        try {
+            socket = new DatagramSocket(new InetSocketAddress(address, port));
+            logger.info("ECS receiving heartbeats on UDP port " + port);
+        } catch (IOException e) {
+            logger.error("Error: Cannot open heartbeat socket. ", e);
+        }
+    }
+
+    public void run() {
+        if (socket == null) {
+            return;
+        }
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (ecs.isRunning()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (ecs.isRunning()) {
+                    logger.error("Error receiving heartbeat", e);
+                }
+                continue;
+            }
+
+            try {
+                KVMessage msg = new KVMessage(
+                        Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (msg.getStatus() != StatusType.HEARTBEAT) {
+                    continue;
+                }
+                IECSNode node = ecs.getNodes().get(
+                        msg.getKey() + ":" + Integer.parseInt(msg.getValue()));
+                if (node != null) {
+                    node.heartbeatReceived();
+                }
+            } catch (Exception e) {
+                logger.error("Invalid heartbeat from " + packet.getSocketAddress());
+            }
+        }
+    }
+
+    /**
+     * Stops receiving heartbeats.
+     */
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package app_kvECS;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically splits ranges the nodes report as hot, so a hot
+ * range on one node does not cap the throughput of the cluster.
+ */
+public class ECSLoadBalancer implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+    private static final long BALANCE_INTERVAL = 30000;
+
+    private ECSClient ecs;
+
+    public ECSLoadBalancer(ECSClient ecs) {
+        this.ecs = ecs;
+    }
+
+    public void run() {
+        while (ecs.isRunning()) {
+            try {
+                Thread.sleep(BALANCE_INTERVAL);
+                if (ecs.isRunning()) {
+                    ecs.balanceLoad();
+                }
+            } catch (InterruptedException e) {
+                // the ECS is closing
+                return;
+            } catch (Exception e) {
+                logger.error(e);
+            }
+        }
+    }
+}
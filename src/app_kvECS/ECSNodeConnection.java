@@ -8,6 +8,7 @@ import org.apache.log4j.Logger;
 
 import shared.messages.KVMessage;
 import shared.messages.CommProtocol;
+import shared.messages.IKVMessage.StatusType;
 import ecs.IECSNode;
 
 public class ECSNodeConnection implements Runnable {
@@ -35,11 +36,22 @@ public class ECSNodeConnection implements Runnable {
 
         switch (msg.getStatus()) {
             case NEW_SERVER:
+                // NEW_SERVER addr port [weight]
+                String[] serverInfo = msg.getValue().split(" ");
                 serverAddr = msg.getKey();
-                serverPort = Integer.parseInt(msg.getValue());
-
-                // make this threaded/call back to main thread
-                ecs.addServerToPool(serverAddr, serverPort, socket);
+                serverPort = Integer.parseInt(serverInfo[0]);
+                final int joinWeight = serverInfo.length > 1
+                        ? parseWeight(serverInfo[1]) : 1;
+
+                // joining waits for the new node to acknowledge its
+                // metadata, which arrives on this thread
+                final String joinAddr = serverAddr;
+                final int joinPort = serverPort;
+                new Thread(new Runnable() {
+                    public void run() {
+                        ecs.addServerToPool(joinAddr, joinPort, joinWeight, socket);
+                    }
+                }).start();
 
                 logger.info(
                         "New server connected to ECS: " + serverAddr +
@@ -51,19 +63,46 @@ public class ECSNodeConnection implements Runnable {
                 node = ecs.getNodes().get(serverAddr + ":" + serverPort);
                 // TODO concurrency errors?
                 if (node != null) {
-                    // node.setSocket(socket);
-                    ecs.removeNodes(
-                            Arrays.asList(new String[] { serverAddr + ":" + serverPort }));
+                    // removing waits for the ECS lock, which may be held
+                    // while a rebalance or broadcast waits for replies
+                    // read on this thread
+                    final String leaving = serverAddr + ":" + serverPort;
+                    new Thread(new Runnable() {
+                        public void run() {
+                            ecs.removeNodes(Arrays.asList(new String[] { leaving }));
+                        }
+                    }).start();
                 }
                 break;
             case HEARTBEAT:
+                // servers send heartbeats to the ECSHeartbeatReceiver,
+                // ones on this connection still count
                 serverAddr = msg.getKey();
                 serverPort = Integer.parseInt(msg.getValue());
                 node = ecs.getNodes().get(serverAddr + ":" + serverPort);
                 if (node != null) {
-                    node.setHeartbeat(true);
+                    node.heartbeatReceived();
+                }
+                break;
+            case LOAD_REPORT:
+                ecs.loadReported(msg.getKey(), msg.getValue());
+                break;
+            case KEYRANGE_SUCCESS:
+                // replies are stamped with the epoch the node is at
+                if (msg.getEpoch() >= 0) {
+                    ecs.metadataAcked(serverAddr + ":" + serverPort, msg.getEpoch());
                 }
                 break;
+            case KEYRANGE_DELTA_ERROR:
+                // node missed an update, send it the whole ring
+                ecs.resendMetadata(serverAddr + ":" + serverPort);
+                break;
+            case REBALANCE_RANGE_SUCCESS:
+            case REBALANCE_RANGE_ERROR:
+                ecs.transferDone(serverAddr + ":" + serverPort,
+                        msg.getKey() + " " + msg.getValue(),
+                        msg.getStatus() == StatusType.REBALANCE_RANGE_SUCCESS);
+                break;
             case REBALANCE_SUCCESS:
                 node = ecs.getNodes().get(serverAddr + ":" + serverPort);
                 if (node != null) {
@@ -75,6 +114,24 @@ public class ECSNodeConnection implements Runnable {
         }
     }
 
+    /**
+     * @param weight weight a joining server advertised
+     * @return the weight, or 1 if it is not a positive number
+     */
+    private int parseWeight(String weight) {
+        try {
+            int parsed = Integer.parseInt(weight);
+            if (parsed >= 1) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        logger.error("Invalid weight " + weight + " from " + serverAddr
+                + ":" + serverPort + ", using 1");
+        return 1;
+    }
+
     public void run() {
         try {
             input = socket.getInputStream();
@@ -43,6 +43,8 @@ public class ECSServerSocket implements Runnable {
         this.ecs = ecs;
         this.address = address;
         this.port = port;
+        // bind before servers started right after the ECS connect
+        setRunning(initializeServerSocket());
     }
 
     private boolean initializeServerSocket() {
@@ -85,8 +87,6 @@ public class ECSServerSocket implements Runnable {
      * Run loop for ECSConnection thread
      */
     public void run() {
-        setRunning(initializeServerSocket());
-
         if (ecsSocket != null) {
             while (isRunning()) {
                 try {
@@ -0,0 +1,48 @@
+package app_kvECS;
+
+/**
+ * One step of a rebalance: the keys hashing from `start` to `end`
+ * move from the server that owned them to the one that owns them
+ * now.
+ */
+public class RangeTransfer {
+
+    private final String source;
+    private final String destination;
+    private final String start;
+    private final String end;
+
+    /**
+     * @param source      "ADDR:PORT" of the old owner
+     * @param destination "ADDR:PORT" of the new owner
+     * @param start       first hash of the range, in hex
+     * @param end         last hash of the range, in hex
+     */
+    public RangeTransfer(String source, String destination, String start, String end) {
+        this.source = source;
+        this.destination = destination;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public String getStart() {
+        return start;
+    }
+
+    public String getEnd() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return source + " -> " + destination + " [" + start + "," + end + "]";
+    }
+}
@@ -0,0 +1,314 @@
+package app_kvECS;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import ecs.IECSNode;
+import shared.Hash;
+import shared.messages.KVMessage;
+
+/**
+ * Works out which ranges move when the ring changes and has the
+ * servers send them. Every range goes straight from its owner on
+ * the old ring to its owner on the new one, so a key moves at most
+ * once per change, however many tokens were added in it.
+ *
+ * Every source gets all of its transfers in one request. Sources
+ * run in parallel, but a node never sends and receives at once: a
+ * source holds its write lock until its destinations have stored
+ * the keys, so two nodes sending to each other would wait forever.
+ */
+public class RebalancePlanner {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    // a request that is not answered within this time counts as failed
+    private static final long TRANSFER_TIMEOUT = 30000;
+
+    // result of every answered request not yet collected, by
+    // "SOURCE START END DESTINATION ..."; guarded by this
+    private final Map<String, Boolean> finished = new HashMap<String, Boolean>();
+
+    // nodes found to have failed during the current plan; their
+    // requests are given up instead of waited for; guarded by this
+    private final Set<String> failed = new HashSet<String>();
+
+    /**
+     * Compares two rings range by range.
+     *
+     * @param oldRanges range of every token before the change, as
+     *                  {start, end} in hex
+     * @param newRanges range of every token after the change
+     * @return transfers that move every key whose server changed,
+     *         adjacent ranges between the same servers merged
+     */
+    public static List<RangeTransfer> plan(Map<String, String[]> oldRanges,
+            Map<String, String[]> newRanges) {
+        List<RangeTransfer> plan = new ArrayList<RangeTransfer>();
+
+        TreeMap<BigInteger, String> oldEnds = endsOf(oldRanges);
+        TreeMap<BigInteger, String> newEnds = endsOf(newRanges);
+        if (oldEnds.isEmpty() || newEnds.isEmpty()) {
+            return plan;
+        }
+
+        // between two consecutive token positions of either ring,
+        // every key has the same owner on both rings
+        TreeSet<BigInteger> bounds = new TreeSet<BigInteger>(oldEnds.keySet());
+        bounds.addAll(newEnds.keySet());
+
+        BigInteger previous = bounds.last();
+        RangeTransfer last = null;
+        for (BigInteger end : bounds) {
+            String source = Hash.serverOf(ownerOf(oldEnds, end));
+            String destination = Hash.serverOf(ownerOf(newEnds, end));
+
+            if (source.equals(destination)) {
+                last = null;
+            } else if (last != null
+                    && last.getSource().equals(source)
+                    && last.getDestination().equals(destination)) {
+                last = new RangeTransfer(source, destination,
+                        last.getStart(), end.toString(16));
+                plan.set(plan.size() - 1, last);
+            } else {
+                last = new RangeTransfer(source, destination,
+                        previous.add(BigInteger.ONE).toString(16), end.toString(16));
+                plan.add(last);
+            }
+            previous = end;
+        }
+
+        return plan;
+    }
+
+    /**
+     * @return token by the position its range ends at
+     */
+    private static TreeMap<BigInteger, String> endsOf(Map<String, String[]> ranges) {
+        TreeMap<BigInteger, String> ends = new TreeMap<BigInteger, String>();
+        for (Map.Entry<String, String[]> token : ranges.entrySet()) {
+            ends.put(new BigInteger(token.getValue()[1], 16), token.getKey());
+        }
+        return ends;
+    }
+
+    /**
+     * @return token whose range holds `position`: the first at or
+     *         after it, wrapping around the ring
+     */
+    private static String ownerOf(TreeMap<BigInteger, String> ends, BigInteger position) {
+        Map.Entry<BigInteger, String> owner = ends.ceilingEntry(position);
+        return owner != null ? owner.getValue() : ends.firstEntry().getValue();
+    }
+
+    /**
+     * Sends the transfers of a plan to their sources, one request
+     * per source, and waits until all of them are answered or timed
+     * out.
+     *
+     * @param plan  transfers to run
+     * @param nodes nodes on the ring, by name
+     * @return true if every transfer succeeded
+     */
+    public boolean execute(List<RangeTransfer> plan, Map<String, IECSNode> nodes) {
+        synchronized (this) {
+            finished.clear();
+            failed.clear();
+        }
+
+        Map<String, List<RangeTransfer>> pending = new LinkedHashMap<String, List<RangeTransfer>>();
+        for (RangeTransfer transfer : plan) {
+            if (!pending.containsKey(transfer.getSource())) {
+                pending.put(transfer.getSource(), new ArrayList<RangeTransfer>());
+            }
+            pending.get(transfer.getSource()).add(transfer);
+        }
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        Map<String, List<RangeTransfer>> running = new HashMap<String, List<RangeTransfer>>();
+        Set<String> sending = new HashSet<String>();
+        Map<String, Integer> receiving = new HashMap<String, Integer>();
+        boolean success = true;
+
+        while (!pending.isEmpty() || !running.isEmpty()) {
+            // start every source that does not receive, and whose
+            // destinations do not send
+            Iterator<Map.Entry<String, List<RangeTransfer>>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, List<RangeTransfer>> request = it.next();
+                synchronized (this) {
+                    if (involvesFailed(request.getKey(), request.getValue())) {
+                        logger.error("Transfers " + request.getValue()
+                                + " skipped, a node failed");
+                        success = false;
+                        it.remove();
+                        continue;
+                    }
+                }
+                if (count(receiving, request.getKey()) > 0
+                        || sendsTo(sending, request.getValue())) {
+                    continue;
+                }
+                it.remove();
+
+                IECSNode source = nodes.get(request.getKey());
+                if (source == null) {
+                    logger.warn("Source of " + request.getValue() + " left the ring");
+                    success = false;
+                    continue;
+                }
+
+                logger.info("Transferring " + request.getValue());
+                String id = request.getKey() + " " + rangesOf(request.getValue());
+                running.put(id, request.getValue());
+                deadlines.put(id, System.currentTimeMillis() + TRANSFER_TIMEOUT);
+                sending.add(request.getKey());
+                for (RangeTransfer transfer : request.getValue()) {
+                    receiving.put(transfer.getDestination(),
+                            count(receiving, transfer.getDestination()) + 1);
+                }
+                source.sendMessage(new KVMessage("REBALANCE_RANGE "
+                        + rangesOf(request.getValue())));
+            }
+
+            if (running.isEmpty()) {
+                continue;
+            }
+
+            // wait for at least one request to finish
+            List<String> done = new ArrayList<String>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                long wait = TRANSFER_TIMEOUT;
+                for (String id : running.keySet()) {
+                    Boolean result = finished.remove(id);
+                    if (result == null
+                            && involvesFailed(id.split(" ")[0], running.get(id))) {
+                        logger.error("Transfers " + running.get(id)
+                                + " given up, a node failed");
+                        success = false;
+                        done.add(id);
+                    } else if (result != null) {
+                        if (!result) {
+                            logger.error("Transfers " + running.get(id) + " failed");
+                            success = false;
+                        }
+                        done.add(id);
+                    } else if (deadlines.get(id) <= now) {
+                        logger.error("Transfers " + running.get(id) + " timed out");
+                        success = false;
+                        done.add(id);
+                    } else {
+                        wait = Math.min(wait, deadlines.get(id) - now);
+                    }
+                }
+                if (done.isEmpty()) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+
+            for (String id : done) {
+                List<RangeTransfer> request = running.remove(id);
+                deadlines.remove(id);
+                sending.remove(request.get(0).getSource());
+                for (RangeTransfer transfer : request) {
+                    receiving.put(transfer.getDestination(),
+                            count(receiving, transfer.getDestination()) - 1);
+                }
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Records the answer of a source to its request.
+     *
+     * @param source    "ADDR:PORT" of the node that answered
+     * @param transfers "START END DESTINATION ..." the node answered for
+     * @param success   true if the node sent every range
+     */
+    public synchronized void transferDone(String source, String transfers, boolean success) {
+        finished.put(source + " " + transfers, success);
+        notifyAll();
+    }
+
+    /**
+     * Gives up the transfers of failed nodes, so the plan does not
+     * wait for them to time out.
+     *
+     * @param nodes "ADDR:PORT" of the nodes that failed
+     */
+    public synchronized void nodesFailed(Collection<String> nodes) {
+        failed.addAll(nodes);
+        notifyAll();
+    }
+
+    /**
+     * @return true if the source or a destination of a request has
+     *         failed; called holding this
+     */
+    private boolean involvesFailed(String source, List<RangeTransfer> transfers) {
+        if (failed.contains(source)) {
+            return true;
+        }
+        for (RangeTransfer transfer : transfers) {
+            if (failed.contains(transfer.getDestination())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return "START END DESTINATION" of every transfer, as a source
+     *         is sent them
+     */
+    private static String rangesOf(List<RangeTransfer> transfers) {
+        StringBuilder sb = new StringBuilder();
+        for (RangeTransfer transfer : transfers) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(transfer.getStart()).append(" ")
+                .append(transfer.getEnd()).append(" ")
+                .append(transfer.getDestination());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if any of the transfers goes to a node that is
+     *         sending
+     */
+    private static boolean sendsTo(Set<String> sending, List<RangeTransfer> transfers) {
+        for (RangeTransfer transfer : transfers) {
+            if (sending.contains(transfer.getDestination())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int count(Map<String, Integer> busy, String node) {
+        Integer count = busy.get(node);
+        return count == null ? 0 : count;
+    }
+}
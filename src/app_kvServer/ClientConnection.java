@@ -15,6 +15,12 @@ public class ClientConnection implements Runnable {
 	private static Logger logger = Logger.getRootLogger();
 	
 	public boolean isOpen;
+
+	/* number of copies (coordinator + replicas) a PUT waits for */
+	public int writeConcern = 1;
+
+	/* pass requests for other servers' keys on instead of rejecting them */
+	public boolean forward = false;
 	
 	private Socket clientSocket;
 	private InputStream input;
@@ -46,7 +52,7 @@ public class ClientConnection implements Runnable {
 					KVMessage latestMsg = 
 						CommProtocol.receiveMessage(input, false);
 					// call message handler
-					KVMessage res = listener.handleMessage(latestMsg);
+					KVMessage res = listener.handleMessage(latestMsg, this);
 					CommProtocol.sendMessage(res, output);
 					
 				// connection terminated or lost
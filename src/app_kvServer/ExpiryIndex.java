@@ -0,0 +1,118 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Expiry times of the keys a coordinator holds with a TTL, ordered so
+ * the reaper can find the keys that are due without scanning the
+ * whole store. Keys without a TTL are not tracked.
+ */
+public class ExpiryIndex {
+
+    private final Map<String, Long> deadlines = new HashMap<String, Long>();
+    private final TreeMap<Long, Set<String>> byDeadline = new TreeMap<Long, Set<String>>();
+    private boolean dirty = false;
+
+    /**
+     * @param key      key that expires
+     * @param deadline time it expires at, in milliseconds since the epoch
+     */
+    public synchronized void set(String key, long deadline) {
+        remove(key);
+        deadlines.put(key, deadline);
+        Set<String> keys = byDeadline.get(deadline);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            byDeadline.put(deadline, keys);
+        }
+        keys.add(key);
+        dirty = true;
+    }
+
+    /**
+     * Stops tracking a key, when it is overwritten without a TTL or
+     * deleted.
+     *
+     * @param key key to forget
+     */
+    public synchronized void remove(String key) {
+        Long deadline = deadlines.remove(key);
+        if (deadline == null) {
+            return;
+        }
+        Set<String> keys = byDeadline.get(deadline);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            byDeadline.remove(deadline);
+        }
+        dirty = true;
+    }
+
+    /**
+     * @param key key to look up
+     * @return time the key expires at, or -1 if it does not expire
+     */
+    public synchronized long deadlineOf(String key) {
+        Long deadline = deadlines.get(key);
+        return deadline == null ? -1 : deadline;
+    }
+
+    /**
+     * @param key key to check
+     * @param now current time in milliseconds
+     * @return true if the key has a TTL that has run out
+     */
+    public synchronized boolean isExpired(String key, long now) {
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= now;
+    }
+
+    /**
+     * Lists keys that have expired, earliest first. They stay in the
+     * index until removed, so a key that is rewritten in the meantime
+     * is not reaped.
+     *
+     * @param now   current time in milliseconds
+     * @param limit maximum number of keys to return
+     * @return expired keys
+     */
+    public synchronized List<String> due(long now, int limit) {
+        List<String> expired = new ArrayList<String>();
+        Iterator<Map.Entry<Long, Set<String>>> it =
+            byDeadline.headMap(now, true).entrySet().iterator();
+        while (it.hasNext() && expired.size() < limit) {
+            for (String key : it.next().getValue()) {
+                if (expired.size() >= limit) {
+                    break;
+                }
+                expired.add(key);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Takes a copy of the index for persisting if it changed since
+     * the last copy.
+     *
+     * @return key to deadline, or null if nothing changed
+     */
+    public synchronized Map<String, String> takeChanges() {
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        Map<String, String> copy = new HashMap<String, String>();
+        for (Map.Entry<String, Long> deadline : deadlines.entrySet()) {
+            copy.put(deadline.getKey(), String.valueOf(deadline.getValue()));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,97 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import client.ServerConnection;
+import shared.messages.KVMessage;
+import shared.messages.IKVMessage.StatusType;
+
+/**
+ * Connections this server uses to pass requests on to the server
+ * responsible for their key, for clients that asked for forwarding.
+ * Idle connections are kept per owner and write concern, so a
+ * forwarded request usually costs one hop over an open socket.
+ */
+public class ForwardPool {
+
+	private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_IDLE_PER_OWNER = 8;
+
+    // idle connections by "ADDR:PORT#writeConcern"
+    private final Map<String, List<ServerConnection>> idle =
+        new HashMap<String, List<ServerConnection>>();
+
+    /**
+     * Sends a request to a server and waits for its response.
+     *
+     * @param owner        "ADDR:PORT" of the server
+     * @param writeConcern write concern the request must be applied with
+     * @param msgStr       request to send
+     * @return response of the server
+     * @throws IOException if the server cannot be reached
+     */
+    public KVMessage send(String owner, int writeConcern, String msgStr)
+            throws IOException {
+        String poolKey = owner + "#" + writeConcern;
+        ServerConnection conn = take(poolKey);
+        if (conn == null) {
+            conn = new ServerConnection(
+                owner.split(":")[0], Integer.parseInt(owner.split(":")[1]));
+            if (writeConcern != 1) {
+                KVMessage res = conn.send(
+                    StatusType.CONNECTION_OPTION.name() + " write_concern " + writeConcern);
+                if (res.getStatus() != StatusType.CONNECTION_OPTION_SUCCESS) {
+                    conn.close();
+                    throw new IOException(owner + " rejected write concern " + writeConcern);
+                }
+            }
+        }
+
+        KVMessage res = conn.send(msgStr);
+        release(poolKey, conn);
+        return res;
+    }
+
+    private synchronized ServerConnection take(String poolKey) {
+        List<ServerConnection> conns = idle.get(poolKey);
+        if (conns == null || conns.isEmpty()) {
+            return null;
+        }
+        return conns.remove(conns.size() - 1);
+    }
+
+    private void release(String poolKey, ServerConnection conn) {
+        synchronized (this) {
+            List<ServerConnection> conns = idle.get(poolKey);
+            if (conns == null) {
+                conns = new ArrayList<ServerConnection>();
+                idle.put(poolKey, conns);
+            }
+            if (conns.size() < MAX_IDLE_PER_OWNER) {
+                conns.add(conn);
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    public synchronized void close() {
+        for (List<ServerConnection> conns : idle.values()) {
+            for (ServerConnection conn : conns) {
+                conn.close();
+            }
+        }
+        idle.clear();
+        logger.info("Closed forwarding connections");
+    }
+}
@@ -0,0 +1,153 @@
+package app_kvServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded on-disk queue of the mutations a replica missed while it was
+ * unreachable (hinted handoff). Records are appended one per line in
+ * the batch frame encoding and replayed in sequence order when the
+ * replica comes back. Once the queue is full further hints are
+ * dropped and the queue is marked incomplete, so the replica gets a
+ * full sync instead.
+ *
+ * Hints are only meaningful for the replication log they were taken
+ * from, so a queue left over from a previous run is discarded.
+ */
+public class HintQueue {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private final File file;
+    private final int capacity;
+
+    private FileWriter writer;
+    private int size = 0;
+    private long firstSeq = -1;
+    private boolean overflowed = false;
+
+    public HintQueue(String path) {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    public HintQueue(String path, int capacity) {
+        this.file = new File(path);
+        this.capacity = capacity;
+        file.delete();
+    }
+
+    /**
+     * Appends a record for later replay.
+     *
+     * @param record record the replica missed
+     */
+    public synchronized void add(ReplicationRecord record) {
+        if (overflowed) {
+            return;
+        }
+        if (size >= capacity) {
+            logger.warn("Hint queue " + file + " is full, replica will need a full sync");
+            overflowed = true;
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = new FileWriter(file, true);
+            }
+            writer.write(ReplicationRecord.encode(Collections.singletonList(record)));
+            writer.write("\n");
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Unable to write hint to " + file, e);
+            overflowed = true;
+            return;
+        }
+        // records taken off the send queue may be hinted late
+        if (size == 0 || record.seq < firstSeq) {
+            firstSeq = record.seq;
+        }
+        size++;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0 && !overflowed;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Hinted records a replica has not applied yet.
+     *
+     * @param appliedSeq last sequence number the replica applied
+     * @return hinted records after appliedSeq in order, or null if the
+     *         queue is empty, incomplete, or starts after appliedSeq + 1
+     */
+    public synchronized List<ReplicationRecord> since(long appliedSeq) {
+        if (size == 0 || overflowed || appliedSeq < 0 || appliedSeq + 1 < firstSeq) {
+            return null;
+        }
+
+        List<ReplicationRecord> missed = new ArrayList<ReplicationRecord>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (ReplicationRecord record : ReplicationRecord.decode(line)) {
+                    if (record.seq > appliedSeq) {
+                        missed.add(record);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read hints from " + file, e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            logger.error("Corrupt hint in " + file, e);
+            return null;
+        } finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            } catch (IOException e) {
+                logger.error("Error: ", e);
+            }
+        }
+        Collections.sort(missed, new Comparator<ReplicationRecord>() {
+            public int compare(ReplicationRecord a, ReplicationRecord b) {
+                return Long.compare(a.seq, b.seq);
+            }
+        });
+        return missed;
+    }
+
+    /**
+     * Discards every hint, once the replica has caught up.
+     */
+    public synchronized void clear() {
+        try {
+            if (writer != null)
+                writer.close();
+        } catch (IOException e) {
+            logger.error("Error: ", e);
+        }
+        writer = null;
+        file.delete();
+        size = 0;
+        firstSeq = -1;
+        overflowed = false;
+    }
+}
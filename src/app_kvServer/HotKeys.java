@@ -0,0 +1,76 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Count-min sketch of the reads a coordinator serves, used to find
+ * the few keys that get most of the traffic in constant memory.
+ * Counts are halved every decay, so a key stays hot only while it
+ * keeps being read.
+ */
+public class HotKeys {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024;
+
+    private final long[][] counts = new long[DEPTH][WIDTH];
+    private final Set<String> hot = new HashSet<String>();
+
+    /**
+     * Counts a read of a key.
+     *
+     * @param key       key that was read
+     * @param threshold estimated reads that make a key hot
+     * @return true if the key just became hot
+     */
+    public synchronized boolean record(String key, long threshold) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(key, row);
+            counts[row][i]++;
+            estimate = Math.min(estimate, counts[row][i]);
+        }
+        return estimate >= threshold && hot.add(key);
+    }
+
+    /**
+     * Halves every count and finds the hot keys that cooled down,
+     * those estimated below half the threshold.
+     *
+     * @param threshold estimated reads that make a key hot
+     * @return keys that are no longer hot
+     */
+    public synchronized List<String> decay(long threshold) {
+        for (long[] row : counts) {
+            for (int i = 0; i < WIDTH; i++) {
+                row[i] >>= 1;
+            }
+        }
+        List<String> cooled = new ArrayList<String>();
+        for (String key : hot) {
+            if (estimate(key) * 2 < threshold) {
+                cooled.add(key);
+            }
+        }
+        hot.removeAll(cooled);
+        return cooled;
+    }
+
+    private long estimate(String key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counts[row][index(key, row)]);
+        }
+        return estimate;
+    }
+
+    private static int index(String key, int row) {
+        // double hashing gives each row its own hash function
+        int h1 = key.hashCode();
+        int h2 = Integer.reverse(h1) * 0x9E3779B9 | 1;
+        return ((h1 + row * h2) & 0x7fffffff) % WIDTH;
+    }
+}
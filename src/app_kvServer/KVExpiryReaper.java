@@ -0,0 +1,40 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically deletes keys whose TTL has run out, a bounded number
+ * per sweep so writes are never held up for long, and now and then
+ * drops the versions kept for deleted keys.
+ */
+public class KVExpiryReaper implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+    private static final long SWEEP_INTERVAL = 1000;
+    // tombstones need a scan of every version, so less often
+    private static final int SWEEPS_PER_TOMBSTONE_SWEEP = 60;
+
+    private KVServer server;
+
+    public KVExpiryReaper(KVServer server) {
+        this.server = server;
+    }
+
+    public void run() {
+        int sweeps = 0;
+        while (server.isRunning()) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL);
+                server.reapExpired();
+                if (++sweeps % SWEEPS_PER_TOMBSTONE_SWEEP == 0) {
+                    server.sweepTombstones();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error(e);
+            }
+        }
+    }
+}
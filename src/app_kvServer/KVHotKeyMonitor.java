@@ -0,0 +1,33 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically ages the read counts of hot keys, takes back the
+ * extra copies of keys that cooled down and renews the others.
+ */
+public class KVHotKeyMonitor implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+    static final long DECAY_INTERVAL = 10000;
+
+    private KVServer server;
+
+    public KVHotKeyMonitor(KVServer server) {
+        this.server = server;
+    }
+
+    public void run() {
+        while (server.isRunning()) {
+            try {
+                Thread.sleep(DECAY_INTERVAL);
+                server.coolHotKeys();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically reports the load of this server's ranges to the ECS,
+ * which splits ranges that are hot.
+ */
+public class KVLoadReporter implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+    private static final long REPORT_INTERVAL = 10000;
+
+    private KVServer server;
+
+    public KVLoadReporter(KVServer server) {
+        this.server = server;
+    }
+
+    public void run() {
+        while (server.isRunning()) {
+            try {
+                Thread.sleep(REPORT_INTERVAL);
+                server.reportLoad();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error(e);
+            }
+        }
+    }
+}
@@ -1,93 +1,481 @@
 package app_kvServer;
 
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.net.BindException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import client.KVStore;
-import logger.LogSetup;
 import shared.messages.KVMessage;
 import shared.messages.CommProtocol;
 import shared.messages.IKVMessage.StatusType;
-import shared.Hash;
 
 public class KVReplica {
 
 	private static Logger logger = Logger.getRootLogger();
 
+    private static final int MAX_BATCH_RECORDS = 64;
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+    private static final int MAX_IN_FLIGHT_BATCHES = 8;
+    private static final long FLUSH_TIMEOUT = 2000;
+    private static final int SYNC_TIMEOUT = 5000;
+    private static final int MAX_LEAVES_PER_REQUEST = 16;
+
     public String hostname;
     public int port;
 
     public int replicaNum;
+    private String coordAddr; // this server, as the replica knows it
+    private final ReplicationLog log; // shared by all replicas of this server
+    private final HintQueue hints; // mutations missed while unreachable
     private Socket socket;
     private OutputStream output;
+    private InputStream input;
+
+    private final BlockingQueue<ReplicationRecord> queue =
+        new LinkedBlockingQueue<ReplicationRecord>();
+
+    private final Object seqLock = new Object();
+    private long lastSeq = 0;  // last sequence number handed out
+    private long ackedSeq = 0; // highest sequence number acknowledged
+    private final TreeMap<Long, List<CountDownLatch>> ackWaiters =
+        new TreeMap<Long, List<CountDownLatch>>();
 
-    public KVReplica(String hostname, int port, int replicaNum) {
+    private volatile boolean running;
+    private Thread sender;
+    private Thread ackReader;
+
+    public KVReplica(String hostname, int port, int replicaNum,
+            String coordAddr, ReplicationLog log, String hintPath) {
         this.hostname = hostname;
 		this.port = port;
         this.replicaNum = replicaNum;
+        this.coordAddr = coordAddr;
+        this.log = log;
+        this.hints = new HintQueue(hintPath);
     }
 
     /**
-     * Send a KVMessage to a replica server
-     * @param key key to send to replica
-     * @param val val to send to replica
+     * Queue a logged mutation to be sent to the replica server.
+     * Returns immediately; the record is sent in a batch by the
+     * sender thread. Records must be queued in log order, so
+     * callers append and queue while synchronized on the log.
+     * If the replica is unreachable the record is kept as a hint
+     * and replayed when it reconnects.
+     * @param record record from the replication log
+     * @return sequence number of the record, -1 if not connected
      */
-    public void putToReplica(String key, String val) {
+    public long putToReplica(ReplicationRecord record) {
+        synchronized (seqLock) {
+            if (!running) {
+                hints.add(record);
+                return -1;
+            }
+            lastSeq = record.seq;
+            queue.add(record);
+            return record.seq;
+        }
+    }
+
+    public boolean isConnected() {
+        return running;
+    }
+
+    /**
+     * @return number of mutations waiting to be handed off
+     */
+    public int getHintCount() {
+        return hints.size();
+    }
+
+    /**
+     * Compares the replica's copy of this coordinator's data with
+     * the given store using hash trees, and lists the keys that
+     * need to be resent. Only the root and leaf digests are
+     * exchanged, plus the keys of leaves that differ, so the
+     * traffic is proportional to the difference rather than the
+     * dataset. Runs over its own connection so it does not
+     * interleave with the batch stream.
+     *
+     * @param kvs snapshot of the coordinator's store
+     * @return keys that are missing, stale or extra on the replica
+     * @throws IOException if the replica could not be compared
+     */
+    public Set<String> findDivergentKeys(Map<String,String> kvs) throws IOException {
+        // the replica store must reflect everything already queued
+        flush(FLUSH_TIMEOUT);
+
+        Set<String> divergent = new HashSet<String>();
+        Socket syncSocket = new Socket(hostname, port);
         try {
-            CommProtocol.sendMessage(
-                new KVMessage(
-                    "PUT_FROM_COORDINATOR_" + replicaNum 
-                    + " " + key 
-                    + " " + val), output);
-        } catch (IOException e) {
-            logger.error("Error while sending Coordinator Values to Replica Server " + replicaNum, e);
+            syncSocket.setSoTimeout(SYNC_TIMEOUT);
+            OutputStream syncOutput = syncSocket.getOutputStream();
+            InputStream syncInput = syncSocket.getInputStream();
+
+            KVMessage res = syncRequest(
+                StatusType.MERKLE_TREE.name() + " " + coordAddr,
+                StatusType.MERKLE_TREE_SUCCESS, syncOutput, syncInput);
+            List<Integer> leaves;
+            try {
+                leaves = MerkleTree.build(kvs).diff(MerkleTree.parse(res.getValue()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid hash tree from replica", e);
+            }
+            logger.info("Replica " + replicaNum + " differs in " + leaves.size() + " leaves");
+
+            for (int i = 0; i < leaves.size(); i += MAX_LEAVES_PER_REQUEST) {
+                List<Integer> chunk = leaves.subList(
+                    i, Math.min(i + MAX_LEAVES_PER_REQUEST, leaves.size()));
+                StringBuilder indices = new StringBuilder();
+                for (int leaf : chunk) {
+                    if (indices.length() > 0) {
+                        indices.append(",");
+                    }
+                    indices.append(leaf);
+                }
+
+                res = syncRequest(
+                    StatusType.MERKLE_KEYS.name() + " " + coordAddr + " " + indices,
+                    StatusType.MERKLE_KEYS_SUCCESS, syncOutput, syncInput);
+                Map<String, String> remote = new HashMap<String, String>();
+                if (res.getValue() != null) {
+                    String[] pairs = res.getValue().split(" ");
+                    for (int j = 0; j + 1 < pairs.length; j += 2) {
+                        remote.put(pairs[j], pairs[j + 1]);
+                    }
+                }
+
+                Map<String, String> local = MerkleTree.entriesIn(kvs, chunk);
+                for (Map.Entry<String, String> entry : local.entrySet()) {
+                    if (!entry.getValue().equals(remote.get(entry.getKey()))) {
+                        divergent.add(entry.getKey());
+                    }
+                }
+                for (String key : remote.keySet()) {
+                    if (!local.containsKey(key)) {
+                        divergent.add(key);
+                    }
+                }
+            }
+        } finally {
+            syncSocket.close();
+        }
+        return divergent;
+    }
+
+    private KVMessage syncRequest(String request, StatusType expected,
+            OutputStream syncOutput, InputStream syncInput) throws IOException {
+        CommProtocol.sendMessage(new KVMessage(request), syncOutput);
+        KVMessage res = CommProtocol.receiveMessage(syncInput, false);
+        if (res.getStatus() != expected) {
+            throw new IOException("Unexpected anti-entropy response: " + res.getStatus());
         }
+        return res;
     }
 
-    public void copyMemoryToReplica(Map<String,String> kvs) {
-        for (Map.Entry<String, String> kv: kvs.entrySet()) {
-            putToReplica(kv.getKey(), kv.getValue());
+    /**
+     * @return highest sequence number acknowledged by the replica
+     */
+    public long getAckedSeq() {
+        synchronized (seqLock) {
+            return ackedSeq;
+        }
+    }
+
+    /**
+     * Counts down the latch once the replica has acknowledged
+     * the given sequence number. Used to collect acks from
+     * several replicas concurrently.
+     * @param seq sequence number returned by putToReplica
+     * @param latch latch to count down on acknowledgement
+     */
+    public void notifyOnAck(long seq, CountDownLatch latch) {
+        synchronized (seqLock) {
+            if (seq <= ackedSeq) {
+                latch.countDown();
+                return;
+            }
+            List<CountDownLatch> waiters = ackWaiters.get(seq);
+            if (waiters == null) {
+                waiters = new ArrayList<CountDownLatch>();
+                ackWaiters.put(seq, waiters);
+            }
+            waiters.add(latch);
+        }
+    }
+
+    /**
+     * Blocks until every queued mutation has been acknowledged
+     * or until the timeout expires.
+     * @param timeout timeout in milliseconds
+     * @return true if the replica caught up
+     */
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (seqLock) {
+            while (ackedSeq < lastSeq && running) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    seqLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return ackedSeq >= lastSeq;
         }
     }
 
-    public void connect() {
+    /**
+     * Connects to the replica and resumes replication from the last
+     * sequence number it applied. Records after that point are
+     * replayed from the replication log or, if the log has already
+     * discarded them, from the hints kept while it was unreachable.
+     *
+     * @return true if the replica resumed from the log; false if it
+     *         could not be reached, or its position is unknown or no
+     *         longer in the log and it needs a full sync
+     */
+    public synchronized boolean connect() {
         logger.info("Connecting to replica " + replicaNum + " at " + hostname + ":" + port);
+        closeConnection();
+
+        long appliedSeq;
         try {
             socket = new Socket(hostname, port);
             output = socket.getOutputStream();
+            input = socket.getInputStream();
+
+            socket.setSoTimeout(SYNC_TIMEOUT);
+            CommProtocol.sendMessage(
+                new KVMessage(
+                    StatusType.REPLICATION_RESUME.name()
+                    + " " + coordAddr
+                    + " " + log.getEpoch()), output);
+            KVMessage res = CommProtocol.receiveMessage(input, false);
+            socket.setSoTimeout(0);
+            appliedSeq = res.getStatus() == StatusType.REPLICATION_RESUME_SUCCESS
+                ? Long.parseLong(res.getValue()) : -1;
         } catch (IOException e) {
-            logger.error("Error connecting to Replica Server " + replicaNum, e);
+            logger.error("Error connecting to Replica Server " + replicaNum + ": " + e.getMessage());
+            closeConnection();
+            return false;
+        } catch (NumberFormatException e) {
+            logger.error("Invalid resume position from Replica Server " + replicaNum, e);
+            appliedSeq = -1;
+        }
+
+        boolean resumed;
+        synchronized (log) {
+            List<ReplicationRecord> missed = log.since(appliedSeq);
+            if (missed == null) {
+                // nothing is logged while disconnected, hints run up to now
+                missed = hints.since(appliedSeq);
+            }
+            resumed = missed != null;
+            hints.clear();
+            synchronized (seqLock) {
+                queue.clear();
+                if (resumed) {
+                    queue.addAll(missed);
+                    ackedSeq = appliedSeq;
+                } else {
+                    // earlier records are covered by the full sync
+                    ackedSeq = log.getLastSeq();
+                }
+                lastSeq = log.getLastSeq();
+                running = true;
+            }
         }
+        logger.info("Replica " + replicaNum + " at sequence " + appliedSeq
+            + (resumed ? ", replaying " + (lastSeq - appliedSeq) + " records" : ", needs full sync"));
+
+        final OutputStream out = output;
+        final InputStream in = input;
+        final Semaphore window = new Semaphore(MAX_IN_FLIGHT_BATCHES);
+        sender = new Thread(new Runnable() {
+            public void run() {
+                sendBatches(out, window);
+            }
+        });
+        ackReader = new Thread(new Runnable() {
+            public void run() {
+                readAcks(in, window);
+            }
+        });
+        sender.start();
+        ackReader.start();
+        return resumed;
     }
 
-    public void disconnect() {
+    public synchronized void disconnect() {
         logger.info("Disconnecting from replica " + replicaNum + " at " + hostname + ":" + port);
+        if (!flush(FLUSH_TIMEOUT)) {
+            logger.warn("Replica " + replicaNum + " did not acknowledge all writes before disconnect");
+        }
+        closeConnection();
+    }
+
+    /**
+     * Disconnects for good, when this server no longer replicates
+     * to the replica, and discards its hints.
+     */
+    public synchronized void close() {
+        disconnect();
+        hints.clear();
+    }
+
+    /**
+     * Closes the current connection and waits for its threads to
+     * exit so that they cannot race with a new connection.
+     */
+    private void closeConnection() {
+        stopSending(Collections.<ReplicationRecord>emptyList());
+        if (sender != null) {
+            sender.interrupt();
+        }
         try {
-            output.close();
-            socket.close();
+            if (output != null)
+                output.close();
+            if (socket != null)
+                socket.close();
         } catch (IOException e) {
             logger.error("Error: ", e);
         }
+        try {
+            if (sender != null)
+                sender.join(FLUSH_TIMEOUT);
+            if (ackReader != null)
+                ackReader.join(FLUSH_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender = null;
+        ackReader = null;
+        output = null;
+        input = null;
+        socket = null;
+    }
+
+    /**
+     * Sender loop: drains the queue into multi-record frames and
+     * writes them without waiting for the previous frame's ack,
+     * up to MAX_IN_FLIGHT_BATCHES outstanding frames.
+     */
+    private void sendBatches(OutputStream output, Semaphore inFlight) {
+        List<ReplicationRecord> batch = new ArrayList<ReplicationRecord>();
+        while (running) {
+            try {
+                batch.clear();
+                batch.add(queue.take());
+                int chars = batch.get(0).encodedLength();
+                ReplicationRecord next;
+                while (batch.size() < MAX_BATCH_RECORDS
+                        && (next = queue.peek()) != null
+                        && chars + next.encodedLength() <= MAX_BATCH_CHARS) {
+                    batch.add(queue.poll());
+                    chars += next.encodedLength();
+                }
+
+                inFlight.acquire();
+                if (!running) {
+                    // the ack reader gave up on this connection
+                    stopSending(batch);
+                    return;
+                }
+                CommProtocol.sendMessage(
+                    new KVMessage(
+                        StatusType.PUT_BATCH_FROM_COORDINATOR.name()
+                        + " " + coordAddr
+                        + " " + ReplicationRecord.encode(batch)), output);
+            } catch (InterruptedException e) {
+                // disconnect requested
+                stopSending(batch);
+                return;
+            } catch (IOException e) {
+                logger.error("Error while sending Coordinator Values to Replica Server " + replicaNum, e);
+                stopSending(batch);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops queueing records on this connection and keeps the
+     * records that have not been sent as hints.
+     *
+     * @param unsent records taken off the queue but not sent
+     */
+    private void stopSending(List<ReplicationRecord> unsent) {
+        synchronized (seqLock) {
+            running = false;
+            for (ReplicationRecord record : unsent) {
+                hints.add(record);
+            }
+            ReplicationRecord record;
+            while ((record = queue.poll()) != null) {
+                hints.add(record);
+            }
+        }
+    }
+
+    /**
+     * Ack loop: records the highest acknowledged sequence number and
+     * opens up the in-flight window as frames are acknowledged.
+     * Any other reply means the replica is not applying the frames,
+     * so the connection is dropped and unsent records become hints.
+     */
+    private void readAcks(InputStream input, Semaphore inFlight) {
+        while (running) {
+            try {
+                KVMessage ack = CommProtocol.receiveMessage(input, false);
+                if (ack.getStatus() != StatusType.PUT_BATCH_ACK) {
+                    logger.warn("Replica Server " + replicaNum + " replied "
+                        + ack.getStatus() + " instead of an ack, disconnecting");
+                    break;
+                }
+                long seq = Long.parseLong(ack.getValue());
+                synchronized (seqLock) {
+                    ackedSeq = Math.max(ackedSeq, seq);
+                    SortedMap<Long, List<CountDownLatch>> acked =
+                        ackWaiters.headMap(ackedSeq, true);
+                    for (List<CountDownLatch> waiters : acked.values()) {
+                        for (CountDownLatch latch : waiters) {
+                            latch.countDown();
+                        }
+                    }
+                    acked.clear();
+                    seqLock.notifyAll();
+                }
+                inFlight.release();
+            } catch (SocketException e) {
+                // socket closed on disconnect
+                break;
+            } catch (IOException e) {
+                logger.error("Lost connection to Replica Server " + replicaNum, e);
+                break;
+            } catch (NumberFormatException e) {
+                logger.error("Invalid ack from Replica Server " + replicaNum, e);
+                break;
+            }
+        }
+        stopSending(Collections.<ReplicationRecord>emptyList());
+        synchronized (seqLock) {
+            // waiters will not be acknowledged on this connection
+            ackWaiters.clear();
+            seqLock.notifyAll();
+        }
+        // wake a sender waiting for the window so it keeps its batch as hints
+        inFlight.release(MAX_IN_FLIGHT_BATCHES);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,33 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically reconnects replicas that became unreachable so the
+ * writes they missed are handed off without waiting for a rebalance.
+ */
+public class KVReplicaMonitor implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+    private static final long RETRY_INTERVAL = 1000;
+
+    private KVServer server;
+
+    public KVReplicaMonitor(KVServer server) {
+        this.server = server;
+    }
+
+    public void run() {
+        while (server.isRunning()) {
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+                server.reconnectReplicas();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error(e);
+            }
+        }
+    }
+}
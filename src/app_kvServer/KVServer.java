@@ -16,6 +16,11 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.math.BigInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -37,14 +42,17 @@ public class KVServer extends Thread implements IKVServer {
 
 	private static Logger logger = Logger.getRootLogger();
 
+	private static final long WRITE_CONCERN_TIMEOUT = 2000;
+	private static final int REAP_BATCH = 100;
+	private static final int REBALANCE_BATCH_CHARS = 64 * 1024;
+
 	private boolean running;
 	private boolean startedByECS;
 	private boolean startedBySelf;
 	private boolean rebalancing;
 
 	private Map<String, String> kvs;
-	private Map<String, String> kvs_rep1;
-	private Map<String, String> kvs_rep2;
+	private Map<String, Map<String, String>> replicaStores; // keyed by coordinator
 	private Map<String, BigInteger[]> metadata;
 	private Map<String, String> subscribers;
 
@@ -63,14 +71,79 @@ public class KVServer extends Thread implements IKVServer {
 	private KVServerHeartbeat heartbeat;
 
 	public String dataPath = "./storage.json";
-	public String replica1DataPath = "./storage_replica_1.json";
-	public String replica2DataPath = "./storage_replica_2.json";
 
-	private String coord1Addr; // kv server sending data stored in kvs_rep1
-	private String coord2Addr; // kv server sending data stored in kvs_rep2
+	public int replicationFactor = 3; // copies of every key, coordinator included; set by ECS
+	public int weight = 1; // capacity relative to other servers, sent to ECS
+	public volatile boolean chainReplication = false; // set by ECS, star otherwise
+
+	// kv servers sending data stored in replicaStores, closest first
+	private List<String> coordinators;
+
+	// successors receiving this server's data, closest first
+	private volatile List<KVReplica> replicas;
+
+	// ring epoch of the metadata, assigned by the ECS; 0 until known
+	private volatile long ringEpoch = 0;
+
+	// connections to other servers for forwarded requests
+	private final ForwardPool forwardPool = new ForwardPool();
+
+	// version of every key held here, coordinator or replica; kept for
+	// deleted keys for tombstoneTtl so that a stale copy cannot win a
+	// quorum read, dropped for keys moved away
+	// guarded by its own monitor, never held while taking r or w
+	private final Map<String, Long> versions = new HashMap<String, Long>();
+	public long tombstoneTtl = 60 * 60 * 1000; // ms
+	// orders coordinator writes and repairs so versions follow apply order
+	private final Object writeOrder = new Object();
+
+	// expiry times of coordinator keys written with a TTL
+	private final ExpiryIndex expiries = new ExpiryIndex();
+	// expiry times of replica store keys, by coordinator; never reaped
+	// here, they move to expiries when the keys are promoted
+	// guarded by itself, a leaf like versions
+	private final Map<String, Map<String, Long>> replicaExpiries =
+		new HashMap<String, Map<String, Long>>();
+
+	// requests served per token, reported to the ECS
+	private final RangeLoad rangeLoad = new RangeLoad();
+
+	// reads of the keys this server coordinates; hot keys are copied
+	// to extra servers, listed in hotKeyServers, until they cool down
+	public int hotKeyThreshold = 1000; // reads per decay period
+	private static final int HOT_KEY_REPLICAS = 2;
+	private final HotKeys hotKeys = new HotKeys();
+	private final Map<String, List<String>> hotKeyServers = new HashMap<String, List<String>>();
+
+	// copies of other servers' hot keys, as {servers, value}, and when
+	// each was last sent; a copy not renewed within hotCopyLease is
+	// no longer served, in case its coordinator failed or moved it
+	public long hotCopyLease = 2 * KVHotKeyMonitor.DECAY_INTERVAL;
+	private final Map<String, String[]> hotCopies = new HashMap<String, String[]>();
+	private final Map<String, Long> hotCopyTimes = new HashMap<String, Long>(); // guarded by hotCopies
+
+	// sends hot key copies in the order the writes happened
+	private final ExecutorService hotKeyExecutor =
+		Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hot-keys");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	// mutations sent to replicas, replayed when a replica reconnects
+	private final ReplicationLog replicationLog = new ReplicationLog();
 
-	public KVReplica replica1;
-	public KVReplica replica2;
+	// chain mode: per coordinator whose chain continues past this
+	// server, the successor its writes are passed on to and the log
+	// they are passed on from; guarded by forwarders
+	private final Map<String, KVReplica> forwarders = new HashMap<String, KVReplica>();
+	private final Map<String, ReplicationLog> forwardLogs = new HashMap<String, ReplicationLog>();
+
+	// per coordinator: epoch of its replication log, last applied sequence
+	private final Map<String, String> replicationEpochs = new HashMap<String, String>();
+	private final Map<String, Long> appliedSeqs = new HashMap<String, Long>();
 
 	private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
 	private final Lock r = rwl.readLock();
@@ -95,8 +168,9 @@ public class KVServer extends Thread implements IKVServer {
 
 		// initialize empty hashmaps for KV caching
 		kvs = new HashMap<String, String>();
-		kvs_rep1 = new HashMap<String, String>();
-		kvs_rep2 = new HashMap<String, String>();
+		replicaStores = new HashMap<String, Map<String, String>>();
+		coordinators = new ArrayList<String>();
+		replicas = new ArrayList<KVReplica>();
 
 		// initialize new metadata hashmap
 		metadata = new HashMap<String, BigInteger[]>();
@@ -132,7 +206,7 @@ public class KVServer extends Thread implements IKVServer {
 			output = ecsSocket.getOutputStream();
 
 			CommProtocol.sendMessage(new KVMessage(
-					"NEW_SERVER " + address + " " + port), output);
+					"NEW_SERVER " + address + " " + port + " " + weight), output);
 
 			heartbeat = new KVServerHeartbeat(ecsSocket, address, port);
 			new Thread(heartbeat).start();
@@ -296,7 +370,15 @@ public class KVServer extends Thread implements IKVServer {
 	 */
 	@Override
 	public boolean inStorage(String key) {
-		return kvs.containsKey(key) || kvs_rep1.containsKey(key) || kvs_rep2.containsKey(key);
+		if (kvs.containsKey(key)) {
+			return true;
+		}
+		for (Map<String, String> store : replicaStores.values()) {
+			if (store.containsKey(key)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -313,14 +395,14 @@ public class KVServer extends Thread implements IKVServer {
 		try {
 			if (kvs.containsKey(key)) {
 				return kvs.get(key);
-			} else if (kvs_rep1.containsKey(key)) {
-				return kvs_rep1.get(key);
-			} else if (kvs_rep2.containsKey(key)) {
-				return kvs_rep2.get(key);
-			} else {
-				throw new Exception(
-						"Key not in key range of server.");
 			}
+			for (Map<String, String> store : replicaStores.values()) {
+				if (store.containsKey(key)) {
+					return store.get(key);
+				}
+			}
+			throw new Exception(
+					"Key not in key range of server.");
 		} finally {
 			r.unlock();
 		}
@@ -360,15 +442,186 @@ public class KVServer extends Thread implements IKVServer {
 				throw new Exception("Null Value!");
 			}
 			kvs.put(key, value);
-			if (this.kvs_rep1 == kvs)
-				writeToStorage(kvs, replica1DataPath);
-			if (this.kvs_rep2 == kvs)
-				writeToStorage(kvs, replica2DataPath);
+			writeToStorage(kvs, storagePath(kvs));
+		} finally {
+			w.unlock();
+		}
+	}
+
+	/**
+	 * Path of the JSON file replicated data from a coordinator
+	 * is persisted to, next to this server's own storage file.
+	 * 
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 * @return path to replica JSON file
+	 */
+	public String replicaDataPath(String coordAddr) {
+		Path parent = Paths.get(dataPath).getParent();
+		String fileName = "storage_replica_" + coordAddr.replace(':', '_') + ".json";
+		return parent == null ? fileName : parent.resolve(fileName).toString();
+	}
+
+	/**
+	 * Path of the file hints for an unreachable replica are kept
+	 * in, next to this server's own storage file.
+	 * 
+	 * @param replicaAddr "ADDR:PORT" of the replica
+	 * @return path to hint file
+	 */
+	public String hintPath(String replicaAddr) {
+		Path parent = Paths.get(dataPath).getParent();
+		String fileName = "hints_" + this.port + "_" + replicaAddr.replace(':', '_') + ".hints";
+		return parent == null ? fileName : parent.resolve(fileName).toString();
+	}
+
+	/**
+	 * Path of the file hints for writes of another coordinator that
+	 * are passed down its chain are kept in.
+	 * 
+	 * @param replicaAddr "ADDR:PORT" of the next server in the chain
+	 * @param coordAddr   "ADDR:PORT" of the coordinator
+	 * @return path to hint file
+	 */
+	public String hintPath(String replicaAddr, String coordAddr) {
+		String path = hintPath(replicaAddr);
+		return path.substring(0, path.length() - ".hints".length())
+				+ "_from_" + coordAddr.replace(':', '_') + ".hints";
+	}
+
+	/**
+	 * Path of the JSON file the expiry times of keys written with a
+	 * TTL are persisted to, next to this server's own storage file.
+	 * 
+	 * @return path to expiry JSON file
+	 */
+	public String expiryDataPath() {
+		return dataPath.endsWith(".json")
+				? dataPath.substring(0, dataPath.length() - ".json".length()) + "_ttl.json"
+				: dataPath + "_ttl";
+	}
+
+	/**
+	 * Finds the file a storage map is persisted to.
+	 * 
+	 * @param store kvs or one of the replica stores
+	 * @return path to JSON file
+	 */
+	private String storagePath(Map<String, String> store) {
+		if (store == this.kvs) {
+			return dataPath;
+		}
+		for (Map.Entry<String, Map<String, String>> replicaStore : replicaStores.entrySet()) {
+			if (replicaStore.getValue() == store) {
+				return replicaDataPath(replicaStore.getKey());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the replica store for a coordinator, creating it
+	 * if this is the first data received from it.
+	 * 
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 * @return replica store
+	 */
+	private Map<String, String> replicaStore(String coordAddr) {
+		w.lock();
+		try {
+			Map<String, String> store = replicaStores.get(coordAddr);
+			if (store == null) {
+				store = new HashMap<String, String>();
+				replicaStores.put(coordAddr, store);
+			}
+			return store;
+		} finally {
+			w.unlock();
+		}
+	}
+
+	/**
+	 * Drops the replica store of a coordinator and clears
+	 * its persisted file.
+	 * 
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 */
+	private void dropReplicaStore(String coordAddr) {
+		synchronized (appliedSeqs) {
+			replicationEpochs.remove(coordAddr);
+			appliedSeqs.remove(coordAddr);
+		}
+		synchronized (replicaExpiries) {
+			replicaExpiries.remove(coordAddr);
+		}
+		w.lock();
+		try {
+			Map<String, String> store = replicaStores.remove(coordAddr);
+			if (store != null) {
+				forgetVersions(store.keySet());
+				store.clear();
+				writeToStorage(store, replicaDataPath(coordAddr));
+			}
 		} finally {
 			w.unlock();
 		}
 	}
 
+	/**
+	 * @param coordAddr "ADDR:PORT" of the coordinator whose replica
+	 *                  store holds the key, null for kvs
+	 * @param key       key to look up
+	 * @return time the key expires at, or -1 if it does not expire
+	 */
+	private long deadlineOf(String coordAddr, String key) {
+		if (coordAddr == null) {
+			return expiries.deadlineOf(key);
+		}
+		synchronized (replicaExpiries) {
+			Map<String, Long> deadlines = replicaExpiries.get(coordAddr);
+			Long deadline = deadlines == null ? null : deadlines.get(key);
+			return deadline == null ? -1 : deadline;
+		}
+	}
+
+	/**
+	 * Records the expiry time a coordinator gave a replicated key.
+	 * 
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 * @param key       replicated key
+	 * @param deadline  time the key expires at, -1 if it does not
+	 */
+	private void setReplicaDeadline(String coordAddr, String key, long deadline) {
+		synchronized (replicaExpiries) {
+			Map<String, Long> deadlines = replicaExpiries.get(coordAddr);
+			if (deadline < 0) {
+				if (deadlines != null) {
+					deadlines.remove(key);
+				}
+				return;
+			}
+			if (deadlines == null) {
+				deadlines = new HashMap<String, Long>();
+				replicaExpiries.put(coordAddr, deadlines);
+			}
+			deadlines.put(key, deadline);
+		}
+	}
+
+	/**
+	 * Get the replica that receives this server's data at the
+	 * given position in the chain of successors.
+	 * 
+	 * @param replicaNum position of replica, starting at 1
+	 * @return the replica, or null if there is none
+	 */
+	public KVReplica getReplica(int replicaNum) {
+		List<KVReplica> current = replicas;
+		if (replicaNum < 1 || replicaNum > current.size()) {
+			return null;
+		}
+		return current.get(replicaNum - 1);
+	}
+
 	/**
 	 * Clear the local cache of the server
 	 */
@@ -398,6 +651,12 @@ public class KVServer extends Thread implements IKVServer {
 		setRunning(initializeServer());
 
 		if (serverSocket != null) {
+			new Thread(new KVReplicaMonitor(this)).start();
+			new Thread(new KVExpiryReaper(this)).start();
+			new Thread(new KVHotKeyMonitor(this)).start();
+			if (ecsSocket != null) {
+				new Thread(new KVLoadReporter(this)).start();
+			}
 			while (isRunning()) {
 				try {
 					Socket client = serverSocket.accept();
@@ -426,6 +685,9 @@ public class KVServer extends Thread implements IKVServer {
 	@Override
 	public void kill() {
 		logger.info("Killing server");
+		if (heartbeat != null) {
+			heartbeat.stop();
+		}
 		if (serverSocket != null) {
 			try {
 				serverSocket.close();
@@ -444,12 +706,13 @@ public class KVServer extends Thread implements IKVServer {
 	public void close() {
 		logger.info("Closing server");
 		contactECSShutdown();
+		if (heartbeat != null) {
+			heartbeat.stop();
+		}
 
-		kvs_rep1.clear();
-		writeToStorage(kvs_rep1, replica1DataPath);
-		kvs_rep2.clear();
-		writeToStorage(kvs_rep2, replica2DataPath);
-
+		for (String coordAddr : new ArrayList<String>(replicaStores.keySet())) {
+			dropReplicaStore(coordAddr);
+		}
 
 		try {
 			rebalanceSubscribers();
@@ -465,6 +728,7 @@ public class KVServer extends Thread implements IKVServer {
 						"Unable to close socket on port: " + port, e);
 			}
 		}
+		forwardPool.close();
 		setRunning(false);
 	}
 
@@ -517,10 +781,24 @@ public class KVServer extends Thread implements IKVServer {
 				String keyStr = (String) key;
 				String valStr = (String) jsonObject.get(keyStr);
 				kvs.put(keyStr, valStr);
+				// versions are not persisted; a loaded key is not new
+				newVersion(keyStr);
 			}
 		} catch (Exception e) {
 			logger.info("Using new empty storage map.");
 		}
+
+		try {
+			JSONObject jsonObject = (JSONObject) parser.parse(new FileReader(expiryDataPath()));
+			for (Object key : jsonObject.keySet()) {
+				String keyStr = (String) key;
+				if (kvs.containsKey(keyStr)) {
+					expiries.set(keyStr, Long.parseLong((String) jsonObject.get(keyStr)));
+				}
+			}
+		} catch (Exception e) {
+			logger.info("No key expiry times to restore.");
+		}
 	}
 
 	public Map<String, String> getSubscribers() {
@@ -551,186 +829,388 @@ public class KVServer extends Thread implements IKVServer {
 		return nodePositions;
 	}
 
+	/**
+	 * Gets order of servers by the position of their first token.
+	 * Replicas and coordinators are neighbours in this order, even
+	 * when servers also hold virtual tokens elsewhere on the ring.
+	 * 
+	 * @return an ArrayList of the metadata entries of first tokens
+	 */
+	public List<Map.Entry<String, BigInteger[]>> getServerOrder() {
+		List<Map.Entry<String, BigInteger[]>> serverPositions = new ArrayList<Map.Entry<String, BigInteger[]>>();
+		for (Map.Entry<String, BigInteger[]> token : getNodeOrder()) {
+			if (Hash.serverOf(token.getKey()).equals(token.getKey())) {
+				serverPositions.add(token);
+			}
+		}
+		return serverPositions;
+	}
+
+	/**
+	 * Finds the server whose range holds a key. With virtual tokens
+	 * a server owns several ranges.
+	 * 
+	 * @param key key to look up
+	 * @return "ADDR:PORT" of the key's coordinator, null if no
+	 *         metadata is known
+	 */
+	private String coordinatorOf(String key) {
+		String token = tokenOf(key);
+		return token == null ? null : Hash.serverOf(token);
+	}
+
+	/**
+	 * @param key key to look up
+	 * @return token whose range holds the key, null if no metadata
+	 *         is known
+	 */
+	private String tokenOf(String key) {
+		for (Map.Entry<String, BigInteger[]> token : metadata.entrySet()) {
+			BigInteger[] kr = token.getValue();
+			if (Hash.inHashRange(key, kr[0], kr[1])) {
+				return token.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Counts a request against the token of its key if this server
+	 * coordinates the key.
+	 * 
+	 * @param status request type
+	 * @param key    key of the request
+	 */
+	private void recordLoad(StatusType status, String key) {
+		switch (status) {
+			case GET:
+			case GET_WITH_REPLICAS:
+			case GET_VERSIONED:
+			case GET_IF_MODIFIED:
+			case PUT:
+			case PUT_TTL:
+			case PUT_IF_VERSION:
+			case INCR:
+			case APPEND:
+				break;
+			default:
+				return;
+		}
+		String token = tokenOf(key);
+		if (token != null && Hash.serverOf(token).equals(this.address + ":" + this.port)) {
+			rangeLoad.record(token);
+		}
+	}
+
+	/**
+	 * Sends the ECS the load of this server's ranges.
+	 */
+	public void reportLoad() {
+		try {
+			CommProtocol.sendMessage(loadReport(), ecsSocket.getOutputStream());
+		} catch (IOException e) {
+			logger.error("Failed to send load report", e);
+		}
+	}
+
+	/**
+	 * Builds the load report sent to the ECS periodically.
+	 * 
+	 * Format:
+	 * LOAD_REPORT ADDR:PORT TOKEN,REQUESTS_PER_SECOND,KEYS;...
+	 * 
+	 * with an entry for every token of this server.
+	 * 
+	 * @return load report
+	 */
+	public KVMessage loadReport() {
+		String self = this.address + ":" + this.port;
+		Map<String, Long> rates = rangeLoad.takeRates();
+		Map<String, Long> keys = new HashMap<String, Long>();
+		r.lock();
+		try {
+			for (String token : metadata.keySet()) {
+				if (Hash.serverOf(token).equals(self)) {
+					keys.put(token, 0L);
+				}
+			}
+			for (String key : kvs.keySet()) {
+				String token = tokenOf(key);
+				if (keys.containsKey(token)) {
+					keys.put(token, keys.get(token) + 1);
+				}
+			}
+		} finally {
+			r.unlock();
+		}
+
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, Long> token : keys.entrySet()) {
+			Long rate = rates.get(token.getKey());
+			report.append(token.getKey() + ","
+					+ (rate == null ? 0 : rate) + ","
+					+ token.getValue() + ";");
+		}
+		return new KVMessage(
+				StatusType.LOAD_REPORT.name() + " " + self + " " + report);
+	}
+
+	/**
+	 * @param key key to check
+	 * @return true if this server coordinates the key
+	 */
+	private boolean isCoordinator(String key) {
+		return (this.address + ":" + this.port).equals(coordinatorOf(key));
+	}
+
 	private void moveRepToMain(String failNodeAddr) {
-		Map<String, String> kvsToRecover;
-		if (coord1Addr == failNodeAddr) {
-			logger.info("Recovering keys from Coordinator 1");
-			kvsToRecover = kvs_rep1;
-		} else if (coord2Addr == failNodeAddr) {
-			logger.info("Recovering keys from Coordinator 2");
-			kvsToRecover = kvs_rep2;
-		} else {
+		Map<String, String> kvsToRecover = replicaStores.get(failNodeAddr);
+		if (kvsToRecover == null) {
 			logger.error("Server not responsible for key recovery for " + failNodeAddr);
 			return;
 		}
+		logger.info("Recovering keys from Coordinator " + failNodeAddr);
+		// with virtual tokens the failed server's ranges are spread
+		// over several servers; keys of other servers are passed on
+		Map<String, Map<String, String>> handOff = new HashMap<String, Map<String, String>>();
+		// keys keep the expiry time their coordinator gave them
+		Map<String, Long> deadlines = new HashMap<String, Long>();
 		w.lock();
 		try {
 			for (Map.Entry<String, String> k : kvsToRecover.entrySet()) {
+				long deadline = deadlineOf(failNodeAddr, k.getKey());
+				String owner = coordinatorOf(k.getKey());
+				if (owner != null && !owner.equals(this.address + ":" + this.port)) {
+					if (!handOff.containsKey(owner)) {
+						handOff.put(owner, new HashMap<String, String>());
+					}
+					handOff.get(owner).put(k.getKey(), k.getValue());
+					deadlines.put(k.getKey(), deadline);
+					continue;
+				}
 				logger.info("Putting " + k.getKey() + " into own storage");
 				kvs.put(k.getKey(), k.getValue());
-				if (replica1 != null)
-					replica1.putToReplica(k.getKey(), k.getValue());
-				if (replica2 != null)
-					replica2.putToReplica(k.getKey(), k.getValue());
+				if (deadline < 0) {
+					expiries.remove(k.getKey());
+				} else {
+					expiries.set(k.getKey(), deadline);
+				}
+				replicate(k.getKey(), k.getValue(), getVersion(k.getKey()), deadline);
 			}
 			writeToStorage(kvs, dataPath);
 		} finally {
 			w.unlock();
 		}
+		dropReplicaStore(failNodeAddr);
+
+		for (Map.Entry<String, Map<String, String>> owner : handOff.entrySet()) {
+			logger.info("Passing recovered keys on to " + owner.getKey());
+			KVStore client = new KVStore(
+					owner.getKey().split(":")[0],
+					Integer.parseInt(owner.getKey().split(":")[1]));
+			try {
+				client.connect();
+				for (Map.Entry<String, String> k : owner.getValue().entrySet()) {
+					long deadline = deadlines.get(k.getKey());
+					if (deadline < 0) {
+						client.put(k.getKey(), k.getValue());
+					} else {
+						client.put(k.getKey(), k.getValue(),
+								Math.max(1, deadline - System.currentTimeMillis()));
+					}
+				}
+			} catch (Exception e) {
+				logger.error("Unable to pass recovered keys on to " + owner.getKey(), e);
+			} finally {
+				client.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * @param n number of servers on the ring
+	 * @return replicas every coordinator keeps: one fewer than the
+	 *         replication factor, and at most every other server
+	 */
+	private int replicaCount(int n) {
+		return Math.min(replicationFactor - 1, n - 1);
+	}
+
+	/**
+	 * Finds the servers at the given offsets from this server
+	 * in the hash ring. Offsets wrap around the ring but never
+	 * come back to this server.
+	 * 
+	 * @param nodePositions nodes in ring order
+	 * @param direction     1 for successors, -1 for predecessors
+	 * @return addresses, closest first; at most replicationFactor - 1
+	 */
+	private List<String> ringNeighbours(
+			List<Map.Entry<String, BigInteger[]>> nodePositions, int direction) {
+		List<String> neighbours = new ArrayList<String>();
+		int n = nodePositions.size();
+		for (int i = 0; i < n; i++) {
+			if (nodePositions.get(i).getKey().equals(this.address + ":" + this.port)) {
+				int count = replicaCount(n);
+				for (int j = 1; j <= count; j++) {
+					neighbours.add(nodePositions.get(((i + direction * j) % n + n) % n).getKey());
+				}
+				break;
+			}
+		}
+		return neighbours;
 	}
 
 	/**
 	 * Find the positions of the nodes in the hash ring,
-	 * thus finding this node's predecessors.
+	 * thus finding this node's predecessors. Takes over the
+	 * keys of removed predecessors and drops the replicated
+	 * data of servers that are no longer predecessors.
 	 */
 	public void updateCoordinators(
 			List<Map.Entry<String, BigInteger[]>> newNodeOrder) {
-		int n = newNodeOrder.size();
+		List<String> newCoordinators = ringNeighbours(newNodeOrder, -1);
 
-		String newCoord1Addr = null;
-		String newCoord2Addr = null;
+		logger.info("Old coordinators: " + coordinators);
+		logger.info("New coordinators: " + newCoordinators);
 
-		if (n == 2) {
-			for (int i = 0; i < n; i++) {
-				if (newNodeOrder.get(i).getKey().equals(this.address + ":" + this.port)) {
-					newCoord1Addr = newNodeOrder.get(((i - 1) + n) % n).getKey();
-					break;
-				}
+		// Move keys to main storage as part of node removal. A removed
+		// coordinator's range falls to us only if every coordinator
+		// between it and us was removed as well.
+		for (String coordAddr : coordinators) {
+			if (metadata.keySet().contains(coordAddr)) {
+				break;
 			}
-		} else if (n > 2) {
-			for (int i = 0; i < n; i++) {
-				if (newNodeOrder.get(i).getKey().equals(this.address + ":" + this.port)) {
-					newCoord1Addr = newNodeOrder.get(((i - 1) + n) % n).getKey();
-					newCoord2Addr = newNodeOrder.get(((i - 2) + n) % n).getKey();
-					break;
-				}
+			moveRepToMain(coordAddr);
+		}
+
+		for (String coordAddr : new ArrayList<String>(replicaStores.keySet())) {
+			if (!newCoordinators.contains(coordAddr)) {
+				dropReplicaStore(coordAddr);
 			}
 		}
 
-		logger.info("Old coordinator 1: " + coord1Addr);
-		logger.info("Old coordinator 2: " + coord2Addr);
-		logger.info("New coordinator 1: " + newCoord1Addr);
-		logger.info("New coordinator 2: " + newCoord2Addr);
+		coordinators = newCoordinators;
+		updateForwarders();
+	}
 
-		// Move keys to main storage as part of node removal
-		if (coord1Addr != null && !metadata.keySet().contains(coord1Addr)) {
-			moveRepToMain(coord1Addr);
-			// furthermore, if the new node order doesn't have 2nd coordinator as well
-			if (coord2Addr != null && !metadata.keySet().contains(coord2Addr)) {
-				moveRepToMain(coord2Addr);
+	/**
+	 * In chain mode, finds the coordinators whose chain continues
+	 * past this server and passes their writes on to this server's
+	 * successor. Forwarding that is no longer needed is stopped.
+	 */
+	private void updateForwarders() {
+		List<KVReplica> current = replicas;
+		String successor = current.isEmpty()
+				? null : current.get(0).hostname + ":" + current.get(0).port;
+
+		Map<String, String> wanted = new HashMap<String, String>();
+		if (chainReplication && successor != null) {
+			// the last coordinator is the one this server is the tail for
+			for (int i = 0; i + 1 < coordinators.size(); i++) {
+				if (!coordinators.get(i).equals(successor)) {
+					wanted.put(coordinators.get(i), successor);
+				}
 			}
 		}
 
-		// todo cleanup
+		List<KVReplica> added = new ArrayList<KVReplica>();
+		List<KVReplica> removed = new ArrayList<KVReplica>();
+		synchronized (forwarders) {
+			for (String coordAddr : new ArrayList<String>(forwarders.keySet())) {
+				KVReplica forwarder = forwarders.get(coordAddr);
+				String target = forwarder.hostname + ":" + forwarder.port;
+				if (!target.equals(wanted.get(coordAddr))) {
+					forwarders.remove(coordAddr);
+					forwardLogs.remove(coordAddr);
+					removed.add(forwarder);
+				}
+			}
+			for (Map.Entry<String, String> chain : wanted.entrySet()) {
+				String coordAddr = chain.getKey();
+				if (forwarders.containsKey(coordAddr)) {
+					continue;
+				}
+				int position = coordinators.indexOf(coordAddr) + 2;
+				ReplicationLog log = new ReplicationLog();
+				KVReplica forwarder = new KVReplica(
+						chain.getValue().split(":")[0],
+						Integer.parseInt(chain.getValue().split(":")[1]),
+						position,
+						coordAddr,
+						log,
+						hintPath(chain.getValue(), coordAddr));
+				forwarders.put(coordAddr, forwarder);
+				forwardLogs.put(coordAddr, log);
+				added.add(forwarder);
+			}
+		}
 
-		if (coord1Addr != null && coord1Addr.equals(newCoord2Addr)) {
-			kvs_rep2 = new HashMap<String, String>(kvs_rep1);
-			writeToStorage(kvs_rep2, replica2DataPath);
-			kvs_rep1.clear();
-			writeToStorage(kvs_rep1, replica1DataPath);
-		} else if (newCoord1Addr == null || coord1Addr != null && !coord1Addr.equals(newCoord1Addr)) {
-			kvs_rep1.clear(); // we have become the new replica of a new coordinator
-			writeToStorage(kvs_rep1, replica1DataPath);
+		for (KVReplica forwarder : removed) {
+			logger.info("Stopping chain forwarding to " + forwarder.hostname + ":" + forwarder.port);
+			forwarder.close();
 		}
-		if (coord2Addr != null && coord2Addr.equals(newCoord1Addr)) {
-			kvs_rep1 = new HashMap<String, String>(kvs_rep2);
-			writeToStorage(kvs_rep1, replica1DataPath);
-			kvs_rep2.clear();
-			writeToStorage(kvs_rep2, replica1DataPath);
-		} else if (newCoord2Addr == null || coord2Addr != null && !coord2Addr.equals(newCoord2Addr)) {
-			kvs_rep2.clear(); // we have become the new replica of a new coordinator
-			writeToStorage(kvs_rep2, replica2DataPath);
+		for (KVReplica forwarder : added) {
+			logger.info("Forwarding chain writes to " + forwarder.hostname + ":" + forwarder.port);
+			connectForwarder(forwarder);
 		}
-
-		coord1Addr = newCoord1Addr;
-		coord2Addr = newCoord2Addr;
-
 	}
 
 	/**
 	 * Finds the positions of nodes in the hash ring, thus
 	 * finding this node's successors. Designates successors
-	 * as replicas and either moves replica position or
-	 * creates a new replica and copies its data over.
+	 * as replicas and either keeps an existing connection
+	 * or creates a new replica.
 	 */
 	public void updateReplicas(List<Map.Entry<String, BigInteger[]>> nodePositions) {
 
 		// first, find new replica addresses
-		String replica1Addr = null;
-		String replica2Addr = null;
+		List<String> replicaAddrs = ringNeighbours(nodePositions, 1);
+		if (chainReplication && replicaAddrs.size() > 1) {
+			// the rest of the chain is reached through the successor
+			replicaAddrs = replicaAddrs.subList(0, 1);
+		}
 
-		int n = nodePositions.size();
+		logger.info("Replica addrs: " + replicaAddrs);
 
-		if (n == 2) {
-			for (int i = 0; i < n; i++) {
-				if (nodePositions.get(i).getKey().equals(this.address + ":" + this.port)) {
-					replica1Addr = nodePositions.get((i + 1) % n).getKey();
-					break;
+		List<KVReplica> oldReplicas = replicas;
+		List<KVReplica> newReplicas = new ArrayList<KVReplica>();
+		List<KVReplica> addedReplicas = new ArrayList<KVReplica>();
+
+		for (int i = 0; i < replicaAddrs.size(); i++) {
+			String replicaAddr = replicaAddrs.get(i);
+			KVReplica replica = null;
+			for (KVReplica oldReplica : oldReplicas) {
+				if (replicaAddr.equals(oldReplica.hostname + ":" + oldReplica.port)) {
+					replica = oldReplica;
 				}
 			}
-		} else if (n > 2) {
-			for (int i = 0; i < n; i++) {
-				if (nodePositions.get(i).getKey().equals(this.address + ":" + this.port)) {
-					replica1Addr = nodePositions.get((i + 1) % n).getKey();
-					replica2Addr = nodePositions.get((i + 2) % n).getKey();
-					break;
-				}
+			if (replica == null) {
+				replica = new KVReplica(
+						replicaAddr.split(":")[0],
+						Integer.parseInt(replicaAddr.split(":")[1]),
+						i + 1,
+						this.address + ":" + this.port,
+						replicationLog,
+						hintPath(replicaAddr));
+				addedReplicas.add(replica);
 			}
+			replica.replicaNum = i + 1;
+			newReplicas.add(replica);
 		}
 
-		logger.info("Replica 1 addr: " + replica1Addr);
-		logger.info("Replica 2 addr: " + replica2Addr);
-
-		// temporarily store old replicas
-		KVReplica tempReplica2 = replica2;
-		KVReplica tempReplica1 = replica1;
+		// connect once listed so no mutation in between is missed
+		replicas = newReplicas;
+		for (KVReplica replica : addedReplicas) {
+			logger.info("Connecting to KVReplica " + replica.replicaNum);
+			connectReplica(replica);
+		}
 
-		if (replica1Addr == null) {
-			if (replica1 != null) {
-				logger.info("Removing replica 1");
-				replica1.disconnect();
-				replica1 = null;
-			}
-		} else {
-			if (tempReplica1 != null &&
-					replica1Addr.equals(tempReplica1.hostname + ":" + tempReplica1.port)) {
-				// do nothing
-			} else if (tempReplica2 != null &&
-					replica1Addr.equals(tempReplica2.hostname + ":" + tempReplica2.port)) {
-				replica1 = tempReplica2;
-				replica1.replicaNum = 1;
-			} else {
-				replica1 = new KVReplica(
-						replica1Addr.split(":")[0],
-						Integer.parseInt(replica1Addr.split(":")[1]),
-						1);
-				logger.info("Connecting to KVReplica 1");
-				replica1.connect();
-			}
-		}
-		if (replica2Addr == null) {
-			if (replica2 != null) {
-				logger.info("Removing replica 2");
-				replica2.disconnect();
-				replica2 = null;
-			}
-		} else {
-			if (tempReplica2 != null &&
-					replica2Addr.equals(tempReplica2.hostname + ":" + tempReplica2.port)) {
-				// do nothing
-			} else if (tempReplica1 != null &&
-					replica2Addr.equals(tempReplica1.hostname + ":" + tempReplica1.port)) {
-				replica2 = tempReplica1;
-				replica2.replicaNum = 2;
-			} else {
-				replica2 = new KVReplica(
-						replica2Addr.split(":")[0],
-						Integer.parseInt(replica2Addr.split(":")[1]),
-						2);
-				logger.info("Connecting to KVReplica 2");
-				replica2.connect();
+		for (KVReplica oldReplica : oldReplicas) {
+			if (!newReplicas.contains(oldReplica)) {
+				logger.info("Removing replica " + oldReplica.hostname + ":" + oldReplica.port);
+				oldReplica.close();
 			}
-
 		}
 	}
 
@@ -739,10 +1219,13 @@ public class KVServer extends Thread implements IKVServer {
 	 * string, and stores it in the metadata map.
 	 * 
 	 * Metadata string format:
-	 * KEYRANGE_START,KEYRANGE_END,ADDR:PORT;
+	 * KEYRANGE_START,KEYRANGE_END,TOKEN;
 	 * 
 	 * Metadata map format:
-	 * {"ADDR:PORT", [KEYRANGE_START, KEYRANGE_END]}
+	 * {"TOKEN", [KEYRANGE_START, KEYRANGE_END]}
+	 * 
+	 * where TOKEN is ADDR:PORT for a server's first token and
+	 * ADDR:PORT#i for its virtual tokens.
 	 * 
 	 * @param newMetadata string of new metadata
 	 */
@@ -762,6 +1245,60 @@ public class KVServer extends Thread implements IKVServer {
 		logger.info("Updated metadata to: " + newMetadata);
 	}
 
+	/**
+	 * Applies the changes the ECS made to the ring since the epoch
+	 * this server holds, instead of reparsing the whole ring.
+	 * 
+	 * Delta format, entries separated by ";":
+	 * KEYRANGE_START,KEYRANGE_END,TOKEN for a new or changed token
+	 * -TOKEN for a removed token
+	 * 
+	 * @param epoch     ring epoch after the changes
+	 * @param prevEpoch ring epoch the changes are based on
+	 * @param delta     changed entries, null if none
+	 * @return KEYRANGE_SUCCESS, or KEYRANGE_DELTA_ERROR if this server
+	 *         does not hold prevEpoch and needs the full metadata
+	 */
+	private KVMessage applyMetadataDelta(long epoch, String prevEpoch, String delta) {
+		try {
+			if (epoch < 0 || ringEpoch != Long.parseLong(prevEpoch)) {
+				logger.info("Metadata delta from epoch " + prevEpoch
+						+ " does not apply to epoch " + ringEpoch);
+				return new KVMessage(
+						StatusType.KEYRANGE_DELTA_ERROR.name()
+								+ " " + ringEpoch);
+			}
+		} catch (NumberFormatException e) {
+			return new KVMessage(
+					StatusType.KEYRANGE_DELTA_ERROR.name()
+							+ " " + ringEpoch);
+		}
+
+		if (delta != null) {
+			for (String entry : delta.split(";")) {
+				if (entry.isEmpty()) {
+					continue;
+				}
+				if (entry.startsWith("-")) {
+					metadata.remove(entry.substring(1));
+				} else {
+					String[] serverInfo = entry.split(",");
+					metadata.put(serverInfo[2], new BigInteger[] {
+							new BigInteger(serverInfo[0], 16),
+							new BigInteger(serverInfo[1], 16) });
+				}
+			}
+		}
+		ringEpoch = epoch;
+		logger.info("Applied metadata delta for epoch " + epoch + ": " + delta);
+
+		List<Map.Entry<String, BigInteger[]>> newNodeOrder = getServerOrder();
+		updateReplicas(newNodeOrder);
+		updateCoordinators(newNodeOrder);
+		return new KVMessage(
+				StatusType.KEYRANGE_SUCCESS.name());
+	}
+
 	/**
 	 * Takes metadata map and puts it into the metadata
 	 * string format:
@@ -793,7 +1330,8 @@ public class KVServer extends Thread implements IKVServer {
 	 * KEYRANGE_START,KEYRANGE_END,ADDR:PORT;...
 	 * 
 	 * Where the key ranges are the valid read keyranges
-	 * rather than write keyranges.
+	 * rather than write keyranges. In chain mode a range is only
+	 * read at the tail of its chain, the last server to apply it.
 	 * 
 	 * @return metadata string
 	 */
@@ -801,19 +1339,27 @@ public class KVServer extends Thread implements IKVServer {
 		StringBuilder metadataStr = new StringBuilder();
 		r.lock();
 		try {
-			BigInteger[] krStart;
-			List<Map.Entry<String, BigInteger[]>> nodePositions = getNodeOrder();
+			List<Map.Entry<String, BigInteger[]>> nodePositions = getServerOrder();
 			int n = nodePositions.size();
+			// every server holds replicas of its closest predecessors
+			int numReplicas = replicaCount(n);
 			for (int i = 0; i < n; i++) {
 				String addr = nodePositions.get(i).getKey();
-				BigInteger[] kr = nodePositions.get(i).getValue();
-				if (replica2 != null) {
-					krStart = nodePositions.get((i - 2 + n) % n).getValue();
-				} else if (replica1 != null) {
-					krStart = nodePositions.get((i - 1 + n) % n).getValue();
-				} else {
-					krStart = kr;
+				if (n < metadata.size()) {
+					List<BigInteger[]> ranges = readRanges(nodePositions, i);
+					for (int j = 0; j < ranges.size(); j++) {
+						metadataStr.append(
+								ranges.get(j)[0].toString(16) + "," +
+										ranges.get(j)[1].toString(16) + "," +
+										(j == 0 ? addr : addr + "#" + j) + ";");
+					}
+					continue;
 				}
+				BigInteger[] kr = chainReplication
+						? nodePositions.get((i - numReplicas + n) % n).getValue()
+						: nodePositions.get(i).getValue();
+				BigInteger[] krStart =
+						nodePositions.get((i - numReplicas + n) % n).getValue();
 				metadataStr.append(
 						krStart[0].toString(16) + "," +
 								kr[1].toString(16) + "," +
@@ -825,41 +1371,91 @@ public class KVServer extends Thread implements IKVServer {
 		return metadataStr.toString();
 	}
 
-	private void removeThisServerFromHashRange() {
-		List<Map.Entry<String, BigInteger[]>> nodePositions = getNodeOrder();
-		
-		int i = -1;
-
-		for (int j = 0; j < nodePositions.size(); j++) {
-			if (nodePositions.get(j).getKey().equals(this.address + ":" + this.port)) {
-				i = j;
-			}
-		}
-		nodePositions.remove(i);
-
-		int n = nodePositions.size();
-
-		if (n > 0) {
-			BigInteger startRange;
-			if (i == 0) {
-				startRange = nodePositions.get(n - 1).getValue()[1].add(BigInteger.ONE);
-			} else {
-				startRange = nodePositions.get(i - 1).getValue()[1].add(BigInteger.ONE);
-			}
-
-			if (i == n) {
-				i = 0;
-			}
+	/**
+	 * Checks whether a key is in the range this server serves reads
+	 * for: its own range and those of the predecessors it replicates.
+	 * 
+	 * @param key key to check
+	 * @return true if this server should hold the key
+	 */
+	private boolean inReadRange(String key) {
+		r.lock();
+		try {
+			List<Map.Entry<String, BigInteger[]>> nodePositions = getServerOrder();
+			int n = nodePositions.size();
+			int numReplicas = replicaCount(n);
+			for (int i = 0; i < n; i++) {
+				if (nodePositions.get(i).getKey().equals(this.address + ":" + this.port)) {
+					if (n < metadata.size()) {
+						for (BigInteger[] range : readRanges(nodePositions, i)) {
+							if (Hash.inHashRange(key, range[0], range[1])) {
+								return true;
+							}
+						}
+						return false;
+					}
+					BigInteger[] kr = chainReplication
+							? nodePositions.get((i - numReplicas + n) % n).getValue()
+							: nodePositions.get(i).getValue();
+					BigInteger[] krStart =
+							nodePositions.get((i - numReplicas + n) % n).getValue();
+					return Hash.inHashRange(key, krStart[0], kr[1]);
+				}
+			}
+			return false;
+		} finally {
+			r.unlock();
+		}
+	}
 
+	/**
+	 * Ranges a server serves reads for when servers hold virtual
+	 * tokens: the ranges of its own tokens and of the tokens of the
+	 * predecessors it replicates. In chain mode only the ranges of
+	 * the predecessor it is the tail for.
+	 * 
+	 * @param serverOrder servers in ring order
+	 * @param i           index of the server in serverOrder
+	 * @return key ranges
+	 */
+	private List<BigInteger[]> readRanges(
+			List<Map.Entry<String, BigInteger[]>> serverOrder, int i) {
+		int n = serverOrder.size();
+		int numReplicas = replicaCount(n);
+		Set<String> servers = new HashSet<String>();
+		for (int j = chainReplication ? numReplicas : 0; j <= numReplicas; j++) {
+			servers.add(serverOrder.get((i - j + n) % n).getKey());
+		}
 
-			BigInteger position = nodePositions.get(i).getValue()[1];
-			for (Map.Entry<String, BigInteger[]> node: nodePositions) {
-				if (node.getValue()[1].compareTo(position) == 0) {
-					// UPDATE IN METADATA
-					metadata.put(node.getKey(), new BigInteger[] { startRange, position });
-				}
+		List<BigInteger[]> ranges = new ArrayList<BigInteger[]>();
+		for (Map.Entry<String, BigInteger[]> token : getNodeOrder()) {
+			if (servers.contains(Hash.serverOf(token.getKey()))) {
+				ranges.add(token.getValue());
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Extends the ranges of the remaining tokens over the ranges of
+	 * this server's tokens, as the ECS will once this server leaves.
+	 */
+	private void removeThisServerFromHashRange() {
+		String self = this.address + ":" + this.port;
+		List<Map.Entry<String, BigInteger[]>> nodePositions = new ArrayList<Map.Entry<String, BigInteger[]>>();
+		for (Map.Entry<String, BigInteger[]> token : getNodeOrder()) {
+			if (!Hash.serverOf(token.getKey()).equals(self)) {
+				nodePositions.add(token);
 			}
+		}
 
+		int n = nodePositions.size();
+		for (int i = 0; i < n; i++) {
+			BigInteger startRange =
+					nodePositions.get((i - 1 + n) % n).getValue()[1].add(BigInteger.ONE);
+			BigInteger position = nodePositions.get(i).getValue()[1];
+			// UPDATE IN METADATA
+			metadata.put(nodePositions.get(i).getKey(), new BigInteger[] { startRange, position });
 		}
     }
 
@@ -963,7 +1559,7 @@ public class KVServer extends Thread implements IKVServer {
 	/**
 	 * Directs put requests to the right place.
 	 * 
-	 * @param kvs   which set of kvs to modify: kvs, kvs_rep1, or kvs_rep2
+	 * @param kvs   which set of kvs to modify: kvs or a replica store
 	 * @param key   key to put
 	 * @param value value to put
 	 * @return KVMessage with info about result
@@ -1009,198 +1605,1444 @@ public class KVServer extends Thread implements IKVServer {
 									+ " " + value);
 				}
 			}
-		} catch (Exception e) {
-			res = new KVMessage(
-					StatusType.PUT_ERROR.name()
-							+ " " + key
-							+ " " + value);
-			logger.error("Error: " + e);
+		} catch (Exception e) {
+			res = new KVMessage(
+					StatusType.PUT_ERROR.name()
+							+ " " + key
+							+ " " + value);
+			logger.error("Error: " + e);
+		}
+		updateSubscribers(key, res);
+		return res;
+	}
+
+	/**
+	 * Applies a batch of sequenced puts sent by a coordinator
+	 * to the replica storage kept for that coordinator.
+	 * 
+	 * In chain mode, if the coordinator's chain continues past this
+	 * server, the batch is passed on to the successor and only
+	 * acknowledged once the successor has acknowledged it, so an ack
+	 * from the first replica means the whole chain has the write.
+	 * 
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 * @param body      encoded replication records
+	 * @return PUT_BATCH_ACK with the highest applied sequence number
+	 */
+	private KVMessage putBatchHandler(String coordAddr, String body) {
+		Map<String, String> repKvs = replicaStore(coordAddr);
+		KVReplica forwarder;
+		ReplicationLog forwardLog;
+		synchronized (forwarders) {
+			forwarder = forwarders.get(coordAddr);
+			forwardLog = forwardLogs.get(coordAddr);
+		}
+		long lastSeq = 0;
+		long forwardedSeq = -1;
+		try {
+			for (ReplicationRecord record : ReplicationRecord.decode(body)) {
+				lastSeq = record.seq;
+				synchronized (appliedSeqs) {
+					Long applied = appliedSeqs.get(coordAddr);
+					if (applied != null && record.seq <= applied) {
+						// already applied before a reconnect
+						continue;
+					}
+					appliedSeqs.put(coordAddr, record.seq);
+				}
+				putHandler(repKvs, record.key, record.value);
+				updateVersion(record.key, record.version);
+				setReplicaDeadline(coordAddr, record.key,
+						record.value.equals("null") ? -1 : record.deadline);
+				if (forwarder != null) {
+					synchronized (forwardLog) {
+						forwardedSeq = forwarder.putToReplica(forwardLog.append(
+								record.key, record.value, record.version, record.deadline));
+					}
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			logger.error("Error: ", e);
+		}
+
+		if (forwardedSeq >= 0) {
+			CountDownLatch acks = new CountDownLatch(1);
+			forwarder.notifyOnAck(forwardedSeq, acks);
+			try {
+				if (!acks.await(WRITE_CONCERN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					// the successor gets the batch from the log or hints
+					logger.warn("Chain successor did not acknowledge "
+							+ coordAddr + " sequence " + forwardedSeq);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return new KVMessage(
+				StatusType.PUT_BATCH_ACK.name()
+						+ " " + coordAddr
+						+ " " + lastSeq);
+	}
+
+	/**
+	 * @param key key to look up
+	 * @return version of the key, 0 if it was never written here
+	 */
+	private long getVersion(String key) {
+		synchronized (versions) {
+			Long version = versions.get(key);
+			return version == null ? 0 : version;
+		}
+	}
+
+	/**
+	 * Gives a key its next version as coordinator. Versions are
+	 * millisecond timestamps, bumped if needed so that they always
+	 * increase for a key.
+	 * 
+	 * @param key key being written
+	 * @return new version of the key
+	 */
+	private long newVersion(String key) {
+		synchronized (versions) {
+			long version = Math.max(System.currentTimeMillis(), getVersion(key) + 1);
+			versions.put(key, version);
+			return version;
+		}
+	}
+
+	/**
+	 * Records a version received from elsewhere, keeping the newest.
+	 * 
+	 * @param key     key that was written
+	 * @param version version of the write
+	 * @return true if the version is newer than the one held
+	 */
+	private boolean updateVersion(String key, long version) {
+		synchronized (versions) {
+			if (version <= getVersion(key)) {
+				return false;
+			}
+			versions.put(key, version);
+			return true;
+		}
+	}
+
+	/**
+	 * Drops the versions of keys that are no longer held here in any
+	 * store, after they moved to another server. Called with w held.
+	 * 
+	 * @param keys keys that were removed from a store
+	 */
+	private void forgetVersions(Collection<String> keys) {
+		List<String> gone = new ArrayList<String>();
+		for (String key : keys) {
+			if (!inStorage(key)) {
+				gone.add(key);
+			}
+		}
+		synchronized (versions) {
+			for (String key : gone) {
+				versions.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Drops the versions of deleted keys once they are older than
+	 * tombstoneTtl, by which time every copy has had the delete
+	 * replayed or repaired. Versions are write times, so an old
+	 * version of a key held nowhere is an old delete.
+	 */
+	public void sweepTombstones() {
+		long cutoff = System.currentTimeMillis() - tombstoneTtl;
+		List<String> old = new ArrayList<String>();
+		synchronized (versions) {
+			for (Map.Entry<String, Long> version : versions.entrySet()) {
+				if (version.getValue() < cutoff) {
+					old.add(version.getKey());
+				}
+			}
+		}
+		if (old.isEmpty()) {
+			return;
+		}
+
+		List<String> deleted = new ArrayList<String>();
+		r.lock();
+		try {
+			for (String key : old) {
+				if (!inStorage(key)) {
+					deleted.add(key);
+				}
+			}
+		} finally {
+			r.unlock();
+		}
+
+		int swept = 0;
+		synchronized (versions) {
+			for (String key : deleted) {
+				// unless written again since
+				Long version = versions.get(key);
+				if (version != null && version < cutoff) {
+					versions.remove(key);
+					swept++;
+				}
+			}
+		}
+		logger.info("Dropped " + swept + " delete tombstones");
+	}
+
+	/**
+	 * Finds the store a key belongs in on this server: its own
+	 * storage if it coordinates the key, otherwise the replica
+	 * store of the key's coordinator.
+	 * 
+	 * @param key key to place
+	 * @return store for the key
+	 */
+	private Map<String, String> storeFor(String key) {
+		String coordAddr = coordinatorOf(key);
+		if (coordAddr == null || coordAddr.equals(this.address + ":" + this.port)) {
+			return kvs;
+		}
+		return replicaStore(coordAddr);
+	}
+
+	/**
+	 * Answers a quorum read with the value and version of a key.
+	 * 
+	 * @param key key to read
+	 * @return GET_VERSIONED_SUCCESS key "version value", or
+	 *         GET_VERSIONED_ERROR key version if the key is not held
+	 */
+	private KVMessage getVersionedHandler(String key) {
+		// read the version first; a newer value is harmless, a newer
+		// version with an older value would stop repairs
+		long version = getVersion(key);
+		try {
+			if (expiries.isExpired(key, System.currentTimeMillis())) {
+				throw new Exception("Key has expired.");
+			}
+			return new KVMessage(
+					StatusType.GET_VERSIONED_SUCCESS.name()
+							+ " " + key
+							+ " " + version
+							+ " " + getKV(key));
+		} catch (Exception e) {
+			if (startedBySelf || inReadRange(key)) {
+				return new KVMessage(
+						StatusType.GET_VERSIONED_ERROR.name()
+								+ " " + key
+								+ " " + version);
+			}
+			return new KVMessage(
+					StatusType.SERVER_NOT_RESPONSIBLE.name());
+		}
+	}
+
+	/**
+	 * Answers a conditional read. The value is only sent if the
+	 * server holds a newer version than the client.
+	 * 
+	 * @param key     key to read
+	 * @param version version the client holds
+	 * @return GET_NOT_MODIFIED key version if the client's version is
+	 *         current, otherwise as getVersionedHandler
+	 */
+	private KVMessage getIfModifiedHandler(String key, String version) {
+		try {
+			long current = getVersion(key);
+			if (current > 0 && Long.parseLong(version) >= current
+					&& !expiries.isExpired(key, System.currentTimeMillis())) {
+				r.lock();
+				boolean held;
+				try {
+					held = storeFor(key).containsKey(key);
+				} finally {
+					r.unlock();
+				}
+				if (held) {
+					return new KVMessage(
+							StatusType.GET_NOT_MODIFIED.name()
+									+ " " + key
+									+ " " + current);
+				}
+			}
+		} catch (NumberFormatException e) {
+			logger.error("Invalid version for " + key + ": " + version);
+		}
+		return getVersionedHandler(key);
+	}
+
+	/**
+	 * Applies a put only if the key is still at the version the
+	 * client read, so concurrent read-modify-writes cannot overwrite
+	 * each other. Version 0 expects a key that was never written.
+	 * 
+	 * @param key             key to put
+	 * @param versionAndValue "version value", value "null" for a delete
+	 * @param writeConcern    write concern of the connection
+	 * @return PUT_IF_VERSION_SUCCESS key newVersion,
+	 *         PUT_IF_VERSION_CONFLICT key currentVersion, or the error
+	 *         of the put
+	 */
+	private KVMessage putIfVersionHandler(
+			String key, String versionAndValue, int writeConcern) {
+		String[] parts = versionAndValue == null
+				? new String[0] : versionAndValue.split(" ", 2);
+		long expected;
+		try {
+			expected = Long.parseLong(parts[0]);
+		} catch (RuntimeException e) {
+			return new KVMessage(
+					StatusType.PUT_ERROR.name()
+							+ " " + key
+							+ " " + versionAndValue);
+		}
+		if (parts.length < 2) {
+			return new KVMessage(
+					StatusType.PUT_ERROR.name()
+							+ " " + key
+							+ " " + versionAndValue);
+		}
+
+		KVMessage res;
+		long version;
+		Map<KVReplica, Long> seqs;
+		synchronized (writeOrder) {
+			long current = getVersion(key);
+			boolean exists;
+			r.lock();
+			try {
+				exists = kvs.containsKey(key);
+			} finally {
+				r.unlock();
+			}
+			if (current != expected || (expected == 0 && exists)) {
+				return new KVMessage(
+						StatusType.PUT_IF_VERSION_CONFLICT.name()
+								+ " " + key
+								+ " " + current);
+			}
+			res = putHandler(kvs, key, parts[1]);
+			expiries.remove(key);
+			version = newVersion(key);
+			seqs = replicate(key, parts[1], version, -1);
+		}
+		res = awaitWriteConcern(res, seqs, writeConcern);
+		if (res.getStatus() == StatusType.PUT_ERROR
+				|| res.getStatus() == StatusType.DELETE_ERROR) {
+			return res;
+		}
+		return new KVMessage(
+				StatusType.PUT_IF_VERSION_SUCCESS.name()
+						+ " " + key
+						+ " " + version);
+	}
+
+	/**
+	 * Checks whether this server can take a write for a key.
+	 * 
+	 * @param key key to write
+	 * @return SERVER_WRITE_LOCK or SERVER_NOT_RESPONSIBLE, null if the
+	 *         write can go ahead
+	 */
+	private KVMessage writeRejection(String key) {
+		if (rebalancing) {
+			return new KVMessage(
+					StatusType.SERVER_WRITE_LOCK.name());
+		}
+		if (metadata.containsKey(this.address + ":" + this.port)
+				&& !isCoordinator(key)) {
+			return new KVMessage(
+					StatusType.SERVER_NOT_RESPONSIBLE.name());
+		}
+		return null;
+	}
+
+	/**
+	 * Puts a key that is deleted once its TTL runs out. A later
+	 * PUT without a TTL makes the key permanent again.
+	 * 
+	 * @param key          key to put
+	 * @param ttlAndValue  "ttl value", ttl in milliseconds
+	 * @param writeConcern write concern of the connection
+	 * @return response as for PUT
+	 */
+	private KVMessage putTtlHandler(String key, String ttlAndValue, int writeConcern) {
+		String[] parts = ttlAndValue == null ? new String[0] : ttlAndValue.split(" ", 2);
+		long ttl;
+		try {
+			ttl = parts.length < 2 ? -1 : Long.parseLong(parts[0]);
+		} catch (NumberFormatException e) {
+			ttl = -1;
+		}
+		if (ttl <= 0 || parts[1].equals("null")) {
+			return new KVMessage(
+					StatusType.PUT_ERROR.name()
+							+ " " + key
+							+ " " + ttlAndValue);
+		}
+
+		KVMessage res;
+		Map<KVReplica, Long> seqs;
+		synchronized (writeOrder) {
+			res = putHandler(kvs, key, parts[1]);
+			if (res.getStatus() != StatusType.PUT_ERROR) {
+				expiries.set(key, System.currentTimeMillis() + ttl);
+			}
+			seqs = replicate(key, parts[1], newVersion(key), expiries.deadlineOf(key));
+		}
+		return awaitWriteConcern(res, seqs, writeConcern);
+	}
+
+	/**
+	 * Deletes coordinator keys whose TTL has run out and sends the
+	 * deletes to replicas and subscribers like any other delete.
+	 * Keys are removed in batches of REAP_BATCH, each with a single
+	 * storage rewrite, and the write lock is released between
+	 * batches so waiting requests get in. Replicas keep the
+	 * TTLs only to keep them if they are promoted, and serve a key
+	 * until its delete arrives.
+	 */
+	public void reapExpired() {
+		if (rebalancing) {
+			return;
+		}
+		List<String> due;
+		while (!(due = expiries.due(System.currentTimeMillis(), REAP_BATCH)).isEmpty()) {
+			List<String> reaped = new ArrayList<String>();
+			synchronized (writeOrder) {
+				long now = System.currentTimeMillis();
+				w.lock();
+				try {
+					for (String key : due) {
+						if (!expiries.isExpired(key, now)) {
+							// rewritten since it was listed
+							continue;
+						}
+						expiries.remove(key);
+						if (kvs.remove(key) != null) {
+							reaped.add(key);
+						}
+					}
+					if (!reaped.isEmpty()) {
+						writeToStorage(kvs, dataPath);
+					}
+				} finally {
+					w.unlock();
+				}
+				for (String key : reaped) {
+					replicate(key, "null", newVersion(key), -1);
+				}
+			}
+			for (String key : reaped) {
+				updateSubscribers(key, new KVMessage(
+						StatusType.DELETE_SUCCESS.name() + " " + key));
+			}
+			logger.info("Expired " + reaped.size() + " keys");
+		}
+
+		Map<String, String> changes = expiries.takeChanges();
+		if (changes != null) {
+			writeToStorage(changes, expiryDataPath());
+		}
+	}
+
+	/**
+	 * Applies an INCR or APPEND atomically on the coordinator. The
+	 * current value is read and the new one written under the write
+	 * order lock, and the new value is replicated like a PUT, so
+	 * replicas never see the operation itself. A key keeps its TTL,
+	 * unless it has expired and was not reaped yet: then it counts
+	 * as missing and the new value is permanent.
+	 * 
+	 * @param status       INCR or APPEND
+	 * @param key          key to update
+	 * @param arg          delta to add, or suffix to append
+	 * @param writeConcern write concern of the connection
+	 * @return INCR_SUCCESS key newValue, APPEND_SUCCESS key newLength,
+	 *         or INCR_ERROR / APPEND_ERROR, also if the counter would
+	 *         overflow
+	 */
+	private KVMessage updateHandler(
+			StatusType status, String key, String arg, int writeConcern) {
+		boolean incr = status == StatusType.INCR;
+		KVMessage error = new KVMessage(
+				(incr ? StatusType.INCR_ERROR : StatusType.APPEND_ERROR).name()
+						+ " " + key);
+		if (arg == null) {
+			return error;
+		}
+
+		String updated;
+		KVMessage res;
+		Map<KVReplica, Long> seqs;
+		synchronized (writeOrder) {
+			String current;
+			boolean expired = expiries.isExpired(key, System.currentTimeMillis());
+			r.lock();
+			try {
+				current = expired ? null : kvs.get(key);
+			} finally {
+				r.unlock();
+			}
+			if (incr) {
+				try {
+					long base = current == null ? 0 : Long.parseLong(current);
+					long delta = Long.parseLong(arg.trim());
+					long sum = base + delta;
+					// overflowed if both operands have the sign the sum lacks
+					if (((base ^ sum) & (delta ^ sum)) < 0) {
+						return error;
+					}
+					updated = String.valueOf(sum);
+				} catch (NumberFormatException e) {
+					return error;
+				}
+			} else {
+				updated = current == null ? arg : current + arg;
+			}
+			res = putHandler(kvs, key, updated);
+			if (expired) {
+				expiries.remove(key);
+			}
+			seqs = replicate(key, updated, newVersion(key), expiries.deadlineOf(key));
+		}
+		res = awaitWriteConcern(res, seqs, writeConcern);
+		if (res.getStatus() == StatusType.PUT_ERROR) {
+			return error;
+		}
+		return new KVMessage(
+				(incr ? StatusType.INCR_SUCCESS : StatusType.APPEND_SUCCESS).name()
+						+ " " + key
+						+ " " + (incr ? updated : String.valueOf(updated.length())));
+	}
+
+	/**
+	 * Applies a newer version of a key found by a quorum read.
+	 * Older or equal versions are ignored.
+	 * 
+	 * @param key             key to repair
+	 * @param versionAndValue "version value", value "null" for a delete
+	 * @return REPAIR_SUCCESS
+	 */
+	private KVMessage repairHandler(String key, String versionAndValue) {
+		try {
+			String[] parts = versionAndValue.split(" ", 2);
+			long version = Long.parseLong(parts[0]);
+			synchronized (writeOrder) {
+				if (version > getVersion(key)) {
+					Map<String, String> store = storeFor(key);
+					r.lock();
+					boolean held;
+					try {
+						held = store.containsKey(key);
+					} finally {
+						r.unlock();
+					}
+					if (!parts[1].equals("null") || held) {
+						putHandler(store, key, parts[1]);
+					}
+					updateVersion(key, version);
+					logger.info("Repaired " + key + " to version " + version);
+				}
+			}
+		} catch (RuntimeException e) {
+			logger.error("Invalid repair for " + key, e);
+		}
+		return new KVMessage(
+				StatusType.REPAIR_SUCCESS.name()
+						+ " " + key);
+	}
+
+	/**
+	 * Tells a reconnecting coordinator where to resume replication.
+	 * The position is only known if the coordinator's replication
+	 * log is the one this server last applied from.
+	 * 
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 * @param epoch     epoch of the coordinator's replication log
+	 * @return REPLICATION_RESUME_SUCCESS with the last applied sequence
+	 *         number, -1 if unknown
+	 */
+	private KVMessage resumeHandler(String coordAddr, String epoch) {
+		long applied = -1;
+		synchronized (appliedSeqs) {
+			if (epoch != null && epoch.equals(replicationEpochs.get(coordAddr))) {
+				applied = appliedSeqs.get(coordAddr);
+			} else {
+				replicationEpochs.put(coordAddr, epoch);
+				appliedSeqs.put(coordAddr, 0L);
+			}
+		}
+		return new KVMessage(
+				StatusType.REPLICATION_RESUME_SUCCESS.name()
+						+ " " + coordAddr
+						+ " " + applied);
+	}
+
+	/**
+	 * Answers a coordinator's anti-entropy request about the
+	 * replica store kept for it.
+	 * 
+	 * MERKLE_TREE coordAddr returns the root and leaf digests.
+	 * MERKLE_KEYS coordAddr i,j,... returns "key valueHash" pairs
+	 * for every key in the listed leaves.
+	 * 
+	 * @param status    MERKLE_TREE or MERKLE_KEYS
+	 * @param coordAddr "ADDR:PORT" of the coordinator
+	 * @param leaves    comma separated leaf indices for MERKLE_KEYS
+	 * @return response for the coordinator
+	 */
+	private KVMessage merkleHandler(StatusType status, String coordAddr, String leaves) {
+		r.lock();
+		try {
+			Map<String, String> repKvs = replicaStores.get(coordAddr);
+			if (repKvs == null) {
+				repKvs = new HashMap<String, String>();
+			}
+
+			if (status == StatusType.MERKLE_TREE) {
+				return new KVMessage(
+						StatusType.MERKLE_TREE_SUCCESS.name()
+								+ " " + coordAddr
+								+ " " + MerkleTree.build(repKvs).serialize());
+			}
+
+			List<Integer> leafList = new ArrayList<Integer>();
+			for (String leaf : leaves.split(",")) {
+				int i = Integer.parseInt(leaf);
+				if (i < 0 || i >= MerkleTree.LEAVES) {
+					throw new NumberFormatException("Leaf out of range: " + i);
+				}
+				leafList.add(i);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> entry : MerkleTree.entriesIn(repKvs, leafList).entrySet()) {
+				sb.append(" ").append(entry.getKey()).append(" ").append(entry.getValue());
+			}
+			return new KVMessage(
+					StatusType.MERKLE_KEYS_SUCCESS.name()
+							+ " " + coordAddr
+							+ sb.toString());
+		} catch (RuntimeException e) {
+			logger.error("Error: ", e);
+			return new KVMessage(
+					StatusType.MERKLE_ERROR.name() + " " + coordAddr);
+		} finally {
+			r.unlock();
+		}
+	}
+
+	/**
+	 * Based on the hash ranges from the metadata, creates
+	 * a mapping of keys from storage to servers for
+	 * kv rebalancing
+	 * 
+	 * @return a map of servers with keys to send to them
+	 */
+	private Map<String, List<String>> createServerKeyBins(Map<String, String> kvPairs) {
+		Map<String, List<String>> serverKeys = new HashMap<String, List<String>>();
+
+		r.lock();
+
+		try {
+			// build serverKeys map with empty lists
+			for (String token : metadata.keySet()) {
+				serverKeys.put(Hash.serverOf(token), new ArrayList<String>());
+			}
+
+			for (String key : kvPairs.keySet()) {
+				for (String token : metadata.keySet()) {
+					// if keyHash in keyrange of one of the server's
+					// tokens, then add it to this server's bin
+
+					BigInteger[] kr = metadata.get(token);
+
+					if (Hash.inHashRange(key, kr[0], kr[1])) {
+						serverKeys.get(Hash.serverOf(token)).add(key);
+					}
+				}
+			}
+		} finally {
+			r.unlock();
+		}
+
+		return serverKeys;
+	}
+
+	/**
+	 * Looks at input metadata string and distributes
+	 * keys to other servers
+	 *
+	 * @throws Exception when rebalancing keys to another
+	 *                   server fails
+	 */
+	public void rebalance() throws Exception {
+		rebalance(null);
+	}
+
+	/**
+	 * Sends the keys of the ranges the ECS planned for this server
+	 * to the servers that own them now, and deletes them here. The
+	 * ECS sends every range straight from its old owner to its new
+	 * one, so keys move once however many servers join together,
+	 * and all of a server's ranges come in one request.
+	 *
+	 * @param start first hash of the first range
+	 * @param value rest of "START END ADDR:PORT ...", every range
+	 *              with the server to send it to
+	 * @return REBALANCE_RANGE_SUCCESS or REBALANCE_RANGE_ERROR,
+	 *         followed by the transfers
+	 */
+	private KVMessage rebalanceRangeHandler(String start, String value) {
+		String transfers = start + " " + value;
+		try {
+			String[] parts = transfers.split(" ");
+			if (parts.length % 3 != 0) {
+				throw new IllegalArgumentException("Malformed ranges");
+			}
+			Map<String, List<BigInteger[]>> ranges = new HashMap<String, List<BigInteger[]>>();
+			for (int i = 0; i < parts.length; i += 3) {
+				if (!ranges.containsKey(parts[i + 2])) {
+					ranges.put(parts[i + 2], new ArrayList<BigInteger[]>());
+				}
+				ranges.get(parts[i + 2]).add(new BigInteger[] {
+						new BigInteger(parts[i], 16), new BigInteger(parts[i + 1], 16) });
+			}
+			rebalance(ranges);
+			return new KVMessage(
+					StatusType.REBALANCE_RANGE_SUCCESS.name() + " " + transfers);
+		} catch (Exception e) {
+			logger.error("Failed to transfer ranges " + transfers, e);
+			return new KVMessage(
+					StatusType.REBALANCE_RANGE_ERROR.name() + " " + transfers);
+		}
+	}
+
+	/**
+	 * @param kvPairs keys to sort
+	 * @param ranges  {start, end} of the ranges to send, by server
+	 * @return keys of `kvPairs` in the ranges, by server
+	 */
+	private Map<String, List<String>> createRangeKeyBins(Map<String, String> kvPairs,
+			Map<String, List<BigInteger[]>> ranges) {
+		Map<String, List<String>> serverKeys = new HashMap<String, List<String>>();
+		for (String dest : ranges.keySet()) {
+			serverKeys.put(dest, new ArrayList<String>());
+		}
+		for (String key : kvPairs.keySet()) {
+			for (Map.Entry<String, List<BigInteger[]>> dest : ranges.entrySet()) {
+				for (BigInteger[] range : dest.getValue()) {
+					if (Hash.inHashRange(key, range[0], range[1])) {
+						serverKeys.get(dest.getKey()).add(key);
+					}
+				}
+			}
+		}
+		return serverKeys;
+	}
+
+	/**
+	 * Streams coordinator keys to their new owner as REBALANCE_BATCH
+	 * frames of up to REBALANCE_BATCH_CHARS, each carrying the
+	 * version and expiry time of its keys. Called with w held.
+	 *
+	 * @param client connection to the new owner
+	 * @param keys   keys to send
+	 * @throws Exception if the new owner did not store a batch
+	 */
+	private void sendRange(KVStore client, List<String> keys) throws Exception {
+		List<ReplicationRecord> batch = new ArrayList<ReplicationRecord>();
+		int chars = 0;
+		for (int i = 0; i <= keys.size(); i++) {
+			ReplicationRecord record = null;
+			if (i < keys.size()) {
+				String k = keys.get(i);
+				record = new ReplicationRecord(
+						i, k, kvs.get(k), getVersion(k), expiries.deadlineOf(k));
+			}
+			if (!batch.isEmpty() && (record == null
+					|| chars + record.encodedLength() > REBALANCE_BATCH_CHARS)) {
+				KVMessage res = client.sendKVMessage(
+						StatusType.REBALANCE_BATCH.name()
+								+ " " + this.address + ":" + this.port
+								+ " " + ReplicationRecord.encode(batch));
+				if (res == null || res.getStatus() != StatusType.REBALANCE_BATCH_SUCCESS) {
+					throw new Exception("Batch of " + batch.size() + " keys was not stored");
+				}
+				batch.clear();
+				chars = 0;
+			}
+			if (record != null) {
+				batch.add(record);
+				chars += record.encodedLength();
+			}
+		}
+	}
+
+	/**
+	 * Stores keys streamed by their old owner during a rebalance as
+	 * coordinator keys, keeping their versions and expiry times,
+	 * and replicates them like any other write.
+	 *
+	 * @param source "ADDR:PORT" of the old owner
+	 * @param body   encoded records
+	 * @return REBALANCE_BATCH_SUCCESS with the number of keys stored,
+	 *         or REBALANCE_BATCH_ERROR
+	 */
+	private KVMessage rebalanceBatchHandler(String source, String body) {
+		List<ReplicationRecord> records;
+		try {
+			records = ReplicationRecord.decode(body);
+		} catch (IllegalArgumentException e) {
+			logger.error("Error: ", e);
+			return new KVMessage(
+					StatusType.REBALANCE_BATCH_ERROR.name() + " " + source);
+		}
+		logger.info("Storing " + records.size() + " keys from " + source);
+
+		synchronized (writeOrder) {
+			w.lock();
+			try {
+				for (ReplicationRecord record : records) {
+					kvs.put(record.key, record.value);
+					if (record.deadline < 0) {
+						expiries.remove(record.key);
+					} else {
+						expiries.set(record.key, record.deadline);
+					}
+				}
+				writeToStorage(kvs, dataPath);
+			} finally {
+				w.unlock();
+			}
+			for (ReplicationRecord record : records) {
+				updateVersion(record.key, record.version);
+				replicate(record.key, record.value, record.version, record.deadline);
+			}
+		}
+		return new KVMessage(
+				StatusType.REBALANCE_BATCH_SUCCESS.name()
+						+ " " + source
+						+ " " + records.size());
+	}
+
+	/**
+	 * Sends keys to the servers that own them now and deletes them
+	 * here: every key if `ranges` is null, otherwise only those in
+	 * the given ranges, to the server each range is listed under.
+	 * Replicas are disconnected once for the whole call and catch up
+	 * on the deletes from the log afterwards.
+	 *
+	 * @param ranges {start, end} of the ranges to send, by server
+	 */
+	private void rebalance(Map<String, List<BigInteger[]>> ranges) throws Exception {
+		List<String> keysToRemove = new ArrayList<String>();
+		List<String> keysToRemoveFromSubscribers = new ArrayList<String>();
+
+		w.lock();
+
+		rebalancing = true;
+
+		try {
+			logger.info("Disconnecting from replicas temporarily");
+			for (KVReplica replica : replicas) {
+				replica.disconnect();
+			}
+
+			// map of which keys go to which servers
+			Map<String, List<String>> serverKeys;
+			Map<String, List<String>> subscriberKeys;
+			if (ranges == null) {
+				serverKeys = createServerKeyBins(kvs);
+				subscriberKeys = createServerKeyBins(subscribers);
+			} else {
+				serverKeys = createRangeKeyBins(kvs, ranges);
+				subscriberKeys = createRangeKeyBins(subscribers, ranges);
+			}
+
+			logger.info("New server keys: " + serverKeys);
+			logger.info("New subscriber keys: " + subscriberKeys);
+
+			// go through each key
+			// see which keys need to be sent to other servers
+			for (String server : serverKeys.keySet()) {
+				// parse out addr/port
+				String targetAddr = server.split(":")[0];
+				int targetPort = Integer.parseInt(
+						server.split(":")[1]);
+
+				// if target server is this server skip
+				if (targetAddr.equals(this.address) &&
+						targetPort == this.port) {
+					continue;
+				}
+
+				// we want to act as client to another server
+				if (!serverKeys.get(server).isEmpty() || !subscriberKeys.get(server).isEmpty()) {
+					logger.info("Sending keys to " + targetAddr + ":" + targetPort);
+					KVStore client = new KVStore(targetAddr, targetPort);
+					client.connect();
+
+					try {
+						sendRange(client, serverKeys.get(server));
+					} catch (Exception e) {
+						client.disconnect();
+						throw new Exception("Sending keys to " + server + " failed!", e);
+					}
+					keysToRemove.addAll(serverKeys.get(server));
+					for (String k: subscriberKeys.get(server)) {
+						String[] subscribersList = subscribers.get(k).split(",");
+						for (String subscriber: subscribersList) {
+							String[] subscriberInfo = subscriber.split(":");
+							String subscriberAddr = subscriberInfo[0];
+							int subscriberPort = Integer.parseInt(subscriberInfo[1]);
+							client.subscribeAnyClient(k, subscriberAddr, subscriberPort);
+						}
+						keysToRemoveFromSubscribers.add(k);
+					}
+					client.disconnect();
+				}
+			}
+		} finally {
+
+			rebalancing = false;
+
+			// Don't delete keys right away; delete after
+			for (String k : keysToRemove) {
+				kvs.remove(k);
+				expiries.remove(k);
+				// replicas are disconnected, they replay this from the log
+				replicate(k, "null", getVersion(k), -1);
+			}
+			forgetVersions(keysToRemove);
+			writeToStorage(kvs, dataPath);
+
+
+			for (String k : keysToRemoveFromSubscribers) {
+				subscribers.remove(k);
+			}
+
+			w.unlock();
+		}
+
+		for (KVReplica replica : replicas) {
+			connectReplica(replica);
+		}
+	}
+
+	/**
+	 * Connects a replica, resuming from its last applied sequence
+	 * number, and falls back to a full sync if the replication log
+	 * no longer covers it.
+	 *
+	 * @param replica replica to connect
+	 */
+	private void connectReplica(KVReplica replica) {
+		if (!replica.connect() && replica.isConnected()) {
+			syncReplica(replica, kvs, null, replicationLog);
+		}
+	}
+
+	/**
+	 * Connects the successor a coordinator's chain writes are passed
+	 * on to, syncing it from the replica store kept for that
+	 * coordinator if it cannot resume.
+	 *
+	 * @param forwarder forwarder to connect
+	 */
+	private void connectForwarder(KVReplica forwarder) {
+		String coordAddr = null;
+		ReplicationLog log = null;
+		synchronized (forwarders) {
+			for (Map.Entry<String, KVReplica> chain : forwarders.entrySet()) {
+				if (chain.getValue() == forwarder) {
+					coordAddr = chain.getKey();
+					log = forwardLogs.get(coordAddr);
+				}
+			}
+		}
+		if (coordAddr != null && !forwarder.connect() && forwarder.isConnected()) {
+			syncReplica(forwarder, replicaStore(coordAddr), coordAddr, log);
+		}
+	}
+
+	/**
+	 * Retries replicas that are unreachable. Their missed writes
+	 * are handed off from the replication log or their hints.
+	 */
+	public void reconnectReplicas() {
+		if (rebalancing) {
+			return;
+		}
+		for (KVReplica replica : replicas) {
+			if (!replica.isConnected()) {
+				logger.info("Reconnecting to KVReplica " + replica.replicaNum
+						+ " with " + replica.getHintCount() + " hints");
+				connectReplica(replica);
+			}
+		}
+		List<KVReplica> chains;
+		synchronized (forwarders) {
+			chains = new ArrayList<KVReplica>(forwarders.values());
+		}
+		for (KVReplica forwarder : chains) {
+			if (!forwarder.isConnected()) {
+				logger.info("Reconnecting chain successor " + forwarder.hostname + ":"
+						+ forwarder.port + " with " + forwarder.getHintCount() + " hints");
+				connectForwarder(forwarder);
+			}
+		}
+	}
+
+	/**
+	 * Brings a replica's copy of a store up to date by resending
+	 * only the keys whose hash tree leaves differ. Falls back to
+	 * resending every key if the trees could not be compared.
+	 *
+	 * @param replica connected replica to sync
+	 * @param store   store the replica copies: kvs, or in chain mode
+	 *                the replica store of the coordinator
+	 * @param coordAddr "ADDR:PORT" of that coordinator, null for kvs
+	 * @param log     log the replica is sent records from
+	 */
+	private void syncReplica(KVReplica replica, Map<String, String> store,
+			String coordAddr, ReplicationLog log) {
+		Map<String, String> snapshot;
+		r.lock();
+		try {
+			snapshot = new HashMap<String, String>(store);
+		} finally {
+			r.unlock();
+		}
+
+		Set<String> divergent;
+		try {
+			divergent = replica.findDivergentKeys(snapshot);
+		} catch (IOException e) {
+			logger.error("Could not compare with KVReplica " + replica.replicaNum
+					+ ", sending all keys", e);
+			divergent = new HashSet<String>(snapshot.keySet());
+		}
+
+		logger.info("Sending " + divergent.size() + " keys to KVReplica " + replica.replicaNum);
+		// send current values, a put may have landed since the snapshot
+		r.lock();
+		try {
+			synchronized (log) {
+				for (String k : divergent) {
+					String v = store.get(k);
+					replica.putToReplica(log.append(k, v == null ? "null" : v,
+							getVersion(k), v == null ? -1 : deadlineOf(coordAddr, k)));
+				}
+			}
+		} finally {
+			r.unlock();
+		}
+	}
+
+	/**
+	 * Deletes a key from storage.
+	 *
+	 * @param kvs       which storage (main or a replica store) to deleted from
+	 * @param key       key to delete
+	 * @param keyExists whether or not key is already in storage
+	 * @throws Exception when key doesn't exist
+	 */
+	private void deleteKey(Map<String, String> kvs, String key, boolean keyExists)
+			throws Exception {
+		if (!keyExists) {
+			throw new Exception(
+					"Key does not exist in storage and cannot be deleted.");
+		}
+		w.lock();
+		try {
+			kvs.remove(key);
+			writeToStorage(kvs, storagePath(kvs));
+		} finally {
+			w.unlock();
+		}
+	}
+
+	/**
+	 * Logs a coordinator mutation and sends it to every replica.
+	 * Replicas that are not connected get it when they resume. With
+	 * no replicas nothing is kept, as there is nobody to resume.
+	 *
+	 * @param key      key to replicate
+	 * @param value    value to replicate, "null" for a delete
+	 * @param version  version of the key after the mutation
+	 * @param deadline time the key expires at, -1 if it does not
+	 * @return sequence number queued on each replica, -1 if not connected
+	 */
+	private Map<KVReplica, Long> replicate(String key, String value, long version, long deadline) {
+		Map<KVReplica, Long> seqs = new HashMap<KVReplica, Long>();
+		synchronized (replicationLog) {
+			List<KVReplica> current = replicas;
+			if (current.isEmpty()) {
+				replicationLog.skip();
+			} else {
+				ReplicationRecord record = replicationLog.append(key, value, version, deadline);
+				for (KVReplica replica : current) {
+					seqs.put(replica, replica.putToReplica(record));
+				}
+			}
 		}
-		updateSubscribers(key, res);
-		return res;
+		List<String> servers;
+		synchronized (hotKeyServers) {
+			servers = hotKeyServers.get(key);
+		}
+		if (servers != null) {
+			sendHotKey(key, value, servers);
+		}
+		return seqs;
 	}
 
 	/**
-	 * Based on the hash ranges from the metadata, creates
-	 * a mapping of keys from storage to servers for
-	 * kv rebalancing
+	 * Counts a read of a key this server coordinates and, once the
+	 * key is hot, copies it to the servers after its replicas so
+	 * they can serve its reads too.
 	 * 
-	 * @return a map of servers with keys to send to them
+	 * @param key key that was read
 	 */
-	private Map<String, List<String>> createServerKeyBins(Map<String, String> kvPairs) {
-		Map<String, List<String>> serverKeys = new HashMap<String, List<String>>();
-
+	private void recordRead(String key) {
+		if (!isCoordinator(key) || !hotKeys.record(key, hotKeyThreshold)) {
+			return;
+		}
+		List<String> servers = new ArrayList<String>();
 		r.lock();
-
 		try {
-			// build serverKeys map with empty lists
-			for (String server : metadata.keySet()) {
-				serverKeys.put(server, new ArrayList<String>());
-			}
-
-			for (String key : kvPairs.keySet()) {
-				for (String server : metadata.keySet()) {
-					// if keyHash in keyrange of server,
-					// then add it to this server's bin
-
-					BigInteger[] kr = metadata.get(server);
-
-					if (Hash.inHashRange(key, kr[0], kr[1])) {
-						serverKeys.get(server).add(key);
+			List<Map.Entry<String, BigInteger[]>> nodePositions = getServerOrder();
+			int n = nodePositions.size();
+			for (int i = 0; i < n; i++) {
+				if (nodePositions.get(i).getKey().equals(this.address + ":" + this.port)) {
+					int first = replicaCount(n) + 1;
+					for (int j = first; j < first + HOT_KEY_REPLICAS && j < n; j++) {
+						servers.add(nodePositions.get((i + j) % n).getKey());
 					}
+					break;
 				}
 			}
 		} finally {
 			r.unlock();
 		}
+		if (servers.isEmpty()) {
+			return;
+		}
 
-		return serverKeys;
+		logger.info("Key " + key + " is hot, copying it to " + servers);
+		synchronized (writeOrder) {
+			synchronized (hotKeyServers) {
+				hotKeyServers.put(key, servers);
+			}
+			try {
+				sendHotKey(key, getKV(key), servers);
+			} catch (Exception e) {
+				sendHotKey(key, "null", servers);
+			}
+		}
 	}
 
 	/**
-	 * Looks at input metadata string and distributes
-	 * keys to other servers
-	 *
-	 * @throws Exception when rebalancing keys to another
-	 *                   server fails
+	 * Takes back the copies of hot keys that cooled down or that
+	 * this server no longer coordinates, renews the copies of the
+	 * others, and forgets copies of other servers' keys whose lease
+	 * ran out.
 	 */
-	public void rebalance() throws Exception {
-		List<String> keysToRemove = new ArrayList<String>();
-		List<String> keysToRemoveFromSubscribers = new ArrayList<String>();
-
-		w.lock();
-
-		rebalancing = true;
-
-		try {
-			logger.info("Disconnecting from replicas temporarily");
-			if (replica1 != null)
-				replica1.disconnect();
-			if (replica2 != null)
-				replica2.disconnect();
-
-			// map of which keys go to which servers
-			Map<String, List<String>> serverKeys = createServerKeyBins(kvs);
-			Map<String, List<String>> subscriberKeys = createServerKeyBins(subscribers);
-
-			logger.info("New server keys: " + serverKeys);
-			logger.info("New subscriber keys: " + subscriberKeys);
-
-			// go through each key
-			// see which keys need to be sent to other servers
-			for (String server : serverKeys.keySet()) {
-				// parse out addr/port
-				String targetAddr = server.split(":")[0];
-				int targetPort = Integer.parseInt(
-						server.split(":")[1]);
+	public void coolHotKeys() {
+		for (String key : hotKeys.decay(hotKeyThreshold)) {
+			List<String> servers;
+			synchronized (hotKeyServers) {
+				servers = hotKeyServers.remove(key);
+			}
+			if (servers != null) {
+				logger.info("Key " + key + " cooled down, dropping its copies");
+				sendHotKey(key, "null", servers);
+			}
+		}
 
-				// if target server is this server skip
-				if (targetAddr.equals(this.address) &&
-						targetPort == this.port) {
+		Map<String, List<String>> hot;
+		synchronized (hotKeyServers) {
+			hot = new HashMap<String, List<String>>(hotKeyServers);
+		}
+		for (Map.Entry<String, List<String>> key : hot.entrySet()) {
+			synchronized (writeOrder) {
+				if (!isCoordinator(key.getKey())) {
+					logger.info("Key " + key.getKey() + " moved away, dropping its copies");
+					synchronized (hotKeyServers) {
+						hotKeyServers.remove(key.getKey());
+					}
+					sendHotKey(key.getKey(), "null", key.getValue());
 					continue;
 				}
+				try {
+					sendHotKey(key.getKey(), getKV(key.getKey()), key.getValue());
+				} catch (Exception e) {
+					sendHotKey(key.getKey(), "null", key.getValue());
+				}
+			}
+		}
 
-				// we want to act as client to another server
-				if (!serverKeys.get(server).isEmpty() || !subscriberKeys.get(server).isEmpty()) {
-					logger.info("Sending keys to " + targetAddr + ":" + targetPort);
-					KVStore client = new KVStore(targetAddr, targetPort);
-					client.connect();
+		long now = System.currentTimeMillis();
+		synchronized (hotCopies) {
+			Iterator<Map.Entry<String, Long>> it = hotCopyTimes.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Long> copy = it.next();
+				if (copy.getValue() + hotCopyLease <= now) {
+					hotCopies.remove(copy.getKey());
+					it.remove();
+				}
+			}
+		}
+	}
 
-					for (String k : serverKeys.get(server)) {
-						KVMessage res = client.put(k, kvs.get(k));
-						if (res.getStatus() == StatusType.PUT_ERROR) {
-							client.disconnect();
-							throw new Exception(
-									"Put " + k + " to " + server + " failed!");
-						}
-						keysToRemove.add(k);
-					}
-					for (String k: subscriberKeys.get(server)) {
-						String[] subscribersList = subscribers.get(k).split(",");
-						for (String subscriber: subscribersList) {
-							String[] subscriberInfo = subscriber.split(":");
-							String subscriberAddr = subscriberInfo[0];
-							int subscriberPort = Integer.parseInt(subscriberInfo[1]);
-							client.subscribeAnyClient(k, subscriberAddr, subscriberPort);
-						}
-						keysToRemoveFromSubscribers.add(k);
+	/**
+	 * Sends the current value of a hot key to the servers that keep
+	 * a copy of it, in the background.
+	 * 
+	 * @param key     hot key
+	 * @param value   its value, "null" to drop the copies
+	 * @param servers "ADDR:PORT" of the servers keeping copies
+	 */
+	private void sendHotKey(String key, String value, final List<String> servers) {
+		final String msgStr = value.equals("null")
+				? StatusType.HOT_KEY_DROP.name() + " " + key
+				: StatusType.HOT_KEY_COPY.name() + " " + key
+						+ " " + joinServers(servers) + " " + value;
+		hotKeyExecutor.submit(new Runnable() {
+			public void run() {
+				for (String server : servers) {
+					try {
+						forwardPool.send(server, 1, msgStr);
+					} catch (IOException e) {
+						logger.error("Unable to send hot key to " + server, e);
 					}
-					client.disconnect();
 				}
 			}
-		} finally {
-
-			rebalancing = false;
+		});
+	}
 
-			// Don't delete keys right away; delete after
-			for (String k : keysToRemove) {
-				kvs.remove(k);
+	private static String joinServers(List<String> servers) {
+		StringBuilder joined = new StringBuilder();
+		for (String server : servers) {
+			if (joined.length() > 0) {
+				joined.append(",");
 			}
-			writeToStorage(kvs, dataPath);
+			joined.append(server);
+		}
+		return joined.toString();
+	}
 
+	/**
+	 * Keeps or drops the copy of another server's hot key. A copy
+	 * sent again renews its lease.
+	 * 
+	 * @param status HOT_KEY_COPY or HOT_KEY_DROP
+	 * @param key    hot key
+	 * @param value  "SERVERS VALUE" for a copy
+	 * @return HOT_KEY_SUCCESS
+	 */
+	private KVMessage hotKeyHandler(StatusType status, String key, String value) {
+		synchronized (hotCopies) {
+			if (status == StatusType.HOT_KEY_COPY && value != null && value.contains(" ")) {
+				int split = value.indexOf(' ');
+				hotCopies.put(key, new String[] {
+						value.substring(0, split), value.substring(split + 1) });
+				hotCopyTimes.put(key, System.currentTimeMillis());
+			} else {
+				hotCopies.remove(key);
+				hotCopyTimes.remove(key);
+			}
+		}
+		return new KVMessage(
+				StatusType.HOT_KEY_SUCCESS.name() + " " + key);
+	}
 
-			for (String k : keysToRemoveFromSubscribers) {
-				subscribers.remove(k);
+	/**
+	 * Adds the servers that hold copies of a hot key to a GET reply,
+	 * for clients that asked with GET_WITH_REPLICAS, and answers
+	 * reads of hot keys this server keeps a copy of. Only the
+	 * coordinator names the servers, so a client stops spreading
+	 * reads once the coordinator stops calling the key hot, and a
+	 * copy is served only within its lease.
+	 * 
+	 * @param status GET or GET_WITH_REPLICAS
+	 * @param key    key that was read
+	 * @param res    reply of the plain GET
+	 * @return reply to send
+	 */
+	private KVMessage hotKeyReply(StatusType status, String key, KVMessage res) {
+		String servers = null;
+		String value = res.getStatus() == StatusType.GET_SUCCESS ? res.getValue() : null;
+		synchronized (hotKeyServers) {
+			if (value != null && hotKeyServers.containsKey(key)) {
+				servers = joinServers(hotKeyServers.get(key));
+			}
+		}
+		if (value == null) {
+			synchronized (hotCopies) {
+				String[] copy = hotCopies.get(key);
+				Long renewed = hotCopyTimes.get(key);
+				if (copy != null && renewed + hotCopyLease > System.currentTimeMillis()) {
+					value = copy[1];
+				}
 			}
+		}
+		if (value == null) {
+			return res;
+		}
+		if (status == StatusType.GET_WITH_REPLICAS && servers != null) {
+			return new KVMessage(
+					StatusType.GET_HOT_SUCCESS.name()
+							+ " " + key
+							+ " " + servers + " " + value);
+		}
+		return new KVMessage(
+				StatusType.GET_SUCCESS.name()
+						+ " " + key
+						+ " " + value);
+	}
 
-			w.unlock();
+	/**
+	 * Waits until enough replicas have acknowledged a mutation to
+	 * satisfy the write concern. Acks are collected from all replicas
+	 * at once, so the wait is bounded by the fastest replicas needed.
+	 *
+	 * Write concern 1 returns after the coordinator write, 2 after
+	 * one replica, 3 after two replicas and so on; values above the
+	 * replication factor wait for all replicas.
+	 *
+	 * @param res          response of the coordinator write
+	 * @param seqs         sequence numbers returned by replicate
+	 * @param writeConcern requested write concern
+	 * @return res, or an error response if the replicas did not
+	 *         acknowledge in time
+	 */
+	private KVMessage awaitWriteConcern(
+			KVMessage res, Map<KVReplica, Long> seqs, int writeConcern) {
+		if (res.getStatus() == StatusType.PUT_ERROR
+				|| res.getStatus() == StatusType.DELETE_ERROR) {
+			return res;
 		}
 
-		if (replica1 != null) {
-			replica1.connect();
-			for (String k : keysToRemove) {
-				replica1.putToReplica(k, "null");
+		int needed = Math.min(writeConcern - 1, seqs.size());
+		if (needed <= 0) {
+			return res;
+		}
+
+		CountDownLatch acks = new CountDownLatch(needed);
+		for (Map.Entry<KVReplica, Long> seq : seqs.entrySet()) {
+			if (seq.getValue() >= 0) {
+				seq.getKey().notifyOnAck(seq.getValue(), acks);
 			}
-			logger.info("Sending memory to KVReplica 1");
-			r.lock();
-			try {
-				replica1.copyMemoryToReplica(kvs);
-			} finally {
-				r.unlock();
+		}
+
+		try {
+			if (acks.await(WRITE_CONCERN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				return res;
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 
+		logger.error("Write concern " + writeConcern + " not met for " + res.getKey());
+		if (res.getStatus() == StatusType.DELETE_SUCCESS) {
+			return new KVMessage(
+					StatusType.DELETE_ERROR.name() + " " + res.getKey());
 		}
-		if (replica2 != null) {
-			replica2.connect();
-			for (String k : keysToRemove) {
-				replica2.putToReplica(k, "null");
+		return new KVMessage(
+				StatusType.PUT_ERROR.name()
+						+ " " + res.getKey()
+						+ " " + res.getValue());
+	}
+
+	/**
+	 * Applies a cluster-wide setting pushed by the ECS.
+	 *
+	 * Supported settings:
+	 * replication_factor N
+	 * replication_mode star|chain
+	 *
+	 * @param setting setting name
+	 * @param value   setting value
+	 * @return CLUSTER_CONFIG_SUCCESS or CLUSTER_CONFIG_ERROR
+	 */
+	private KVMessage setClusterConfig(String setting, String value) {
+		try {
+			if ("replication_factor".equals(setting)) {
+				int n = Integer.parseInt(value);
+				if (n >= 1) {
+					replicationFactor = n;
+					logger.info("Replication factor set to " + n);
+					return new KVMessage(
+							StatusType.CLUSTER_CONFIG_SUCCESS.name()
+									+ " " + setting
+									+ " " + value);
+				}
 			}
-			logger.info("Sending memory to KVReplica 2");
-			r.lock();
-			try {
-				replica2.copyMemoryToReplica(kvs);
-			} finally {
-				r.unlock();
+			if ("replication_mode".equals(setting)
+					&& ("star".equals(value) || "chain".equals(value))) {
+				// takes effect with the next keyrange update
+				chainReplication = "chain".equals(value);
+				logger.info("Replication mode set to " + value);
+				return new KVMessage(
+						StatusType.CLUSTER_CONFIG_SUCCESS.name()
+								+ " " + setting
+								+ " " + value);
 			}
+		} catch (NumberFormatException e) {
+			logger.error("Invalid value for " + setting + ": " + value);
 		}
+		return new KVMessage(
+				StatusType.CLUSTER_CONFIG_ERROR.name()
+						+ " " + setting
+						+ " " + value);
 	}
 
 	/**
-	 * Deletes a key from storage.
+	 * Applies an option to a single client connection.
 	 *
-	 * @param kvs       which storage (main, rep1, rep2) to deleted from
-	 * @param key       key to delete
-	 * @param keyExists whether or not key is already in storage
-	 * @throws Exception when key doesn't exist
+	 * Supported options:
+	 * write_concern 1|2|3
+	 * forward 0|1
+	 *
+	 * @param conn   connection to configure
+	 * @param option option name
+	 * @param value  option value
+	 * @return CONNECTION_OPTION_SUCCESS or CONNECTION_OPTION_ERROR
 	 */
-	private void deleteKey(Map<String, String> kvs, String key, boolean keyExists)
-			throws Exception {
-		if (!keyExists) {
-			throw new Exception(
-					"Key does not exist in storage and cannot be deleted.");
-		}
-		w.lock();
+	private KVMessage setConnectionOption(
+			ClientConnection conn, String option, String value) {
 		try {
-			kvs.remove(key);
-			if (this.kvs == kvs)
-				writeToStorage(kvs, dataPath);
-			if (this.kvs_rep1 == kvs)
-				writeToStorage(kvs, replica1DataPath);
-			if (this.kvs_rep2 == kvs)
-				writeToStorage(kvs, replica2DataPath);
-		} finally {
-			w.unlock();
+			if (conn != null && "forward".equals(option)
+					&& ("0".equals(value) || "1".equals(value))) {
+				conn.forward = "1".equals(value);
+				return new KVMessage(
+						StatusType.CONNECTION_OPTION_SUCCESS.name()
+								+ " " + option
+								+ " " + value);
+			}
+			if (conn != null && "write_concern".equals(option)) {
+				int writeConcern = Integer.parseInt(value);
+				if (writeConcern >= 1) {
+					conn.writeConcern = writeConcern;
+					return new KVMessage(
+							StatusType.CONNECTION_OPTION_SUCCESS.name()
+									+ " " + option
+									+ " " + value);
+				}
+			}
+		} catch (NumberFormatException e) {
+			logger.error("Invalid value for " + option + ": " + value);
 		}
+		return new KVMessage(
+				StatusType.CONNECTION_OPTION_ERROR.name()
+						+ " " + option
+						+ " " + value);
 	}
 
 	/**
@@ -1211,6 +3053,18 @@ public class KVServer extends Thread implements IKVServer {
 	 * @return response KVMessage to send back to client.
 	 */
 	public KVMessage handleMessage(KVMessage msg) {
+		return handleMessage(msg, null);
+	}
+
+	/**
+	 * Handles incoming KVMessages with the correct actions and
+	 * formulates responses to send back to the client.
+	 *
+	 * @param msg  incoming KVMessage to handle.
+	 * @param conn connection the message arrived on, null if none.
+	 * @return response KVMessage to send back to client.
+	 */
+	public KVMessage handleMessage(KVMessage msg, ClientConnection conn) {
 		StatusType status = msg.getStatus();
 		String key = msg.getKey();
 		String value = msg.getValue();
@@ -1245,19 +3099,32 @@ public class KVServer extends Thread implements IKVServer {
 							StatusType.SERVER_SHUTDOWN_ERROR.name());
 				}
 				break;
+			case CLUSTER_CONFIG:
+				res = setClusterConfig(key, value);
+				break;
 			case KEYRANGE_UPDATE:
+				if (msg.getEpoch() >= 0) {
+					ringEpoch = msg.getEpoch();
+				}
 				updateMetadata(key);
-				List<Map.Entry<String, BigInteger[]>> newNodeOrder = getNodeOrder();
+				List<Map.Entry<String, BigInteger[]>> newNodeOrder = getServerOrder();
 				updateReplicas(newNodeOrder);
 				updateCoordinators(newNodeOrder);
 				res = new KVMessage(
 						StatusType.KEYRANGE_SUCCESS.name());
 				break;
-			case PUT_FROM_COORDINATOR_1:
-				res = putHandler(kvs_rep1, key, value);
+			case KEYRANGE_DELTA:
+				res = applyMetadataDelta(msg.getEpoch(), key, value);
+				break;
+			case PUT_BATCH_FROM_COORDINATOR:
+				res = putBatchHandler(key, value);
 				break;
-			case PUT_FROM_COORDINATOR_2:
-				res = putHandler(kvs_rep2, key, value);
+			case REPLICATION_RESUME:
+				res = resumeHandler(key, value);
+				break;
+			case MERKLE_TREE:
+			case MERKLE_KEYS:
+				res = merkleHandler(status, key, value);
 				break;
 			case REBALANCE:
 				try {
@@ -1270,6 +3137,12 @@ public class KVServer extends Thread implements IKVServer {
 							StatusType.REBALANCE_ERROR.name());
 				}
 				break;
+			case REBALANCE_RANGE:
+				res = rebalanceRangeHandler(key, value);
+				break;
+			case REBALANCE_BATCH:
+				res = rebalanceBatchHandler(key, value);
+				break;
 			case KEYRANGE:
 				res = new KVMessage(
 						StatusType.KEYRANGE_SUCCESS.name()
@@ -1281,24 +3154,67 @@ public class KVServer extends Thread implements IKVServer {
 								+ " " + serializeReadMetadata());
 				break;
 			case PUT:
-				BigInteger[] ownKeyrange = metadata.get(this.address + ":" + this.port);
 				if (rebalancing) {
 					res = new KVMessage(
 							StatusType.SERVER_WRITE_LOCK.name());
-				} else if (ownKeyrange != null
-						&& !Hash.inHashRange(key, ownKeyrange[0], ownKeyrange[1])) {
+				} else if (metadata.containsKey(this.address + ":" + this.port)
+						&& !isCoordinator(key)) {
 					res = new KVMessage(
 							StatusType.SERVER_NOT_RESPONSIBLE.name());
 				} else {
-					res = putHandler(kvs, key, value);
-					if (replica1 != null)
-						replica1.putToReplica(key, value);
-					if (replica2 != null)
-						replica2.putToReplica(key, value);
+					Map<KVReplica, Long> seqs;
+					synchronized (writeOrder) {
+						res = putHandler(kvs, key, value);
+						expiries.remove(key);
+						seqs = replicate(key, value, newVersion(key), -1);
+					}
+					res = awaitWriteConcern(
+							res,
+							seqs,
+							conn == null ? 1 : conn.writeConcern);
+				}
+				break;
+			case PUT_IF_VERSION:
+				res = writeRejection(key);
+				if (res == null) {
+					res = putIfVersionHandler(
+							key, value, conn == null ? 1 : conn.writeConcern);
 				}
 				break;
+			case PUT_TTL:
+				res = writeRejection(key);
+				if (res == null) {
+					res = putTtlHandler(
+							key, value, conn == null ? 1 : conn.writeConcern);
+				}
+				break;
+			case INCR:
+			case APPEND:
+				res = writeRejection(key);
+				if (res == null) {
+					res = updateHandler(
+							status, key, value, conn == null ? 1 : conn.writeConcern);
+				}
+				break;
+			case GET_VERSIONED:
+				res = getVersionedHandler(key);
+				break;
+			case GET_IF_MODIFIED:
+				res = getIfModifiedHandler(key, value);
+				break;
+			case REPAIR:
+				res = repairHandler(key, value);
+				break;
+			case CONNECTION_OPTION:
+				res = setConnectionOption(conn, key, value);
+				break;
 			case GET:
+			case GET_WITH_REPLICAS:
 				try {
+					if (expiries.isExpired(key, System.currentTimeMillis())) {
+						// not reaped yet
+						throw new Exception("Key has expired.");
+					}
 					res = new KVMessage(
 							StatusType.GET_SUCCESS.name()
 									+ " " + key
@@ -1306,12 +3222,8 @@ public class KVServer extends Thread implements IKVServer {
 				} catch (Exception e) {
 					// if there is no ECS return status should be GET_ERROR
 					// otherwise it might be in keyrange of other server
-					// OR - if in keyrange and doesnt exist, then return GET_ERROR
-
-					BigInteger[] kr = metadata.get(this.address + ":" + this.port);
-					boolean responsibleForKey = kr != null &&
-							Hash.inHashRange(key, kr[0], kr[1]);
-					if (startedBySelf || responsibleForKey) {
+					// OR - if in read keyrange and doesnt exist, then return GET_ERROR
+					if (startedBySelf || inReadRange(key)) {
 						res = new KVMessage(
 								StatusType.GET_ERROR.name());
 						logger.error("Error: " + e);
@@ -1321,12 +3233,16 @@ public class KVServer extends Thread implements IKVServer {
 						logger.info(e);
 					}
 				}
+				recordRead(key);
+				res = hotKeyReply(status, key, res);
+				break;
+			case HOT_KEY_COPY:
+			case HOT_KEY_DROP:
+				res = hotKeyHandler(status, key, value);
 				break;
 			case SUBSCRIBE:
 				try {
-					BigInteger[] kr = metadata.get(this.address + ":" + this.port);
-					boolean responsibleForKey = kr != null &&
-							Hash.inHashRange(key, kr[0], kr[1]);
+					boolean responsibleForKey = isCoordinator(key);
 					if (startedBySelf || responsibleForKey) {
 						StringBuilder subscribers_string = new StringBuilder();
 						// if key is not already subscribed to
@@ -1358,9 +3274,7 @@ public class KVServer extends Thread implements IKVServer {
 				break;
 			case UNSUBSCRIBE:
 				try {
-					BigInteger[] kr = metadata.get(this.address + ":" + this.port);
-					boolean responsibleForKey = kr != null &&
-							Hash.inHashRange(key, kr[0], kr[1]);
+					boolean responsibleForKey = isCoordinator(key);
 					if (startedBySelf || responsibleForKey) {
 						// contains the key and the client trying to unsubscribe is subscribed
 						if (subscribers.containsKey(key) && subscribers.get(key).contains(value)) {
@@ -1403,7 +3317,74 @@ public class KVServer extends Thread implements IKVServer {
 
 		}
 
-		return res;
+		if (res.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE && key != null) {
+			recordLoad(status, key);
+		}
+
+		if (conn != null && conn.forward
+				&& res.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+			res = forward(msg, res, conn.writeConcern);
+		}
+
+		return stamp(res);
+	}
+
+	/**
+	 * Stamps a response with the ring epoch once the ECS has
+	 * assigned one. Every response is stamped, so clients can tell
+	 * their metadata is stale without a request failing first.
+	 * 
+	 * @param res response to stamp
+	 * @return stamped response
+	 */
+	private KVMessage stamp(KVMessage res) {
+		long epoch = ringEpoch;
+		return epoch > 0 ? res.stamp(epoch) : res;
+	}
+
+	/**
+	 * Passes a request this server is not responsible for on to
+	 * the coordinator of its key, one hop over a pooled connection,
+	 * and returns its reply, stamped like any other. The client
+	 * gets its answer without fetching metadata first, and can
+	 * refresh its metadata later when it sees a newer epoch.
+	 * 
+	 * Only requests for a single key that the coordinator can
+	 * answer are forwarded. The owner is not asked to forward
+	 * again, so a request never travels more than one hop.
+	 * 
+	 * @param msg          request
+	 * @param res          SERVER_NOT_RESPONSIBLE reply of this server
+	 * @param writeConcern write concern of the client connection
+	 * @return reply of the owner, or res if it could not be forwarded
+	 */
+	private KVMessage forward(KVMessage msg, KVMessage res, int writeConcern) {
+		switch (msg.getStatus()) {
+			case GET:
+			case GET_WITH_REPLICAS:
+			case GET_IF_MODIFIED:
+			case PUT:
+			case PUT_TTL:
+			case PUT_IF_VERSION:
+			case INCR:
+			case APPEND:
+				break;
+			default:
+				return res;
+		}
+
+		String owner = coordinatorOf(msg.getKey());
+		if (owner == null || owner.equals(this.address + ":" + this.port)) {
+			return res;
+		}
+
+		try {
+			logger.info("Forwarding " + msg.getStatus() + " " + msg.getKey() + " to " + owner);
+			return forwardPool.send(owner, writeConcern, msg.msg);
+		} catch (IOException e) {
+			logger.error("Unable to forward to " + owner, e);
+			return res;
+		}
 	}
 
 	/**
@@ -1421,6 +3402,7 @@ public class KVServer extends Thread implements IKVServer {
 
 			Integer ecsPort = null;
 			String ecsAddress = null;
+			int weight = 1;
 
 			// Parse args
 			for (int i = 0; i < args.length; i++) {
@@ -1473,6 +3455,20 @@ public class KVServer extends Thread implements IKVServer {
 							System.exit(1);
 						}
 						break;
+					case "-w": // capacity weight
+						try {
+							weight = Integer.parseInt(args[i + 1]);
+						} catch (NumberFormatException nfe) {
+							System.out.println(
+									"Error: Invalid argument <weight>! Not a number!");
+							System.exit(1);
+						}
+						if (weight < 1) {
+							System.out.println(
+									"Error: Invalid argument <weight>! Must be at least 1!");
+							System.exit(1);
+						}
+						break;
 					case "-h":
 						StringBuilder sb = new StringBuilder();
 						sb.append("SERVER APPLICATION HELP (Usage):\n");
@@ -1491,6 +3487,9 @@ public class KVServer extends Thread implements IKVServer {
 						sb.append("-ll <logLevel>");
 						sb.append("\t changes the log level. <logLevel>: ");
 						sb.append(LogSetup.getPossibleLogLevels());
+						sb.append("-w <weight>");
+						sb.append("\t capacity relative to other servers, for its share of the ring. ");
+						sb.append("<weight>: integer");
 						System.out.println(sb.toString());
 						break;
 					default:
@@ -1506,11 +3505,10 @@ public class KVServer extends Thread implements IKVServer {
 			new LogSetup(logPath, logLevel);
 			KVServer kvServer = new KVServer(port, 0, "None");
 			kvServer.dataPath = dataDir + "/storage.json";
-			kvServer.replica1DataPath = dataDir + "/storage_replica_1.json";
-			kvServer.replica2DataPath = dataDir + "/storage_replica_2.json";
 			kvServer.address = address;
 			kvServer.ecsAddress = ecsAddress;
 			kvServer.ecsPort = ecsPort;
+			kvServer.weight = weight;
 
 			kvServer.start();
 
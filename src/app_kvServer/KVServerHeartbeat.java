@@ -1,47 +1,69 @@
 package app_kvServer;
 
-import java.io.OutputStream;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import org.apache.log4j.Logger;
 
-import shared.messages.KVMessage;
-import shared.messages.CommProtocol;
-
+/**
+ * Sends the ECS a heartbeat every few hundred milliseconds, which
+ * its failure detector judges this server by. Heartbeats are UDP
+ * datagrams to the ECS's port rather than messages on the ECS
+ * connection, so they are never queued behind replies to the ECS,
+ * and nothing else is done on this thread.
+ */
 public class KVServerHeartbeat implements Runnable {
 
 	private static Logger logger = Logger.getRootLogger();
 
-    private int period = 10;
+    private static final long HEARTBEAT_INTERVAL = 250;
 
     private Socket ecsSocket;
-    private String addr;
-    private int port;
+    private DatagramSocket heartbeatSocket;
+    private byte[] heartbeat;
+
+    private volatile boolean running = true;
 
     public KVServerHeartbeat(Socket ecsSocket, String addr, int port) {
         this.ecsSocket = ecsSocket;
-        this.addr = addr;
-        this.port = port;
+        this.heartbeat = ("HEARTBEAT " + addr + " " + port).getBytes();
     }
 
     public void sendHeartbeat() {
         try {
-            OutputStream output = ecsSocket.getOutputStream();
-            CommProtocol.sendMessage(
-                new KVMessage("HEARTBEAT " + addr + " " + port), output);
+            heartbeatSocket.send(new DatagramPacket(heartbeat, heartbeat.length,
+                ecsSocket.getInetAddress(), ecsSocket.getPort()));
         } catch (IOException e) {
             logger.error(e);
         }
     }
 
+    /**
+     * Stops sending heartbeats, so the ECS detects the server as
+     * failed. They also stop when the connection to the ECS closes.
+     */
+    public void stop() {
+        running = false;
+    }
+
     public void run() {
-        while (true) {
+        try {
+            heartbeatSocket = new DatagramSocket();
+        } catch (SocketException e) {
+            logger.error("Unable to open heartbeat socket", e);
+            return;
+        }
+
+        while (running && !ecsSocket.isClosed()) {
             try {
                 sendHeartbeat();
-                Thread.sleep(10000);
+                Thread.sleep(HEARTBEAT_INTERVAL);
             } catch (Exception e) {
                 logger.error(e);
             }
         }
+        heartbeatSocket.close();
     }
 }
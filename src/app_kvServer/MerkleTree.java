@@ -0,0 +1,143 @@
+package app_kvServer;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import shared.Hash;
+
+/**
+ * Hash tree over the contents of one store, used to find which keys
+ * differ between a coordinator and its replica without sending the
+ * whole key space.
+ *
+ * Keys are placed into LEAVES buckets by the top bits of their ring
+ * position, so a bucket covers a fixed slice of the hash ring. A leaf
+ * digest is the XOR of the hashes of its "key value" entries, which
+ * makes it independent of iteration order. The root is the hash of
+ * all leaf digests.
+ */
+public class MerkleTree {
+
+    public static final int LEAF_BITS = 8;
+    public static final int LEAVES = 1 << LEAF_BITS;
+
+    /* digest of a leaf that holds no keys */
+    public static final String EMPTY = "0";
+
+    private final String[] leaves;
+    private final String root;
+
+    private MerkleTree(String[] leaves) {
+        this.leaves = leaves;
+        StringBuilder sb = new StringBuilder();
+        for (String leaf : leaves) {
+            sb.append(leaf).append(",");
+        }
+        this.root = Hash.hash(sb.toString()).toString(16);
+    }
+
+    /**
+     * Builds the tree for a snapshot of a store.
+     *
+     * @param kvs store to build the tree over
+     * @return tree for the store's current contents
+     */
+    public static MerkleTree build(Map<String, String> kvs) {
+        BigInteger[] digests = new BigInteger[LEAVES];
+        for (Map.Entry<String, String> kv : kvs.entrySet()) {
+            int leaf = leafOf(kv.getKey());
+            BigInteger entry = Hash.hash(kv.getKey() + " " + kv.getValue());
+            digests[leaf] = digests[leaf] == null ? entry : digests[leaf].xor(entry);
+        }
+
+        String[] leaves = new String[LEAVES];
+        for (int i = 0; i < LEAVES; i++) {
+            leaves[i] = digests[i] == null ? EMPTY : digests[i].toString(16);
+        }
+        return new MerkleTree(leaves);
+    }
+
+    /**
+     * Parses a tree sent by a peer with serialize().
+     *
+     * @param serialized root followed by the leaf digests
+     * @return the peer's tree
+     * @throws IllegalArgumentException if the leaf count is wrong
+     */
+    public static MerkleTree parse(String serialized) {
+        String[] parts = serialized.trim().split("\\s+");
+        if (parts.length != LEAVES + 1) {
+            throw new IllegalArgumentException(
+                "Expected " + LEAVES + " leaves, got " + (parts.length - 1));
+        }
+        String[] leaves = new String[LEAVES];
+        System.arraycopy(parts, 1, leaves, 0, LEAVES);
+        return new MerkleTree(leaves);
+    }
+
+    /**
+     * @param key key to place
+     * @return index of the leaf that covers the key's ring position
+     */
+    public static int leafOf(String key) {
+        return Hash.hash(key).shiftRight(128 - LEAF_BITS).intValue();
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return root followed by every leaf digest, space separated
+     */
+    public String serialize() {
+        StringBuilder sb = new StringBuilder(root);
+        for (String leaf : leaves) {
+            sb.append(" ").append(leaf);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param other tree of the peer store
+     * @return indices of leaves whose digests differ, empty if the roots match
+     */
+    public List<Integer> diff(MerkleTree other) {
+        List<Integer> divergent = new ArrayList<Integer>();
+        if (root.equals(other.root)) {
+            return divergent;
+        }
+        for (int i = 0; i < LEAVES; i++) {
+            if (!leaves[i].equals(other.leaves[i])) {
+                divergent.add(i);
+            }
+        }
+        return divergent;
+    }
+
+    /**
+     * Lists the keys of a store that fall in the given leaves,
+     * along with a hash of each value.
+     *
+     * @param kvs    store to list
+     * @param leaves leaf indices to include
+     * @return key to value hash
+     */
+    public static Map<String, String> entriesIn(
+            Map<String, String> kvs, List<Integer> leaves) {
+        boolean[] wanted = new boolean[LEAVES];
+        for (int leaf : leaves) {
+            wanted[leaf] = true;
+        }
+        Map<String, String> entries = new HashMap<String, String>();
+        for (Map.Entry<String, String> kv : kvs.entrySet()) {
+            if (wanted[leafOf(kv.getKey())]) {
+                entries.put(kv.getKey(), Hash.hash(kv.getValue()).toString(16));
+            }
+        }
+        return entries;
+    }
+}
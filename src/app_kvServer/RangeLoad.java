@@ -0,0 +1,40 @@
+package app_kvServer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Requests a coordinator served per token of the ring since the last
+ * load report, so the ECS can find ranges that are hotter than the
+ * rest.
+ */
+public class RangeLoad {
+
+    private Map<String, Long> requests = new HashMap<String, Long>();
+    private long since = System.currentTimeMillis();
+
+    /**
+     * @param token token whose range a request fell in
+     */
+    public synchronized void record(String token) {
+        Long count = requests.get(token);
+        requests.put(token, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Takes the request rates and starts counting anew.
+     *
+     * @return requests per second by token since the last call
+     */
+    public synchronized Map<String, Long> takeRates() {
+        long now = System.currentTimeMillis();
+        long seconds = Math.max(1, (now - since) / 1000);
+        Map<String, Long> rates = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> count : requests.entrySet()) {
+            rates.put(count.getKey(), count.getValue() / seconds);
+        }
+        requests = new HashMap<String, Long>();
+        since = now;
+        return rates;
+    }
+}
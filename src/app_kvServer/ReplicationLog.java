@@ -0,0 +1,129 @@
+package app_kvServer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bounded, in-order log of the mutations a coordinator has replicated.
+ * Every mutation gets the next sequence number; the oldest records
+ * are discarded once the log holds more than its capacity in records
+ * or its character limit in encoded records, so a few large values
+ * cannot pin much memory. A replica that reconnects
+ * reports the last sequence number it applied and is sent the
+ * records after it, as long as they are still in the log.
+ *
+ * Sequence numbers restart with every coordinator process, so the
+ * log carries a random epoch that replicas use to tell logs apart.
+ *
+ * Callers that need the log order to match the order records are
+ * queued on replicas synchronize on the log.
+ */
+public class ReplicationLog {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long DEFAULT_MAX_CHARS = 16 * 1024 * 1024;
+
+    private final String epoch = UUID.randomUUID().toString();
+    private final int capacity;
+    private final long maxChars;
+    private final ArrayDeque<ReplicationRecord> records =
+        new ArrayDeque<ReplicationRecord>();
+    private long chars = 0;
+    private long lastSeq = 0;
+
+    public ReplicationLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReplicationLog(int capacity) {
+        this(capacity, DEFAULT_MAX_CHARS);
+    }
+
+    public ReplicationLog(int capacity, long maxChars) {
+        this.capacity = capacity;
+        this.maxChars = maxChars;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Tags a mutation with the next sequence number and keeps it.
+     *
+     * @param key     key that changed
+     * @param value   new value, "null" for a delete
+     * @param version version of the key after the mutation
+     * @return the logged record
+     */
+    public ReplicationRecord append(String key, String value, long version) {
+        return append(key, value, version, -1);
+    }
+
+    /**
+     * Tags a mutation with the next sequence number and keeps it.
+     *
+     * @param key      key that changed
+     * @param value    new value, "null" for a delete
+     * @param version  version of the key after the mutation
+     * @param deadline time the key expires at, -1 if it does not
+     * @return the logged record
+     */
+    public synchronized ReplicationRecord append(
+            String key, String value, long version, long deadline) {
+        lastSeq++;
+        ReplicationRecord record = new ReplicationRecord(lastSeq, key, value, version, deadline);
+        records.addLast(record);
+        chars += record.encodedLength();
+        while (records.size() > capacity || (chars > maxChars && records.size() > 1)) {
+            chars -= records.removeFirst().encodedLength();
+        }
+        return record;
+    }
+
+    /**
+     * Counts a mutation no replica needs, when there are none. The
+     * sequence number still advances and the log is emptied, so a
+     * replica that resumes later finds the gap and is synced in full
+     * instead of missing the mutation.
+     */
+    public synchronized void skip() {
+        lastSeq++;
+        records.clear();
+        chars = 0;
+    }
+
+    /**
+     * @return sequence number of the most recent record, 0 if none
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Records a replica has not applied yet.
+     *
+     * @param appliedSeq last sequence number the replica applied
+     * @return records after appliedSeq in order, or null if some of
+     *         them have already been discarded
+     */
+    public synchronized List<ReplicationRecord> since(long appliedSeq) {
+        if (appliedSeq < 0 || appliedSeq > lastSeq) {
+            return null;
+        }
+        long firstSeq = records.isEmpty() ? lastSeq + 1 : records.peekFirst().seq;
+        if (appliedSeq + 1 < firstSeq) {
+            return null;
+        }
+
+        List<ReplicationRecord> missed = new ArrayList<ReplicationRecord>();
+        for (ReplicationRecord record : records) {
+            if (record.seq > appliedSeq) {
+                missed.add(record);
+            }
+        }
+        return missed;
+    }
+}
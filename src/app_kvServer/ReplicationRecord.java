@@ -0,0 +1,102 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single coordinator mutation on its way to a replica. Records are
+ * batched into one PUT_BATCH_FROM_COORDINATOR frame and each carries the
+ * sequence number the replica acknowledges, along with the version the
+ * coordinator gave the key and the time the key expires at, so that a
+ * replica promoted to coordinator keeps expiring it.
+ */
+public class ReplicationRecord {
+
+    public final long seq;
+    public final String key;
+    public final String value;
+    public final long version;
+    public final long deadline; // -1 if the key does not expire
+
+    public ReplicationRecord(long seq, String key, String value, long version) {
+        this(seq, key, value, version, -1);
+    }
+
+    public ReplicationRecord(long seq, String key, String value, long version, long deadline) {
+        this.seq = seq;
+        this.key = key;
+        this.value = value;
+        this.version = version;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return approximate number of characters this record takes up in a frame
+     */
+    public int encodedLength() {
+        return 64 + key.length() + value.length();
+    }
+
+    /**
+     * Serializes records into the body of a batch frame. Each record is
+     * written as "SEQ KEY VERSION DEADLINE VALUE_LENGTH VALUE" so that values may
+     * contain spaces.
+     *
+     * @param records records to encode, in sequence order
+     * @return frame body
+     */
+    public static String encode(List<ReplicationRecord> records) {
+        StringBuilder sb = new StringBuilder();
+        for (ReplicationRecord record : records) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(record.seq).append(" ")
+                .append(record.key).append(" ")
+                .append(record.version).append(" ")
+                .append(record.deadline).append(" ")
+                .append(record.value.length()).append(" ")
+                .append(record.value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses the body of a batch frame back into records.
+     *
+     * @param body frame body produced by encode
+     * @return list of records in the order they were sent
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    public static List<ReplicationRecord> decode(String body) {
+        List<ReplicationRecord> records = new ArrayList<ReplicationRecord>();
+        if (body == null) {
+            return records;
+        }
+
+        int i = 0;
+        try {
+            while (i < body.length()) {
+                int seqEnd = body.indexOf(' ', i);
+                long seq = Long.parseLong(body.substring(i, seqEnd));
+                int keyEnd = body.indexOf(' ', seqEnd + 1);
+                String key = body.substring(seqEnd + 1, keyEnd);
+                int versionEnd = body.indexOf(' ', keyEnd + 1);
+                long version = Long.parseLong(body.substring(keyEnd + 1, versionEnd));
+                int deadlineEnd = body.indexOf(' ', versionEnd + 1);
+                long deadline = Long.parseLong(body.substring(versionEnd + 1, deadlineEnd));
+                int lenEnd = body.indexOf(' ', deadlineEnd + 1);
+                int len = Integer.parseInt(body.substring(deadlineEnd + 1, lenEnd));
+                // trailing whitespace of the last value is trimmed in transit
+                int valEnd = Math.min(lenEnd + 1 + len, body.length());
+                String value = body.substring(lenEnd + 1, valEnd);
+
+                records.add(new ReplicationRecord(seq, key, value, version, deadline));
+                i = valEnd + 1;
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed replication batch", e);
+        }
+        return records;
+    }
+}
@@ -16,10 +16,23 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
@@ -41,8 +54,46 @@ public class KVStore implements KVCommInterface {
 	public String serverSockAddr;
 	public int serverSockPort;
 
-	private Map<String, BigInteger[]> metadata;
-	private Map<String, BigInteger[]> metadataRead;
+	// replaced as a whole on update, may be refreshed in the background
+	private volatile Map<String, BigInteger[]> metadata;
+	private volatile Map<String, BigInteger[]> metadataRead;
+
+	// ring epoch of the metadata, 0 until a stamped reply is seen
+	private volatile long ringEpoch = 0;
+	private final AtomicBoolean refreshingMetadata = new AtomicBoolean();
+
+	// read connections to every server that has served a GET, by "ADDR:PORT"
+	private Map<String, ServerConnection> readConnections =
+		new HashMap<String, ServerConnection>();
+
+	private int writeConcern = 1;
+	private boolean forwarding = false;
+
+	/* hot keys: extra servers holding copies, and until when to use them */
+	private static final long HOT_KEY_TTL = 10000; // ms
+	private boolean hotKeyReads = false;
+	private Map<String, List<String>> hotKeyServers = new HashMap<String, List<String>>();
+	private Map<String, Long> hotKeyExpiry = new HashMap<String, Long>();
+
+	/* hedged reads: delay before a second GET is sent to another replica */
+	private static final double HEDGE_PERCENTILE = 0.95;
+	private static final int HEDGE_MIN_SAMPLES = 20;
+	private static final long HEDGE_DEFAULT_DELAY = 20; // ms, until enough samples
+	private static final int LATENCY_WINDOW = 256;
+
+	private boolean hedgedReads = false;
+	private int readQuorum = 1;
+	private final long[] getLatencies = new long[LATENCY_WINDOW]; // ns, ring buffer
+	private int getLatencyCount = 0;
+
+	private static final ExecutorService readExecutor =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "read");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
 	
 	/**
@@ -84,13 +135,160 @@ public class KVStore implements KVCommInterface {
 			"Connection established to address "
 			+ address + " and port " + port);
 		connected = true;
+		if (!asyncReads()) {
+			readConnection(address + ":" + port).borrow(input, output);
+		}
+
+		if (writeConcern != 1) {
+			sendConnectionOption("write_concern", String.valueOf(writeConcern));
+		}
+		if (forwarding) {
+			sendConnectionOption("forward", "1");
+		}
+	}
+
+	/**
+	 * Sets how many copies a PUT must reach before the server
+	 * acknowledges it: 1 for the coordinator only, 2 for the
+	 * coordinator and one replica, 3 for the coordinator and
+	 * all replicas. Applies to the current and future connections.
+	 *
+	 * @param writeConcern write concern to use
+	 * @throws Exception if the server rejects the write concern
+	 */
+	public void setWriteConcern(int writeConcern) throws Exception {
+		this.writeConcern = writeConcern;
+		if (connected) {
+			sendConnectionOption("write_concern", String.valueOf(writeConcern));
+		}
+	}
+
+	/**
+	 * Asks the connected server to pass requests for keys it is not
+	 * responsible for on to their owner, instead of answering
+	 * SERVER_NOT_RESPONSIBLE. Requests then succeed in one round
+	 * trip while the client's metadata is stale, and the metadata
+	 * is refreshed in the background when a reply carries a newer
+	 * ring epoch. Applies to the current and future connections.
+	 *
+	 * @param forwarding true to have requests forwarded
+	 * @throws Exception if the server rejects the option
+	 */
+	public void setForwarding(boolean forwarding) throws Exception {
+		this.forwarding = forwarding;
+		if (connected) {
+			sendConnectionOption("forward", forwarding ? "1" : "0");
+		}
 	}
 
 	/**
-	 * Disconnects the client from the currently connected server.
+	 * Asks servers to name the extra servers that keep copies of a
+	 * key while it is hot, and spreads GETs of such keys over them
+	 * as well. The extra servers are used for a short while after
+	 * each reply naming them, so reads narrow back to the usual
+	 * servers once the key cools down.
+	 *
+	 * @param hotKeyReads true to spread reads of hot keys
+	 */
+	public void setHotKeyReads(boolean hotKeyReads) {
+		this.hotKeyReads = hotKeyReads;
+		if (!hotKeyReads) {
+			hotKeyServers.clear();
+			hotKeyExpiry.clear();
+		}
+	}
+
+	/**
+	 * @return ring epoch of the metadata this client holds
+	 */
+	public long getRingEpoch() {
+		return ringEpoch;
+	}
+
+	/**
+	 * Enables hedged reads: if a GET has not been answered within
+	 * the 95th percentile of recent GET latencies, a second GET is
+	 * sent to another server holding the key and the first answer
+	 * wins. Cuts tail latency caused by slow or stalled servers at
+	 * the cost of a few extra requests.
+	 *
+	 * @param hedgedReads true to hedge GETs
+	 */
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+		updateMainReadConnection();
+	}
+
+	/**
+	 * Sets how many servers must answer a GET. With a quorum above 1
+	 * the GET is sent to the coordinator and all replicas of the key
+	 * at once, the newest version among the first R answers is
+	 * returned, and servers found holding an older version are
+	 * repaired in the background.
+	 *
+	 * @param readQuorum number of servers that must answer, 1 to read
+	 *                   from a single server
+	 */
+	public void setReadQuorum(int readQuorum) {
+		this.readQuorum = readQuorum;
+		updateMainReadConnection();
+	}
+
+	/**
+	 * @return true if reads may still be in flight after get returns
+	 */
+	private boolean asyncReads() {
+		return hedgedReads || readQuorum > 1;
+	}
+
+	/**
+	 * Reads that may be abandoned or finish in the background cannot
+	 * share the main connection's streams; synchronous reads do.
+	 */
+	private void updateMainReadConnection() {
+		ServerConnection mainConn = readConnections.get(address + ":" + port);
+		if (asyncReads() && mainConn != null) {
+			mainConn.close();
+		} else if (!asyncReads() && connected) {
+			readConnection(address + ":" + port).borrow(input, output);
+		}
+	}
+
+	/**
+	 * Sets an option on the current server connection.
+	 *
+	 * @param option option name
+	 * @param value option value
+	 * @throws Exception if the server rejects the option
+	 */
+	private void sendConnectionOption(String option, String value)
+			throws Exception {
+		KVMessage res = sendKVMessage(
+			StatusType.CONNECTION_OPTION.name() + " " + option + " " + value);
+		if (res == null
+				|| res.getStatus() != StatusType.CONNECTION_OPTION_SUCCESS) {
+			throw new Exception("Server rejected " + option + " " + value);
+		}
+	}
+
+	/**
+	 * Disconnects the client from the currently connected server
+	 * and closes its read connections.
 	 */
 	@Override
 	public void disconnect() {
+		for (ServerConnection conn : readConnections.values()) {
+			conn.close();
+		}
+		readConnections.clear();
+		disconnectServer();
+	}
+
+	/**
+	 * Disconnects the client from the currently connected server,
+	 * keeping read connections open.
+	 */
+	private void disconnectServer() {
 		logger.info("Attempting to close connection...");
 		
 		try {
@@ -108,15 +306,18 @@ public class KVStore implements KVCommInterface {
 	 * string, and stores it in the metadata map.
 	 * 
 	 * Metadata string format:
-	 * KEYRANGE_START,KEYRANGE_END,ADDR:PORT;
+	 * KEYRANGE_START,KEYRANGE_END,TOKEN;
 	 * 
 	 * Metadata map format:
-	 * {"ADDR:PORT", [KEYRANGE_START, KEYRANGE_END]}
+	 * {"TOKEN", [KEYRANGE_START, KEYRANGE_END]}
+	 * 
+	 * where TOKEN is ADDR:PORT, or ADDR:PORT#i for the other
+	 * ranges of a server with virtual tokens.
 	 * 
 	 * @param newMetadata string of new metadata
 	 */
 	public void updateMetadata(String newMetadata) {
-		metadata.clear();
+		Map<String, BigInteger[]> parsed = new HashMap<String, BigInteger[]>();
 
 		for (String server: newMetadata.split(";")) {
 			String[] serverInfo = server.split(",");
@@ -124,9 +325,10 @@ public class KVStore implements KVCommInterface {
 			BigInteger keyrange_end = new BigInteger(serverInfo[1], 16);
 			String addrStr = serverInfo[2];
 
-			metadata.put(
+			parsed.put(
 					addrStr, new BigInteger[]{keyrange_start, keyrange_end});
 		}
+		metadata = parsed;
 
 		logger.info("Updated metadata to: " + newMetadata);
 	}
@@ -136,7 +338,7 @@ public class KVStore implements KVCommInterface {
 	 * @param newMetadata
 	 */
 	public void updateReadMetadata(String newMetadata) {		
-		metadataRead.clear();
+		Map<String, BigInteger[]> parsed = new HashMap<String, BigInteger[]>();
 
 		for (String server: newMetadata.split(";")) {
 			String[] serverInfo = server.split(",");
@@ -144,9 +346,10 @@ public class KVStore implements KVCommInterface {
 			BigInteger keyrange_end = new BigInteger(serverInfo[1], 16);
 			String addrStr = serverInfo[2];
 
-			metadataRead.put(
+			parsed.put(
 					addrStr, new BigInteger[]{keyrange_start, keyrange_end});
 		}
+		metadataRead = parsed;
 
 		logger.info("Updated metadata to: " + newMetadata);
 
@@ -177,9 +380,61 @@ public class KVStore implements KVCommInterface {
 			connectionLost();
 		}
 
+		if (res != null && res.getStatus() != StatusType.KEYRANGE_SUCCESS) {
+			checkEpoch(res);
+		}
 		return res;
 	}
 
+	/**
+	 * Refreshes the metadata in the background if a reply was
+	 * stamped with a newer ring epoch than the metadata held.
+	 * Every server reply carries the epoch, so the client notices a
+	 * membership change on its next request to any server rather
+	 * than after a request fails.
+	 *
+	 * @param res reply from a server
+	 */
+	private void checkEpoch(KVMessage res) {
+		if (res.getEpoch() <= ringEpoch
+				|| !refreshingMetadata.compareAndSet(false, true)) {
+			return;
+		}
+		final String server = address + ":" + port;
+		readExecutor.submit(new Runnable() {
+			public void run() {
+				refreshMetadata(server);
+			}
+		});
+	}
+
+	/**
+	 * Fetches both metadata strings over a separate connection, so
+	 * requests on the main connection are not held up.
+	 *
+	 * @param server "ADDR:PORT" of the server to ask
+	 */
+	private void refreshMetadata(String server) {
+		ServerConnection conn = new ServerConnection(
+			server.split(":")[0], Integer.parseInt(server.split(":")[1]));
+		try {
+			KVMessage res = conn.send(StatusType.KEYRANGE.name());
+			KVMessage readRes = conn.send(StatusType.KEYRANGE_READ.name());
+			if (res.getStatus() == StatusType.KEYRANGE_SUCCESS && res.getKey() != null
+					&& readRes.getStatus() == StatusType.KEYRANGE_SUCCESS
+					&& readRes.getKey() != null) {
+				updateMetadata(res.getKey());
+				updateReadMetadata(readRes.getKey());
+				ringEpoch = Math.max(ringEpoch, res.getEpoch());
+			}
+		} catch (Exception e) {
+			logger.error("Unable to refresh metadata from " + server, e);
+		} finally {
+			conn.close();
+			refreshingMetadata.set(false);
+		}
+	}
+
 	/**
 	 * 
 	 * @return
@@ -188,6 +443,7 @@ public class KVStore implements KVCommInterface {
 	public String keyrangeRead() throws Exception  {
 
 		KVMessage res = sendKVMessage("KEYRANGE_READ");
+		ringEpoch = Math.max(ringEpoch, res.getEpoch());
 
 		return res.getKey();
 	}
@@ -200,6 +456,7 @@ public class KVStore implements KVCommInterface {
 	public String keyrange() throws Exception  {
 		
 		KVMessage res = sendKVMessage("KEYRANGE");
+		ringEpoch = Math.max(ringEpoch, res.getEpoch());
 
 		return res.getKey();
 	}
@@ -246,6 +503,142 @@ public class KVStore implements KVCommInterface {
 
 	}
 
+	/**
+	 * Inserts a key-value pair only if the key is still at the given
+	 * version, as returned by getIfModified or an earlier
+	 * putIfVersion. Lets a client read, modify and write a key
+	 * without a concurrent writer's update being lost.
+	 *
+	 * @param key     the key that identifies the given value.
+	 * @param value   the new value, "null" to delete the key.
+	 * @param version version the key must be at, 0 for a key that
+	 *                was never written.
+	 * @return PUT_IF_VERSION_SUCCESS with the new version,
+	 *         PUT_IF_VERSION_CONFLICT with the current version, or an
+	 *         error
+	 * @throws Exception if the command cannot be executed
+	 */
+	public KVMessage putIfVersion(String key, String value, long version)
+			throws Exception {
+		return sendWrite(key, "PUT_IF_VERSION " + key + " " + version + " " + value);
+	}
+
+	/**
+	 * Inserts a key-value pair that the server deletes once the TTL
+	 * has passed, e.g. for session data. Writing the key again
+	 * without a TTL keeps it for good.
+	 *
+	 * @param key   the key that identifies the given value.
+	 * @param value the value that is indexed by the given key.
+	 * @param ttl   time to keep the key, in milliseconds.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @throws Exception if the command cannot be executed
+	 */
+	public KVMessage put(String key, String value, long ttl) throws Exception {
+		return sendWrite(key, "PUT_TTL " + key + " " + ttl + " " + value);
+	}
+
+	/**
+	 * Atomically adds a delta to a numeric value on the server. A
+	 * missing key counts as 0. Replaces a get followed by a put,
+	 * which takes two round trips and can lose concurrent updates.
+	 *
+	 * @param key   the key of the counter.
+	 * @param delta amount to add, may be negative.
+	 * @return INCR_SUCCESS with the new value, or INCR_ERROR if the
+	 *         stored value is not a number
+	 * @throws Exception if the command cannot be executed
+	 */
+	public KVMessage incr(String key, long delta) throws Exception {
+		return sendWrite(key, "INCR " + key + " " + delta);
+	}
+
+	/**
+	 * Atomically appends a suffix to a value on the server. A
+	 * missing key counts as empty.
+	 *
+	 * @param key    the key of the value.
+	 * @param suffix text to append.
+	 * @return APPEND_SUCCESS with the new length of the value, or
+	 *         APPEND_ERROR
+	 * @throws Exception if the command cannot be executed
+	 */
+	public KVMessage append(String key, String suffix) throws Exception {
+		return sendWrite(key, "APPEND " + key + " " + suffix);
+	}
+
+	/**
+	 * Sends a write to the server responsible for the key, waiting
+	 * out rebalances and following keyrange changes.
+	 *
+	 * @param key    key being written
+	 * @param msgStr request to send
+	 * @return response of the responsible server
+	 * @throws Exception if the command cannot be executed
+	 */
+	private KVMessage sendWrite(String key, String msgStr) throws Exception {
+		findResponsibleServer(key, metadata);
+
+		KVMessage res = sendKVMessage(msgStr);
+
+		if (res.getStatus() == StatusType.SERVER_WRITE_LOCK) {
+			// try to wait for a second
+			Thread.sleep(1000);
+			return sendWrite(key, msgStr);
+		}
+
+		if (res.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+			String newMetadata = keyrange();
+			updateMetadata(newMetadata);
+			return sendWrite(key, msgStr);
+		}
+
+		return res;
+	}
+
+	/**
+	 * Retrieves a value only if it changed since the given version,
+	 * so unchanged values are not sent again.
+	 *
+	 * @param key     the key that identifies the value.
+	 * @param version version the client holds, 0 if none.
+	 * @return GET_NOT_MODIFIED if the version is current, otherwise
+	 *         GET_VERSIONED_SUCCESS with "version value" or
+	 *         GET_VERSIONED_ERROR if the key does not exist
+	 * @throws Exception if the command cannot be executed
+	 */
+	public KVMessage getIfModified(String key, long version) throws Exception {
+		if (!connected) {
+			throw new Exception("Not connected to a KV server.");
+		}
+
+		List<ServerConnection> candidates = findReadServers(key);
+		while (!candidates.isEmpty()) {
+			ServerConnection server = ServerConnection.choose(candidates);
+
+			KVMessage res;
+			try {
+				res = server.send("GET_IF_MODIFIED " + key + " " + version);
+				checkEpoch(res);
+			} catch (IOException e) {
+				logger.error("Unable to read from " + server.address + ":" + server.port, e);
+				readConnections.remove(server.address + ":" + server.port);
+				candidates.remove(server);
+				continue;
+			}
+
+			if (res.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				String newMetadata = keyrangeRead();
+				updateReadMetadata(newMetadata);
+				return getIfModified(key, version);
+			}
+
+			return res;
+		}
+
+		throw new Exception("No server able to serve " + key + " could be reached.");
+	}
+
 	/**
 	 * Retrieves the value for a given key from the KVServer.
 	 *
@@ -256,17 +649,348 @@ public class KVStore implements KVCommInterface {
 	 */
 	@Override
 	public KVMessage get(String key) throws Exception {
-		findResponsibleServer(key, metadataRead);
-		
-		KVMessage res = sendKVMessage("GET " + key);
+		if (!connected) {
+			throw new Exception("Not connected to a KV server.");
+		}
 
-		if (res.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
-			String newMetadata = keyrangeRead();
-			updateReadMetadata(newMetadata);
-			return get(key);
+		List<ServerConnection> candidates = findReadServers(key);
+		if (readQuorum > 1) {
+			return quorumGet(key, candidates);
+		}
+		addHotKeyServers(key, candidates);
+		String msgStr = (hotKeyReads ? StatusType.GET_WITH_REPLICAS.name() : "GET") + " " + key;
+		while (!candidates.isEmpty()) {
+			ServerConnection server = ServerConnection.choose(candidates);
+
+			KVMessage res;
+			long start = System.nanoTime();
+			try {
+				if (hedgedReads && candidates.size() > 1) {
+					res = hedgedGet(msgStr, server, candidates);
+				} else {
+					res = server.send(msgStr);
+				}
+				checkEpoch(res);
+				recordGetLatency(System.nanoTime() - start);
+			} catch (IOException e) {
+				logger.error("Unable to read from " + server.address + ":" + server.port, e);
+				readConnections.remove(server.address + ":" + server.port);
+				candidates.remove(server);
+				continue;
+			}
+
+			if (res.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				forgetHotKey(key);
+				String newMetadata = keyrangeRead();
+				updateReadMetadata(newMetadata);
+				return get(key);
+			}
+
+			if (res.getStatus() == StatusType.GET_HOT_SUCCESS) {
+				// GET_HOT_SUCCESS key "SERVERS VALUE"
+				int split = res.getValue().indexOf(' ');
+				hotKeyServers.put(key,
+					Arrays.asList(res.getValue().substring(0, split).split(",")));
+				hotKeyExpiry.put(key, System.currentTimeMillis() + HOT_KEY_TTL);
+				return new KVMessage(
+					StatusType.GET_SUCCESS.name() + " " + key
+						+ " " + res.getValue().substring(split + 1));
+			}
+
+			return res;
+		}
+
+		throw new Exception("No server able to serve " + key + " could be reached.");
+	}
+
+	/**
+	 * Adds the servers keeping copies of a hot key to the servers a
+	 * GET can be sent to, unless they were last named too long ago.
+	 *
+	 * @param key        key to read
+	 * @param candidates servers that hold the key
+	 */
+	private void addHotKeyServers(String key, List<ServerConnection> candidates) {
+		Long hotUntil = hotKeyExpiry.get(key);
+		if (hotUntil == null) {
+			return;
+		}
+		if (hotUntil < System.currentTimeMillis()) {
+			forgetHotKey(key);
+			return;
+		}
+		for (String server : hotKeyServers.get(key)) {
+			ServerConnection conn = readConnection(server);
+			if (!candidates.contains(conn)) {
+				candidates.add(conn);
+			}
 		}
-		
-		return res;
+	}
+
+	private void forgetHotKey(String key) {
+		hotKeyServers.remove(key);
+		hotKeyExpiry.remove(key);
+	}
+
+	/**
+	 * Sends a GET and, if it is not answered within the hedge delay,
+	 * a second one to another candidate. Returns the first answer
+	 * and abandons the other request.
+	 *
+	 * @param msgStr     GET request
+	 * @param first      server to try first
+	 * @param candidates every server that holds the key
+	 * @return first successful response
+	 * @throws IOException if the servers asked could not be reached
+	 */
+	private KVMessage hedgedGet(final String msgStr, final ServerConnection first,
+			List<ServerConnection> candidates) throws Exception {
+		CompletionService<KVMessage> requests =
+			new ExecutorCompletionService<KVMessage>(readExecutor);
+		long start = System.nanoTime();
+		Future<KVMessage> firstRequest = requests.submit(sendTask(first, msgStr));
+
+		Future<KVMessage> done = requests.poll(hedgeDelay(), TimeUnit.NANOSECONDS);
+		if (done == null) {
+			List<ServerConnection> others = new ArrayList<ServerConnection>(candidates);
+			others.remove(first);
+			ServerConnection second = ServerConnection.choose(others);
+			logger.info("Hedging GET to " + second.address + ":" + second.port);
+			requests.submit(sendTask(second, msgStr));
+
+			KVMessage res = null;
+			Exception error = null;
+			for (int i = 0; i < 2 && res == null; i++) {
+				done = requests.take();
+				try {
+					res = done.get();
+				} catch (ExecutionException e) {
+					error = e;
+				}
+			}
+			if (res == null) {
+				throw new IOException("Hedged GET failed on both servers", error.getCause());
+			}
+			ServerConnection loser = done == firstRequest ? second : first;
+			loser.cancel((System.nanoTime() - start) / 1000000.0);
+			return res;
+		}
+
+		try {
+			return done.get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Reads a key from every server that holds it in parallel and
+	 * returns the newest version once readQuorum servers answered.
+	 * The remaining answers are collected in the background and any
+	 * server behind the newest version is sent a REPAIR.
+	 *
+	 * @param key        key to read
+	 * @param candidates every server that holds the key
+	 * @return GET_SUCCESS with the newest value, or GET_ERROR if the
+	 *         newest version is a delete or the key was never written
+	 * @throws Exception if fewer than readQuorum servers answered
+	 */
+	private KVMessage quorumGet(final String key, List<ServerConnection> candidates)
+			throws Exception {
+		final CompletionService<KVMessage> requests =
+			new ExecutorCompletionService<KVMessage>(readExecutor);
+		final Map<Future<KVMessage>, ServerConnection> sent =
+			new HashMap<Future<KVMessage>, ServerConnection>();
+		for (ServerConnection server : candidates) {
+			sent.put(requests.submit(sendTask(
+				server, StatusType.GET_VERSIONED.name() + " " + key)), server);
+		}
+
+		int quorum = Math.min(readQuorum, candidates.size());
+		final Map<ServerConnection, KVMessage> replies =
+			new HashMap<ServerConnection, KVMessage>();
+		int pending = candidates.size();
+		boolean notResponsible = false;
+		while (replies.size() < quorum && pending > 0) {
+			Future<KVMessage> done = requests.take();
+			pending--;
+			KVMessage res = replyOf(done);
+			if (isVersioned(res)) {
+				replies.put(sent.get(done), res);
+			} else if (res != null
+					&& res.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				notResponsible = true;
+			}
+		}
+
+		if (replies.size() < quorum) {
+			if (notResponsible) {
+				String newMetadata = keyrangeRead();
+				updateReadMetadata(newMetadata);
+				return get(key);
+			}
+			throw new Exception("Read quorum of " + quorum + " not reached for " + key);
+		}
+
+		final KVMessage newest = newestReply(replies.values());
+		final int stragglers = pending;
+		readExecutor.submit(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < stragglers; i++) {
+						Future<KVMessage> done = requests.take();
+						KVMessage res = replyOf(done);
+						if (isVersioned(res)) {
+							replies.put(sent.get(done), res);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				repair(key, newest, replies);
+			}
+		});
+
+		if (newest.getStatus() == StatusType.GET_VERSIONED_SUCCESS) {
+			return new KVMessage(
+				StatusType.GET_SUCCESS.name() + " " + key + " " + valueOf(newest));
+		}
+		return new KVMessage(StatusType.GET_ERROR.name());
+	}
+
+	/**
+	 * Sends the newest version of a key to every server that answered
+	 * with an older one.
+	 *
+	 * @param key     key that was read
+	 * @param newest  newest reply
+	 * @param replies reply of each server
+	 */
+	private void repair(String key, KVMessage newest,
+			Map<ServerConnection, KVMessage> replies) {
+		long newestVersion = versionOf(newest);
+		if (newestVersion == 0) {
+			// never written anywhere
+			return;
+		}
+		String value = newest.getStatus() == StatusType.GET_VERSIONED_SUCCESS
+			? valueOf(newest) : "null";
+		for (Map.Entry<ServerConnection, KVMessage> reply : replies.entrySet()) {
+			if (versionOf(reply.getValue()) < newestVersion) {
+				ServerConnection server = reply.getKey();
+				logger.info("Repairing " + key + " on " + server.address + ":" + server.port);
+				try {
+					server.send(StatusType.REPAIR.name()
+						+ " " + key + " " + newestVersion + " " + value);
+				} catch (IOException e) {
+					logger.error("Unable to repair " + key + " on "
+						+ server.address + ":" + server.port, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param done completed request
+	 * @return the server's reply, null if it could not be reached
+	 */
+	private KVMessage replyOf(Future<KVMessage> done) {
+		try {
+			KVMessage res = done.get();
+			checkEpoch(res);
+			return res;
+		} catch (Exception e) {
+			logger.error("Quorum read failed on a server", e);
+			return null;
+		}
+	}
+
+	private static boolean isVersioned(KVMessage reply) {
+		return reply != null
+			&& (reply.getStatus() == StatusType.GET_VERSIONED_SUCCESS
+			|| reply.getStatus() == StatusType.GET_VERSIONED_ERROR);
+	}
+
+	private static KVMessage newestReply(Iterable<KVMessage> replies) {
+		KVMessage newest = null;
+		for (KVMessage reply : replies) {
+			if (newest == null || versionOf(reply) > versionOf(newest)) {
+				newest = reply;
+			}
+		}
+		return newest;
+	}
+
+	/**
+	 * @param reply GET_VERSIONED_SUCCESS "version value" or
+	 *              GET_VERSIONED_ERROR "version"
+	 * @return version in the reply
+	 */
+	private static long versionOf(KVMessage reply) {
+		return Long.parseLong(reply.getValue().split(" ", 2)[0]);
+	}
+
+	private static String valueOf(KVMessage reply) {
+		return reply.getValue().split(" ", 2)[1];
+	}
+
+	private Callable<KVMessage> sendTask(
+			final ServerConnection server, final String msgStr) {
+		return new Callable<KVMessage>() {
+			public KVMessage call() throws IOException {
+				return server.send(msgStr);
+			}
+		};
+	}
+
+	private synchronized void recordGetLatency(long latency) {
+		getLatencies[getLatencyCount % LATENCY_WINDOW] = latency;
+		getLatencyCount++;
+	}
+
+	/**
+	 * @return how long to wait for a GET before hedging, in nanoseconds
+	 */
+	private synchronized long hedgeDelay() {
+		int n = Math.min(getLatencyCount, LATENCY_WINDOW);
+		if (n < HEDGE_MIN_SAMPLES) {
+			return TimeUnit.MILLISECONDS.toNanos(HEDGE_DEFAULT_DELAY);
+		}
+		long[] sorted = Arrays.copyOf(getLatencies, n);
+		Arrays.sort(sorted);
+		return sorted[(int) Math.ceil(HEDGE_PERCENTILE * n) - 1];
+	}
+
+	/**
+	 * Uses cached read metadata to find every server that holds the
+	 * key, the coordinator and its replicas, so reads can be spread
+	 * across them.
+	 * 
+	 * @param key key to read
+	 * @return read connections for the eligible servers
+	 */
+	private List<ServerConnection> findReadServers(String key) {
+		List<ServerConnection> candidates = new ArrayList<ServerConnection>();
+		for (String node : metadataRead.keySet()) {
+			BigInteger[] kr = metadataRead.get(node);
+			if (Hash.inHashRange(key, kr[0], kr[1])) {
+				candidates.add(readConnection(Hash.serverOf(node)));
+			}
+		}
+		if (candidates.isEmpty()) {
+			candidates.add(readConnection(address + ":" + port));
+		}
+		return candidates;
+	}
+
+	private ServerConnection readConnection(String node) {
+		ServerConnection conn = readConnections.get(node);
+		if (conn == null) {
+			conn = new ServerConnection(
+				node.split(":")[0], Integer.parseInt(node.split(":")[1]));
+			readConnections.put(node, conn);
+		}
+		return conn;
 	}
 
 	/**
@@ -361,10 +1085,11 @@ public class KVStore implements KVCommInterface {
 			BigInteger krBeginning = metadata.get(node)[0];
 			BigInteger krEnding = metadata.get(node)[1];
 			if (Hash.inHashRange(key,krBeginning ,krEnding)){
-				String newAddr = node.split(":")[0];
-				int newPort = Integer.parseInt(node.split(":")[1]);
+				String server = Hash.serverOf(node);
+				String newAddr = server.split(":")[0];
+				int newPort = Integer.parseInt(server.split(":")[1]);
 				if (!newAddr.equals(this.address) || newPort != this.port) {
-					disconnect();
+					disconnectServer();
 					this.address = newAddr;
 					this.port = newPort;
 					connect();
@@ -398,6 +1123,10 @@ public class KVStore implements KVCommInterface {
 	private void tearDownConnection() {
 		connected = false;
 		logger.info("Tearing down the connection ...");
+		ServerConnection readConn = readConnections.get(address + ":" + port);
+		if (readConn != null) {
+			readConn.close();
+		}
 		if (clientSocket != null) {
 			try {
 				input.close();
@@ -0,0 +1,193 @@
+package client;
+
+import shared.messages.CommProtocol;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Connection to one KVServer used for reads, along with the latency
+ * and load the client has observed on it. KVStore keeps one per
+ * server that can serve its keys and sends each GET to the one that
+ * is expected to answer soonest.
+ */
+public class ServerConnection {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/* weight of the newest sample in the latency average */
+	private static final double ALPHA = 0.2;
+	/* share of reads sent to a random server to notice recovered nodes */
+	private static final double EXPLORE_PROBABILITY = 0.05;
+
+	private static final Random random = new Random();
+
+	public final String address;
+	public final int port;
+
+	private volatile Socket socket;
+	private OutputStream output;
+	private InputStream input;
+	private volatile boolean borrowed; // streams belong to the client's main connection
+
+	private volatile double ewmaLatency = -1; // ms, -1 until first sample
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	public ServerConnection(String address, int port) {
+		this.address = address;
+		this.port = port;
+	}
+
+	/**
+	 * Sends a request and waits for the response, recording how
+	 * long the server took. Connects on first use.
+	 *
+	 * @param msgStr request to send
+	 * @return response from the server
+	 * @throws IOException if the server cannot be reached
+	 */
+	public KVMessage send(String msgStr) throws IOException {
+		outstanding.incrementAndGet();
+		try {
+			synchronized (this) {
+				if (input == null) {
+					socket = new Socket(address, port);
+					output = socket.getOutputStream();
+					input = socket.getInputStream();
+				}
+				long start = System.nanoTime();
+				CommProtocol.sendMessage(new KVMessage(msgStr), output);
+				KVMessage res = CommProtocol.receiveMessage(input, true);
+				recordLatency((System.nanoTime() - start) / 1000000.0);
+				return res;
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Folds a latency sample into the moving average.
+	 *
+	 * @param latency observed latency in milliseconds
+	 */
+	public void recordLatency(double latency) {
+		ewmaLatency = ewmaLatency < 0
+			? latency : ALPHA * latency + (1 - ALPHA) * ewmaLatency;
+	}
+
+	public double getLatency() {
+		return ewmaLatency;
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Expected wait for a new request: the average latency scaled
+	 * by the requests already queued on this connection. Servers
+	 * without a sample score 0 so that every server gets tried.
+	 *
+	 * @return lower is better
+	 */
+	public double score() {
+		return Math.max(ewmaLatency, 0) * (outstanding.get() + 1);
+	}
+
+	/**
+	 * Picks the server to send a read to. Usually the one with the
+	 * lowest score, ties broken at random so equal servers share
+	 * the load; occasionally a random one so that a server that was
+	 * slow gets a chance to show it has recovered.
+	 *
+	 * @param candidates servers that can serve the key
+	 * @return chosen server
+	 */
+	public static ServerConnection choose(List<ServerConnection> candidates) {
+		if (candidates.size() > 1 && random.nextDouble() < EXPLORE_PROBABILITY) {
+			return candidates.get(random.nextInt(candidates.size()));
+		}
+
+		List<ServerConnection> best = new ArrayList<ServerConnection>();
+		double bestScore = Double.MAX_VALUE;
+		for (ServerConnection candidate : candidates) {
+			double score = candidate.score();
+			if (score < bestScore) {
+				best.clear();
+				bestScore = score;
+			}
+			if (score == bestScore) {
+				best.add(candidate);
+			}
+		}
+		return best.get(random.nextInt(best.size()));
+	}
+
+	/**
+	 * Abandons a request that lost a hedged read by closing the
+	 * socket it is blocked on; the next request reconnects. The
+	 * time already spent counts as a latency sample so that slow
+	 * servers are avoided.
+	 *
+	 * @param elapsed time the request has been waiting in milliseconds
+	 */
+	public void cancel(double elapsed) {
+		recordLatency(elapsed);
+		Socket s = socket;
+		if (s != null && !borrowed) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				logger.error("Error: ", e);
+			}
+		}
+	}
+
+	/**
+	 * Reads over an already open connection to the same server,
+	 * such as the client's main connection, instead of opening
+	 * another socket.
+	 *
+	 * @param input  input stream of the open connection
+	 * @param output output stream of the open connection
+	 */
+	public synchronized void borrow(InputStream input, OutputStream output) {
+		close();
+		this.input = input;
+		this.output = output;
+		borrowed = true;
+	}
+
+	public synchronized void close() {
+		if (borrowed) {
+			// owner closes the streams
+			input = null;
+			output = null;
+			borrowed = false;
+		} else if (socket != null) {
+			try {
+				input.close();
+				output.close();
+				socket.close();
+			} catch (IOException e) {
+				logger.error("Error: ", e);
+			}
+			socket = null;
+			input = null;
+			output = null;
+		}
+	}
+}
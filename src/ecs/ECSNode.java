@@ -6,6 +6,7 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -23,6 +24,7 @@ public class ECSNode implements IECSNode {
     private int port;
     private String[] hashRange;
     private StatusType status;
+    private int tokens = 1;
 
     public Socket socket;
     private InputStream input;
@@ -31,7 +33,8 @@ public class ECSNode implements IECSNode {
     private boolean connected;
     private boolean started;
 
-    private boolean heartbeat;
+    // servers send a heartbeat every 250ms
+    private PhiAccrualDetector failureDetector = new PhiAccrualDetector(250);
 
     public ECSNode(String hostname, int port, Socket socket) {
         this.hostname = hostname;
@@ -43,7 +46,6 @@ public class ECSNode implements IECSNode {
         name = hostname + ":" + port;
         connected = true;
         started = false;
-        heartbeat = true;
 
 
         try {
@@ -119,6 +121,41 @@ public class ECSNode implements IECSNode {
         return Hash.hash(this.name);
     }
 
+    /**
+     * Set the number of positions the node takes on the hash ring
+     * 
+     * @param tokens number of tokens, at least 1
+     */
+    public void setTokens(int tokens) {
+        this.tokens = Math.max(1, tokens);
+    }
+
+    /**
+     * Adds a token to the node, for the ECS to place where the
+     * node should take over load
+     * 
+     * @return name of the new token
+     */
+    public String addToken() {
+        tokens++;
+        return this.name + "#" + (tokens - 1);
+    }
+
+    /**
+     * Get names of the node's tokens; the first is the node name,
+     * so a node with one token sits at getPosition()
+     * 
+     * @return token names, "ADDR:PORT" then "ADDR:PORT#i"
+     */
+    public List<String> getTokens() {
+        List<String> tokenNames = new ArrayList<String>();
+        tokenNames.add(this.name);
+        for (int i = 1; i < tokens; i++) {
+            tokenNames.add(this.name + "#" + i);
+        }
+        return tokenNames;
+    }
+
     /**
      * Set if server associated with node is started
      * 
@@ -147,12 +184,12 @@ public class ECSNode implements IECSNode {
         }
     }
 
-    public void setHeartbeat(boolean hb) {
-        this.heartbeat = hb;
+    public void heartbeatReceived() {
+        failureDetector.heartbeat();
     }
 
-    public boolean getHeartbeat() {
-        return this.heartbeat;
+    public double getPhi() {
+        return failureDetector.phi(System.currentTimeMillis());
     }
 
 
@@ -199,7 +236,7 @@ public class ECSNode implements IECSNode {
      * @param msg KVMessage to send
      * @return response
      */
-    public KVMessage sendMessage(KVMessage msg) {
+    public synchronized KVMessage sendMessage(KVMessage msg) {
 
         KVMessage res = null;
         
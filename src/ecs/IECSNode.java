@@ -2,6 +2,7 @@ package ecs;
 
 import java.math.BigInteger;
 import java.net.Socket;
+import java.util.List;
 import shared.messages.KVMessage;
 import shared.messages.IKVMessage.StatusType;
 
@@ -29,9 +30,15 @@ public interface IECSNode {
 
     public void setSocket(Socket socket);
 
-    public void setHeartbeat(boolean hb);
+    /**
+     * Records a heartbeat of the node that arrived now.
+     */
+    public void heartbeatReceived();
 
-    public boolean getHeartbeat();
+    /**
+     * @return suspicion that the node failed, from its heartbeats
+     */
+    public double getPhi();
 
     public StatusType getNodeStatus();
 
@@ -39,6 +46,16 @@ public interface IECSNode {
 
     public BigInteger getPosition();
 
+    /**
+     * @return  names of the node's tokens on the hash ring, its own name first
+     */
+    public List<String> getTokens();
+
+    /**
+     * @return  name of a new token for the node, added to getTokens()
+     */
+    public String addToken();
+
     public void setStarted(boolean started);
 
     public boolean isStarted();
@@ -0,0 +1,79 @@
+package ecs;
+
+/**
+ * Phi-accrual failure detector for the heartbeats of one node.
+ * Instead of a yes/no timeout it gives phi, a suspicion level that
+ * grows the longer the next heartbeat is overdue compared to the
+ * intervals seen so far: phi = 1 means a 10% chance the node is
+ * still alive and only late, phi = 8 a 10^-8 chance. Intervals are
+ * kept in a fixed window with running sums, so each update and
+ * check takes constant time.
+ */
+public class PhiAccrualDetector {
+
+    // heartbeat intervals the distribution is estimated from
+    private static final int WINDOW = 100;
+
+    // floor on the standard deviation, so a node that beat very
+    // regularly is not suspected after a few milliseconds of jitter
+    private static final double MIN_STD_DEV = 150;
+
+    private final long[] intervals = new long[WINDOW];
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double sumSquares = 0;
+
+    private long lastHeartbeat;
+
+    /**
+     * @param expectedInterval interval heartbeats are sent at, in
+     *                         milliseconds; the estimate until real
+     *                         intervals were seen
+     */
+    public PhiAccrualDetector(long expectedInterval) {
+        lastHeartbeat = System.currentTimeMillis();
+        add(expectedInterval);
+    }
+
+    /**
+     * Records a heartbeat that arrived now.
+     */
+    public synchronized void heartbeat() {
+        long now = System.currentTimeMillis();
+        add(now - lastHeartbeat);
+        lastHeartbeat = now;
+    }
+
+    private void add(long interval) {
+        if (count == WINDOW) {
+            long dropped = intervals[next];
+            sum -= dropped;
+            sumSquares -= (double) dropped * dropped;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        sum += interval;
+        sumSquares += (double) interval * interval;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return suspicion that the node failed, from 0 up to infinity
+     */
+    public synchronized double phi(long now) {
+        double mean = sum / count;
+        double variance = Math.max(0, sumSquares / count - mean * mean);
+        double stdDev = Math.max(MIN_STD_DEV, Math.sqrt(variance));
+
+        // logistic approximation of the normal distribution's tail
+        double y = (now - lastHeartbeat - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
@@ -33,6 +33,19 @@ public class Hash {
     }
 
 
+    /**
+     * Servers can sit at several positions on the ring. The first
+     * token of a server is named ADDR:PORT, its other virtual tokens
+     * ADDR:PORT#i.
+     * 
+     * @param token name of a token on the ring
+     * @return "ADDR:PORT" of the server the token belongs to
+     */
+    public static String serverOf(String token) {
+        int i = token.indexOf('#');
+        return i < 0 ? token : token.substring(0, i);
+    }
+
     public static boolean inHashRange(String key, BigInteger low, BigInteger high) {
         BigInteger keyHash = Hash.hash(key);
 
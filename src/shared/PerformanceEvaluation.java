@@ -72,8 +72,6 @@ public class PerformanceEvaluation {
             servers.get(i).ecsAddress = "localhost";
             servers.get(i).ecsPort = 3000;
             servers.get(i).dataPath = "./serverdata/server" + i + "data/storage.json";
-            servers.get(i).replica1DataPath = "./serverdata/server" + i + "data/storage_replica_1.json";
-            servers.get(i).replica2DataPath = "./serverdata/server" + i + "data/storage_replica_2.json";
             servers.get(i).start();
         }
         ecs.awaitNodes(numServers, 50000);
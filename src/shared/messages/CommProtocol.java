@@ -53,13 +53,18 @@ public class CommProtocol {
 		byte[] bufferBytes = new byte[BUFFER_SIZE];
 		
 		/* read first char from stream */
-		byte read = (byte) input.read();	
+		int next = input.read();
+		byte read = (byte) next;
 		boolean reading = true;
 
 		long startTime = System.nanoTime();
 		long elapsed = 0;
 		
 		while(read != 13 && reading && elapsed < 2) {/* carriage return */
+			/* peer closed the stream */
+			if (next == -1) {
+				throw new IOException("Connection closed by peer.");
+			}
 			if (isClient) {
 				elapsed = TimeUnit.SECONDS.convert(
 					System.nanoTime() - startTime, 
@@ -94,7 +99,8 @@ public class CommProtocol {
 			}
 			
 			/* read next char from stream */
-			read = (byte) input.read();
+			next = input.read();
+			read = (byte) next;
 		}
 
 		if (elapsed >= 2) {
@@ -8,23 +8,60 @@ public interface IKVMessage {
 		GET, 			/* Get - request */
 		GET_ERROR, 		/* requested tuple (i.e. value) not found */
 		GET_SUCCESS, 	/* requested tuple (i.e. value) found */
+		GET_VERSIONED, /* Get - request value along with its version */
+		GET_VERSIONED_SUCCESS, /* Get - version and value found */
+		GET_VERSIONED_ERROR, /* Get - value not found, version of its deletion (0 if never written) */
+		REPAIR, /* Read repair - newer version of a key found by a quorum read */
+		REPAIR_SUCCESS, /* Read repair - applied, or local version already as new */
+		GET_IF_MODIFIED, /* Get - request value only if newer than the given version */
+		GET_NOT_MODIFIED, /* Get - client's version is current, value not sent */
+		GET_WITH_REPLICAS, /* Get - request value and the extra servers of a hot key */
+		GET_HOT_SUCCESS, /* Get - value found, key is hot, extra servers sent with it */
+		HOT_KEY_COPY, /* Hot key - keep a copy to serve reads from (coordinator to server) */
+		HOT_KEY_DROP, /* Hot key - key cooled down, drop the copy */
+		HOT_KEY_SUCCESS, /* Hot key - copy updated */
+		PUT_IF_VERSION, /* Put - request applied only if the key is at the given version */
+		PUT_IF_VERSION_SUCCESS, /* Put - versions matched, returns the new version */
+		PUT_IF_VERSION_CONFLICT, /* Put - versions differ, returns the current version */
 		PUT, 			/* Put - request */
-		PUT_FROM_COORDINATOR_1, /* Put - request from coordinator */
-		PUT_FROM_COORDINATOR_2, /* Put - request from coordinator */
+		PUT_TTL, /* Put - request with a TTL in milliseconds, answered like PUT */
+		PUT_BATCH_FROM_COORDINATOR, /* Put - batch of sequenced puts from coordinator */
+		PUT_BATCH_ACK, /* Put - batch applied, acknowledges highest sequence number */
+		REPLICATION_RESUME, /* Replication - coordinator reconnects with the epoch of its log */
+		REPLICATION_RESUME_SUCCESS, /* Replication - last sequence number applied from that log */
+		MERKLE_TREE, /* Anti-entropy - request hash tree of a coordinator's replica store */
+		MERKLE_TREE_SUCCESS, /* Anti-entropy - root and leaf digests of the replica store */
+		MERKLE_KEYS, /* Anti-entropy - request keys in the given leaves of the replica store */
+		MERKLE_KEYS_SUCCESS, /* Anti-entropy - keys and value hashes in the requested leaves */
+		MERKLE_ERROR, /* Anti-entropy - malformed request */
 		PUT_SUCCESS, 	/* Put - request successful, tuple inserted */
 		PUT_UPDATE, 	/* Put - request successful, i.e. value updated */
 		PUT_ERROR, 		/* Put - request not successful */
 		DELETE_SUCCESS, /* Delete - request successful */
 		DELETE_ERROR, 	/* Delete - request successful */
+		INCR, /* Increment - add a delta to a numeric value, missing keys count as 0 */
+		INCR_SUCCESS, /* Increment - returns the new value */
+		INCR_ERROR, /* Increment - value or delta is not a number */
+		APPEND, /* Append - add a suffix to a value, missing keys count as empty */
+		APPEND_SUCCESS, /* Append - returns the new length of the value */
+		APPEND_ERROR, /* Append - request not successful */
 
 		KEYRANGE, /* Keyrange - request (from client to server) */
 		KEYRANGE_READ,
 		KEYRANGE_UPDATE,
+		KEYRANGE_DELTA, /* Keyrange - changed entries since the given epoch (ECS to server) */
+		KEYRANGE_DELTA_ERROR, /* Keyrange - delta not based on the server's epoch, needs full update */
 		KEYRANGE_SUCCESS, /* Keyrange - request succesful, return keyrange */
 
 		REBALANCE, /* Rebalance - request (ECS to server) */
 		REBALANCE_SUCCESS, /* Rebalance - request successful, keys rebalanced */
 		REBALANCE_ERROR, /* Rebalance - request not successful */
+		REBALANCE_RANGE, /* Rebalance - send ranges to their new owners (ECS to server) */
+		REBALANCE_RANGE_SUCCESS, /* Rebalance - ranges sent, keys deleted */
+		REBALANCE_RANGE_ERROR, /* Rebalance - ranges could not be sent */
+		REBALANCE_BATCH, /* Rebalance - keys of moved ranges, from their old owner */
+		REBALANCE_BATCH_SUCCESS, /* Rebalance - batch stored by the new owner */
+		REBALANCE_BATCH_ERROR, /* Rebalance - batch could not be stored */
 
 		SERVER_STOPPED, /* Server is stopped, no requests are processed */
 		SERVER_WRITE_LOCK, /* Server locked for write, only get possible */
@@ -40,6 +77,14 @@ public interface IKVMessage {
 		SERVER_SHUTDOWN_SUCCESS, /* Server notify ECS of shutdown success */
 		SERVER_SHUTDOWN_ERROR, /* Server notify ECS of shutdown failure */
 		HEARTBEAT, /* Notify ECS of server heartbeat */
+		LOAD_REPORT, /* Notify ECS of request rate and keys per token */
+		CLUSTER_CONFIG, /* ECS pushes a cluster setting (e.g. replication_factor) */
+		CLUSTER_CONFIG_SUCCESS, /* Server applied cluster setting */
+		CLUSTER_CONFIG_ERROR, /* Server rejected cluster setting */
+
+		CONNECTION_OPTION, /* Set a per-connection option (e.g. write_concern) */
+		CONNECTION_OPTION_SUCCESS, /* Connection option applied */
+		CONNECTION_OPTION_ERROR, /* Connection option unknown or invalid */
 
 		SUBSCRIBE, /* Notify KVServer of a client subscribe to key */
 		SUBSCRIBE_SUCCESS, /* Notify client of successful subscription */
@@ -13,6 +13,11 @@ public class KVMessage implements IKVMessage {
 	private String key;
 	private String value;
 
+	// ring epoch of the sender's metadata, -1 if not stamped
+	private long epoch = -1;
+	// message without the epoch header
+	private String body;
+
 	// defines the delimiter
 	private static final char LINE_FEED = 0x0A;
 	private static final char RETURN = 0x0D;
@@ -67,6 +72,25 @@ public class KVMessage implements IKVMessage {
 	public StatusType getStatus() {
 		return this.status;
 	}
+
+	/**
+	 * @return ring epoch the message was stamped with, -1 if none
+	 */
+	public long getEpoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * Copies the message with a ring epoch header, so that the
+	 * receiver can tell whether its metadata is out of date:
+	 * "@EPOCH STATUS KEY VALUE".
+	 * 
+	 * @param epoch ring epoch of the sender's metadata
+	 * @return stamped copy of the message
+	 */
+	public KVMessage stamp(long epoch) {
+		return new KVMessage("@" + epoch + " " + this.body);
+	}
 	
 	/**
 	 * Implementation of addCtrChars from m0 code to add a delimiter
@@ -107,8 +131,19 @@ public class KVMessage implements IKVMessage {
 	 * @param msg input message to be split into status, key, and value
 	 */
 	private void splitMessage() {
-		// trim out excess whitespace, then split by first 2 spaces
-		String[] splitMsg = this.msg.trim().split("\\s+", 3);
+		// trim out excess whitespace, strip an epoch header, then
+		// split by first 2 spaces
+		this.body = this.msg.trim();
+		if (this.body.startsWith("@")) {
+			String[] header = this.body.split("\\s+", 2);
+			try {
+				this.epoch = Long.parseLong(header[0].substring(1));
+				this.body = header.length == 2 ? header[1] : "";
+			} catch (NumberFormatException e) {
+				logger.info("Not a valid epoch header: " + header[0]);
+			}
+		}
+		String[] splitMsg = this.body.split("\\s+", 3);
 
 		try {
 			this.status = StatusType.valueOf(splitMsg[0].toUpperCase());
@@ -117,7 +152,7 @@ public class KVMessage implements IKVMessage {
 			logger.info("Treating full msg as value");
 			this.status = null;
 			this.key = null;
-			this.value = this.msg.trim();
+			this.value = this.body;
 			return;
 		}
 
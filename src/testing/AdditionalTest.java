@@ -1,8 +1,12 @@
 package testing;
 
+import app_kvServer.KVReplica;
 import app_kvServer.KVServer;
 import app_kvServer.KVServerHeartbeat;
+import app_kvServer.ReplicationLog;
+import app_kvServer.ReplicationRecord;
 import client.KVStore;
+import client.ServerConnection;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -10,6 +14,10 @@ import org.json.simple.parser.ParseException;
 import org.junit.Test;
 
 import app_kvECS.ECSClient;
+import app_kvECS.RangeTransfer;
+import app_kvECS.RebalancePlanner;
+import ecs.ECSNode;
+import ecs.IECSNode;
 
 import org.junit.BeforeClass;
 import org.junit.AfterClass;
@@ -22,15 +30,19 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.math.BigInteger;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import logger.LogSetup;
 import shared.messages.CommProtocol;
@@ -70,6 +82,8 @@ public class AdditionalTest extends TestCase {
 			server.start();
 			kvStore = new KVStore("localhost", serverPort);
 			try {
+				// Wait for startup process
+				Thread.sleep(500);
 				kvStore.connect();
 			} catch (Exception e) {
 			}
@@ -423,7 +437,7 @@ public class AdditionalTest extends TestCase {
 
 		server.updateReplicas(nodePositions);
 
-		assertEquals("Replica 1 port should be 5566", 5566, server.replica1.port);
+		assertEquals("Replica 1 port should be 5566", 5566, server.getReplica(1).port);
 
 		server1.close();
 	}
@@ -541,8 +555,8 @@ public class AdditionalTest extends TestCase {
 		// Wait for startup process
 		Thread.sleep(1000);
 
-		assertTrue(server1.replica1.port == 6692);
-		assertTrue(server2.replica1.port == 6691);
+		assertTrue(server1.getReplica(1).port == 6692);
+		assertTrue(server2.getReplica(1).port == 6691);
 
 		server1.close();
 		// Wait for shutdown process
@@ -572,7 +586,7 @@ public class AdditionalTest extends TestCase {
 		// Wait for shutdown process
 		Thread.sleep(1000);
 
-		assertTrue(server1.replica1 == null);
+		assertTrue(server1.getReplica(1) == null);
 
 		server1.close();
 		// Wait for shutdown process
@@ -601,12 +615,12 @@ public class AdditionalTest extends TestCase {
 		// Wait for startup process
 		Thread.sleep(1000);
 
-		assertTrue(server1.replica1.port == 6752);
-		assertTrue(server1.replica2.port == 6751);
-		assertTrue(server2.replica1.port == 6750);
-		assertTrue(server2.replica2.port == 6752);
-		assertTrue(server3.replica1.port == 6751);
-		assertTrue(server3.replica2.port == 6750);
+		assertTrue(server1.getReplica(1).port == 6752);
+		assertTrue(server1.getReplica(2).port == 6751);
+		assertTrue(server2.getReplica(1).port == 6750);
+		assertTrue(server2.getReplica(2).port == 6752);
+		assertTrue(server3.getReplica(1).port == 6751);
+		assertTrue(server3.getReplica(2).port == 6750);
 
 		server3.close();
 		// Wait for shutdown process
@@ -648,17 +662,17 @@ public class AdditionalTest extends TestCase {
 		// Wait for shutdown process
 		Thread.sleep(1000);
 
-		assertTrue(server1.replica1.port == 4561);
-		assertTrue(server1.replica2 == null);
-		assertTrue(server2.replica1.port == 4560);
-		assertTrue(server2.replica2 == null);
+		assertTrue(server1.getReplica(1).port == 4561);
+		assertTrue(server1.getReplica(2) == null);
+		assertTrue(server2.getReplica(1).port == 4560);
+		assertTrue(server2.getReplica(2) == null);
 
 		server2.close();
 		// Wait for shutdown process
 		Thread.sleep(1000);
 
-		assertTrue(server1.replica1 == null);
-		assertTrue(server1.replica2 == null);
+		assertTrue(server1.getReplica(1) == null);
+		assertTrue(server1.getReplica(2) == null);
 
 		server1.close();
 		// Wait for shutdown process
@@ -668,30 +682,34 @@ public class AdditionalTest extends TestCase {
 
 	@Test 
 	public void testHeartbeat() throws Exception {
-
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					ServerSocket servSocket = new ServerSocket();
-					servSocket.bind(new InetSocketAddress(7777));
-                    Socket socket = servSocket.accept();
-					InputStream input = socket.getInputStream();
-					KVMessage res1 = CommProtocol.receiveMessage(input, true);
-					KVMessage res2 = CommProtocol.receiveMessage(input, true);
-					assertEquals(res2.getStatus(), StatusType.HEARTBEAT);
-
-				} catch (IOException ioe) {
-					System.out.println(ioe);
-				}
-			}
-		}).start();
+		ServerSocket servSocket = new ServerSocket();
+		servSocket.bind(new InetSocketAddress(7777));
+		DatagramSocket heartbeatSocket = new DatagramSocket(7777);
+		heartbeatSocket.setSoTimeout(5000);
 
 		KVServer server1 = new KVServer(3543, 0, "None");
 		server1.ecsAddress = "localhost";
 		server1.ecsPort = 7777;
 		server1.start();
 
+		Socket socket = servSocket.accept();
+		KVMessage res1 = CommProtocol.receiveMessage(socket.getInputStream(), true);
+		assertEquals(StatusType.NEW_SERVER, res1.getStatus());
+
+		// heartbeats come as datagrams, not on the ECS connection
+		byte[] buffer = new byte[512];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		heartbeatSocket.receive(packet);
+		KVMessage res2 = new KVMessage(
+				Arrays.copyOf(packet.getData(), packet.getLength()));
+		assertEquals(StatusType.HEARTBEAT, res2.getStatus());
+		assertEquals("localhost", res2.getKey());
+		assertEquals("3543", res2.getValue());
+
+		server1.kill();
+		heartbeatSocket.close();
+		socket.close();
+		servSocket.close();
 	}
 
 	// M4 TESTS
@@ -771,6 +789,8 @@ public class AdditionalTest extends TestCase {
 		// hash = 11320ed27d6dc10d9259774394faec62
 
 		server2.start(); 
+		// Wait for startup process
+		Thread.sleep(1000);
 
 		kvStore.subscribe("key1"); // c2add694bf942dc77b376592d9c862cd
 		kvStore.subscribe("key2"); // 78f825aaa0103319aaa1a30bf4fe3ada
@@ -825,6 +845,8 @@ public class AdditionalTest extends TestCase {
 
 		server1.start(); 
 		server2.start(); 
+		// Wait for startup process
+		Thread.sleep(1000);
 
 		String metadata =
 			"c07c82e5e57d5c5736a70f5e48891e61,11320ed27d6dc10d9259774394faec62,localhost:6771;" +
@@ -845,4 +867,1327 @@ public class AdditionalTest extends TestCase {
 
 	}
 
+	// REPLICATION TESTS
+
+	@Test
+	public void testReplicationBatchEncoding() {
+		List<ReplicationRecord> records = new ArrayList<ReplicationRecord>();
+		records.add(new ReplicationRecord(1, "key1", "a value with spaces", 7));
+		records.add(new ReplicationRecord(2, "key2", "null", 8));
+		records.add(new ReplicationRecord(3, "key3", "expiring value", 9, 1234567890123L));
+
+		List<ReplicationRecord> decoded = ReplicationRecord.decode(
+				new KVMessage("PUT_BATCH_FROM_COORDINATOR 1 "
+						+ ReplicationRecord.encode(records)).getValue());
+
+		assertEquals(3, decoded.size());
+		assertEquals("a value with spaces", decoded.get(0).value);
+		assertEquals(-1, decoded.get(0).deadline);
+		assertEquals("key2", decoded.get(1).key);
+		assertEquals(2, decoded.get(1).seq);
+		assertEquals(8, decoded.get(1).version);
+		assertEquals("expiring value", decoded.get(2).value);
+		assertEquals(1234567890123L, decoded.get(2).deadline);
+	}
+
+	/**
+	 * @param servers "ADDR:PORT" of every server, in ring order
+	 * @return ring positions as updateReplicas and
+	 *         updateCoordinators take them, without key ranges
+	 */
+	private static List<Map.Entry<String, BigInteger[]>> ringOf(String... servers) {
+		List<Map.Entry<String, BigInteger[]>> ring =
+				new ArrayList<Map.Entry<String, BigInteger[]>>();
+		for (String server : servers) {
+			ring.add(new AbstractMap.SimpleEntry<String, BigInteger[]>(server, null));
+		}
+		return ring;
+	}
+
+	@Test
+	public void testWriteConcernWaitsForReplica() throws Exception {
+		KVServer coordinator = new KVServer(6801, 0, "None");
+		KVServer replica = new KVServer(6802, 0, "None");
+		coordinator.start();
+		replica.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		List<Map.Entry<String, BigInteger[]>> nodePositions =
+				ringOf("localhost:6801", "localhost:6802");
+		coordinator.updateReplicas(nodePositions);
+
+		KVStore client = new KVStore("localhost", 6801);
+		client.connect();
+		client.setWriteConcern(3);
+		KVMessage res = client.put("writeConcernKey", "writeConcernValue");
+		client.disconnect();
+
+		assertTrue(res.getStatus() == StatusType.PUT_SUCCESS
+				|| res.getStatus() == StatusType.PUT_UPDATE);
+		assertTrue("Replica should have the key once the put is acknowledged",
+				replica.inStorage("writeConcernKey"));
+
+		coordinator.kill();
+		replica.kill();
+	}
+
+	@Test
+	public void testReplicationFactorLimitsReplicas() throws Exception {
+		KVServer coordinator = new KVServer(6803, 0, "None");
+		coordinator.replicationFactor = 2;
+
+		List<Map.Entry<String, BigInteger[]>> nodePositions =
+				ringOf("localhost:6803", "localhost:6804", "localhost:6805");
+		coordinator.updateReplicas(nodePositions);
+
+		assertNotNull(coordinator.getReplica(1));
+		assertEquals(6804, coordinator.getReplica(1).port);
+		assertNull(coordinator.getReplica(2));
+
+		// a factor of 1 keeps the only copy on the coordinator
+		coordinator.replicationFactor = 1;
+		coordinator.updateReplicas(nodePositions);
+		assertNull(coordinator.getReplica(1));
+	}
+
+	@Test
+	public void testMerkleSyncFindsOnlyDivergentKeys() throws Exception {
+		KVServer coordinator = new KVServer(6806, 0, "None");
+		coordinator.dataPath = "./storage_merkle.json";
+		KVServer replica = new KVServer(6807, 0, "None");
+		coordinator.start();
+		replica.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		List<Map.Entry<String, BigInteger[]>> nodePositions =
+				ringOf("localhost:6806", "localhost:6807");
+		coordinator.updateReplicas(nodePositions);
+
+		KVStore client = new KVStore("localhost", 6806);
+		client.connect();
+		client.setWriteConcern(2);
+		Map<String, String> snapshot = new HashMap<String, String>();
+		for (int i = 0; i < 20; i++) {
+			client.put("merkleKey" + i, "merkleValue" + i);
+			snapshot.put("merkleKey" + i, "merkleValue" + i);
+		}
+		client.disconnect();
+
+		snapshot.put("merkleKey3", "changedValue");
+		snapshot.put("merkleNewKey", "newValue");
+		snapshot.remove("merkleKey7");
+
+		Set<String> divergent = coordinator.getReplica(1).findDivergentKeys(snapshot);
+
+		assertEquals(3, divergent.size());
+		assertTrue(divergent.contains("merkleKey3"));
+		assertTrue(divergent.contains("merkleNewKey"));
+		assertTrue(divergent.contains("merkleKey7"));
+
+		coordinator.kill();
+		replica.kill();
+	}
+
+	@Test
+	public void testReplicationLogDiscardsOldestRecords() {
+		ReplicationLog log = new ReplicationLog(3);
+		for (int i = 1; i <= 5; i++) {
+			log.append("logKey" + i, "logValue" + i, i);
+		}
+
+		assertEquals(5, log.getLastSeq());
+		assertNull("Records 2 and 3 have been discarded", log.since(1));
+		assertEquals(3, log.since(2).size());
+		assertEquals(4, log.since(3).get(0).seq);
+		assertEquals(0, log.since(5).size());
+
+		// large values are bounded by size as well as count
+		char[] large = new char[400];
+		Arrays.fill(large, 'x');
+		ReplicationLog sized = new ReplicationLog(100, 1000);
+		for (int i = 1; i <= 5; i++) {
+			sized.append("sizedKey" + i, new String(large), i);
+		}
+		assertNull(sized.since(2));
+		assertEquals(2, sized.since(3).size());
+
+		// a mutation nobody was sent leaves a gap a replica cannot resume over
+		sized.skip();
+		assertEquals(6, sized.getLastSeq());
+		assertNull(sized.since(5));
+		assertEquals(0, sized.since(6).size());
+	}
+
+	@Test
+	public void testReplicaResumesFromLastAppliedSeq() throws Exception {
+		KVServer coordinator = new KVServer(6808, 0, "None");
+		KVServer replica = new KVServer(6809, 0, "None");
+		coordinator.start();
+		replica.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		List<Map.Entry<String, BigInteger[]>> nodePositions =
+				ringOf("localhost:6808", "localhost:6809");
+		coordinator.updateReplicas(nodePositions);
+
+		KVStore client = new KVStore("localhost", 6808);
+		client.connect();
+		client.put("resumeKey1", "resumeValue1");
+		coordinator.getReplica(1).flush(2000);
+
+		// writes made while the replica is away are kept in the log
+		coordinator.getReplica(1).disconnect();
+		client.put("resumeKey2", "resumeValue2");
+		client.disconnect();
+
+		assertTrue("Replica should resume from the log",
+				coordinator.getReplica(1).connect());
+		assertTrue(coordinator.getReplica(1).flush(2000));
+		assertTrue(replica.inStorage("resumeKey2"));
+
+		coordinator.kill();
+		replica.kill();
+	}
+
+	@Test
+	public void testHintsReplayedWhenReplicaReturns() throws Exception {
+		KVServer replica = new KVServer(6811, 0, "None");
+		replica.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		// log too small to cover the outage, so hints must be used
+		ReplicationLog log = new ReplicationLog(2);
+		KVReplica kvReplica = new KVReplica(
+				"localhost", 6811, 1, "localhost:6810", log, "./hints_test.hints");
+		kvReplica.connect();
+		synchronized (log) {
+			kvReplica.putToReplica(log.append("hintKey0", "hintValue0", 1));
+		}
+		assertTrue(kvReplica.flush(2000));
+
+		kvReplica.disconnect();
+		for (int i = 1; i <= 5; i++) {
+			synchronized (log) {
+				kvReplica.putToReplica(log.append("hintKey" + i, "hintValue" + i, i + 1));
+			}
+		}
+		assertEquals(5, kvReplica.getHintCount());
+
+		assertTrue("Replica should resume from hints", kvReplica.connect());
+		assertTrue(kvReplica.flush(2000));
+		assertEquals(0, kvReplica.getHintCount());
+		assertTrue(replica.inStorage("hintKey1"));
+		assertTrue(replica.inStorage("hintKey5"));
+
+		kvReplica.close();
+		replica.kill();
+	}
+
+	@Test
+	public void testRejectedBatchesBecomeHints() throws Exception {
+		// resumes replication, then refuses every batch
+		final ServerSocket stopped = new ServerSocket(6874);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = stopped.accept();
+					CommProtocol.receiveMessage(socket.getInputStream(), false);
+					CommProtocol.sendMessage(
+							new KVMessage("REPLICATION_RESUME_SUCCESS localhost:6875 0"), socket.getOutputStream());
+					while (true) {
+						CommProtocol.receiveMessage(socket.getInputStream(), false);
+						CommProtocol.sendMessage(
+								new KVMessage("SERVER_STOPPED"), socket.getOutputStream());
+					}
+				} catch (IOException ioe) {
+					// socket closed at end of test
+				}
+			}
+		}).start();
+
+		ReplicationLog log = new ReplicationLog(100);
+		KVReplica kvReplica = new KVReplica(
+				"localhost", 6874, 1, "localhost:6875", log, "./rejected_test.hints");
+		assertTrue(kvReplica.connect());
+		// more frames than the in-flight window
+		for (int i = 0; i < 20; i++) {
+			synchronized (log) {
+				kvReplica.putToReplica(log.append("rejectedKey" + i, "rejectedValue" + i, i + 1));
+			}
+			Thread.sleep(50);
+		}
+
+		assertFalse("Refused batches should drop the connection", kvReplica.isConnected());
+		assertTrue(kvReplica.getHintCount() > 0);
+		long start = System.currentTimeMillis();
+		assertFalse(kvReplica.flush(2000));
+		assertTrue("Flush should not wait on a dropped connection",
+				System.currentTimeMillis() - start < 1000);
+
+		kvReplica.close();
+		stopped.close();
+	}
+
+	@Test
+	public void testReadsPreferFasterReplica() {
+		ServerConnection slow = new ServerConnection("localhost", 6812);
+		ServerConnection fast = new ServerConnection("localhost", 6813);
+		List<ServerConnection> candidates = new ArrayList<ServerConnection>();
+		candidates.add(slow);
+		candidates.add(fast);
+
+		// unmeasured servers share reads
+		int slowPicks = 0;
+		for (int i = 0; i < 200; i++) {
+			if (ServerConnection.choose(candidates) == slow) {
+				slowPicks++;
+			}
+		}
+		assertTrue(slowPicks > 0 && slowPicks < 200);
+
+		slow.recordLatency(50);
+		fast.recordLatency(5);
+		slowPicks = 0;
+		for (int i = 0; i < 200; i++) {
+			if (ServerConnection.choose(candidates) == slow) {
+				slowPicks++;
+			}
+		}
+		assertTrue("Slow server should only get exploratory reads", slowPicks < 40);
+	}
+
+	@Test
+	public void testHedgedGetAvoidsStalledReplica() throws Exception {
+		KVServer healthy = new KVServer(6814, 0, "None");
+		healthy.dataPath = "./storage_hedge.json";
+		healthy.start();
+
+		// accepts connections but never answers
+		final ServerSocket stalled = new ServerSocket();
+		stalled.bind(new InetSocketAddress(6815));
+		final List<Socket> held = new ArrayList<Socket>();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						held.add(stalled.accept());
+					}
+				} catch (IOException ioe) {
+					// socket closed at end of test
+				}
+			}
+		}).start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6814);
+		client.connect();
+		client.put("hedgeKey", "hedgeValue");
+		client.setHedgedReads(true);
+		client.updateReadMetadata(
+				"0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6814;"
+				+ "0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6815;");
+
+		for (int i = 0; i < 20; i++) {
+			KVMessage res = client.get("hedgeKey");
+			assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+			assertEquals("hedgeValue", res.getValue());
+		}
+
+		client.disconnect();
+		stalled.close();
+		healthy.kill();
+	}
+
+	@Test
+	public void testQuorumReadReturnsNewestAndRepairs() throws Exception {
+		KVServer coordinator = new KVServer(6816, 0, "None");
+		coordinator.dataPath = "./storage_quorum1.json";
+		KVServer replica = new KVServer(6817, 0, "None");
+		replica.dataPath = "./storage_quorum2.json";
+		coordinator.start();
+		replica.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6816);
+		client.connect();
+		client.put("quorumKey", "freshValue");
+		// replica holds an older version of the key
+		replica.handleMessage(new KVMessage("REPAIR quorumKey 1 staleValue"));
+
+		client.setReadQuorum(2);
+		client.updateReadMetadata(
+				"0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6816;"
+				+ "0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6817;");
+		KVMessage res = client.get("quorumKey");
+		assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+		assertEquals("freshValue", res.getValue());
+
+		// repair is asynchronous
+		for (int i = 0; i < 20 && !"freshValue".equals(replica.getKV("quorumKey")); i++) {
+			Thread.sleep(100);
+		}
+		assertEquals("freshValue", replica.getKV("quorumKey"));
+
+		client.disconnect();
+		coordinator.kill();
+		replica.kill();
+	}
+
+	@Test
+	public void testChainReplicationReachesTail() throws Exception {
+		KVServer head = new KVServer(6818, 0, "None");
+		head.dataPath = "./storage_chain1.json";
+		KVServer middle = new KVServer(6819, 0, "None");
+		middle.dataPath = "./storage_chain2.json";
+		KVServer tail = new KVServer(6820, 0, "None");
+		tail.dataPath = "./storage_chain3.json";
+		head.start();
+		middle.start();
+		tail.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		List<Map.Entry<String, BigInteger[]>> nodePositions =
+				ringOf("localhost:6818", "localhost:6819", "localhost:6820");
+		for (KVServer server : new KVServer[] { head, middle, tail }) {
+			server.chainReplication = true;
+			server.updateReplicas(nodePositions);
+			server.updateCoordinators(nodePositions);
+		}
+
+		// the head only sends to its successor
+		assertEquals(6819, head.getReplica(1).port);
+		assertNull(head.getReplica(2));
+
+		// in chain mode the first replica acks once the tail has the write
+		KVStore client = new KVStore("localhost", 6818);
+		client.connect();
+		client.setWriteConcern(2);
+		KVMessage res = client.put("chainKey", "chainValue");
+		assertEquals(StatusType.PUT_SUCCESS, res.getStatus());
+		assertTrue(middle.inStorage("chainKey"));
+		assertTrue(tail.inStorage("chainKey"));
+
+		client.disconnect();
+		head.kill();
+		middle.kill();
+		tail.kill();
+	}
+
+	@Test
+	public void testPutIfVersionAndGetIfModified() throws Exception {
+		KVServer casServer = new KVServer(6821, 0, "None");
+		casServer.dataPath = "./storage_cas.json";
+		casServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6821);
+		client.connect();
+		KVMessage res = client.putIfVersion("casKey", "first", 0);
+		assertEquals(StatusType.PUT_IF_VERSION_SUCCESS, res.getStatus());
+		long version = Long.parseLong(res.getValue());
+
+		res = client.getIfModified("casKey", 0);
+		assertEquals(StatusType.GET_VERSIONED_SUCCESS, res.getStatus());
+		assertEquals(version + " first", res.getValue());
+		res = client.getIfModified("casKey", version);
+		assertEquals(StatusType.GET_NOT_MODIFIED, res.getStatus());
+
+		res = client.putIfVersion("casKey", "second", version);
+		assertEquals(StatusType.PUT_IF_VERSION_SUCCESS, res.getStatus());
+		long newVersion = Long.parseLong(res.getValue());
+		assertTrue(newVersion > version);
+
+		// a writer still holding the old version loses
+		res = client.putIfVersion("casKey", "lost", version);
+		assertEquals(StatusType.PUT_IF_VERSION_CONFLICT, res.getStatus());
+		assertEquals(String.valueOf(newVersion), res.getValue());
+		assertEquals("second", client.get("casKey").getValue());
+
+		client.disconnect();
+		casServer.kill();
+	}
+
+	@Test
+	public void testPutIfVersionZeroAfterRestart() throws Exception {
+		KVServer casServer = new KVServer(6863, 0, "None");
+		casServer.dataPath = "./storage_cas_restart.json";
+		casServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6863);
+		client.connect();
+		client.put("restartKey", "kept");
+		client.disconnect();
+		casServer.kill();
+
+		// versions are lost, the data on disk is not
+		KVServer restarted = new KVServer(6864, 0, "None");
+		restarted.dataPath = "./storage_cas_restart.json";
+		restarted.start();
+		Thread.sleep(1000);
+
+		client = new KVStore("localhost", 6864);
+		client.connect();
+		KVMessage res = client.putIfVersion("restartKey", "overwritten", 0);
+		assertEquals(StatusType.PUT_IF_VERSION_CONFLICT, res.getStatus());
+		long version = Long.parseLong(res.getValue());
+		assertTrue(version > 0);
+		assertEquals("kept", client.get("restartKey").getValue());
+
+		res = client.getIfModified("restartKey", 0);
+		assertEquals(version + " kept", res.getValue());
+		res = client.putIfVersion("restartKey", "updated", version);
+		assertEquals(StatusType.PUT_IF_VERSION_SUCCESS, res.getStatus());
+
+		client.disconnect();
+		restarted.kill();
+	}
+
+	@Test
+	public void testDeleteTombstonesAreSwept() throws Exception {
+		KVServer tombServer = new KVServer(6873, 0, "None");
+		tombServer.dataPath = "./storage_tombstones.json";
+		tombServer.tombstoneTtl = 200;
+		tombServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6873);
+		client.connect();
+		client.put("tombKey", "value");
+		client.put("tombKey", "null");
+		client.put("liveKey", "value");
+
+		// the delete is remembered until the tombstone is swept
+		assertEquals(StatusType.PUT_IF_VERSION_CONFLICT,
+				client.putIfVersion("tombKey", "again", 0).getStatus());
+		Thread.sleep(300);
+		tombServer.sweepTombstones();
+		assertEquals(StatusType.PUT_IF_VERSION_SUCCESS,
+				client.putIfVersion("tombKey", "again", 0).getStatus());
+
+		// keys still held keep their versions however old
+		KVMessage res = client.getIfModified("liveKey", 0);
+		assertTrue(Long.parseLong(res.getValue().split(" ")[0]) > 0);
+
+		client.disconnect();
+		tombServer.kill();
+	}
+
+	@Test
+	public void testIncrAndAppendAreAtomic() throws Exception {
+		KVServer counterServer = new KVServer(6822, 0, "None");
+		counterServer.dataPath = "./storage_counter.json";
+		counterServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		final int threads = 4;
+		final int increments = 25;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						KVStore client = new KVStore("localhost", 6822);
+						client.connect();
+						for (int j = 0; j < increments; j++) {
+							client.incr("counterKey", 1);
+						}
+						client.disconnect();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		KVStore client = new KVStore("localhost", 6822);
+		client.connect();
+		assertEquals(String.valueOf(threads * increments),
+				client.get("counterKey").getValue());
+
+		KVMessage res = client.append("appendKey", "ab");
+		assertEquals(StatusType.APPEND_SUCCESS, res.getStatus());
+		res = client.append("appendKey", "c d");
+		assertEquals("5", res.getValue());
+		assertEquals("abc d", client.get("appendKey").getValue());
+
+		// appended text is not a number
+		assertEquals(StatusType.INCR_ERROR, client.incr("appendKey", 1).getStatus());
+
+		// a counter that would overflow is left as it is
+		client.put("maxKey", String.valueOf(Long.MAX_VALUE - 1));
+		assertEquals(String.valueOf(Long.MAX_VALUE), client.incr("maxKey", 1).getValue());
+		assertEquals(StatusType.INCR_ERROR, client.incr("maxKey", 1).getStatus());
+		client.put("minKey", String.valueOf(Long.MIN_VALUE + 1));
+		assertEquals(StatusType.INCR_ERROR, client.incr("minKey", -2).getStatus());
+		assertEquals(String.valueOf(Long.MAX_VALUE), client.get("maxKey").getValue());
+
+		client.disconnect();
+		counterServer.kill();
+	}
+
+	@Test
+	public void testExpiredKeysAreReaped() throws Exception {
+		KVServer ttlServer = new KVServer(6823, 0, "None");
+		ttlServer.dataPath = "./storage_ttl_test.json";
+		ttlServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6823);
+		client.connect();
+		assertEquals(StatusType.PUT_SUCCESS,
+				client.put("sessionKey", "sessionValue", 300).getStatus());
+		client.put("ttlClearedKey", "value", 300);
+		client.put("ttlClearedKey", "permanent");
+		assertEquals("sessionValue", client.get("sessionKey").getValue());
+
+		// hidden once expired, removed from storage by the reaper
+		Thread.sleep(400);
+		assertEquals(StatusType.GET_ERROR, client.get("sessionKey").getStatus());
+		for (int i = 0; i < 30 && ttlServer.inStorage("sessionKey"); i++) {
+			Thread.sleep(100);
+		}
+		assertFalse(ttlServer.inStorage("sessionKey"));
+		assertEquals("permanent", client.get("ttlClearedKey").getValue());
+
+		client.disconnect();
+		ttlServer.kill();
+	}
+
+	@Test
+	public void testExpiredKeysReadAsMissingBeforeReaping() throws Exception {
+		KVServer ttlServer = new KVServer(6856, 0, "None");
+		ttlServer.dataPath = "./storage_ttl_missing.json";
+		ttlServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6856);
+		client.connect();
+		client.put("ttlCounter", "40", 100);
+		client.put("ttlText", "old", 100);
+		client.put("ttlVersioned", "value", 100);
+		KVMessage res = client.getIfModified("ttlVersioned", 0);
+		long version = Long.parseLong(res.getValue().split(" ")[0]);
+
+		// expired, but the reaper has not run yet
+		Thread.sleep(200);
+		assertEquals(StatusType.GET_VERSIONED_ERROR,
+				client.getIfModified("ttlVersioned", version).getStatus());
+		assertEquals("2", client.incr("ttlCounter", 2).getValue());
+		assertEquals("3", client.append("ttlText", "new").getValue());
+
+		// the new values do not inherit the old TTL
+		Thread.sleep(1500);
+		assertEquals("2", client.get("ttlCounter").getValue());
+		assertEquals("new", client.get("ttlText").getValue());
+
+		client.disconnect();
+		ttlServer.kill();
+	}
+
+	@Test
+	public void testPromotedReplicaKeepsExpiringKeys() throws Exception {
+		KVServer coordinator = new KVServer(6857, 0, "None");
+		coordinator.dataPath = "./storage_ttl_coordinator.json";
+		KVServer replica = new KVServer(6858, 0, "None");
+		replica.dataPath = "./storage_ttl_replica.json";
+		coordinator.start();
+		replica.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		String metadata = "0,7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6857;"
+				+ "80000000000000000000000000000000,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6858;";
+		coordinator.handleMessage(new KVMessage("@1 KEYRANGE_UPDATE " + metadata));
+		replica.handleMessage(new KVMessage("@1 KEYRANGE_UPDATE " + metadata));
+
+		String key = null;
+		for (int i = 0; key == null; i++) {
+			if (Hash.inHashRange("promotedKey" + i, BigInteger.ZERO,
+					new BigInteger("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16))) {
+				key = "promotedKey" + i;
+			}
+		}
+
+		KVStore client = new KVStore("localhost", 6857);
+		client.connect();
+		assertEquals(StatusType.PUT_SUCCESS, client.put(key, "promotedValue", 1500).getStatus());
+		client.disconnect();
+		assertTrue(coordinator.getReplica(1).flush(2000));
+		assertTrue(replica.inStorage(key));
+
+		// the coordinator fails and the replica takes over its range
+		coordinator.kill();
+		replica.handleMessage(new KVMessage("@2 KEYRANGE_UPDATE "
+				+ "0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6858;"));
+		replica.reapExpired();
+		assertTrue("Key should live out its TTL", replica.inStorage(key));
+
+		Thread.sleep(1600);
+		replica.reapExpired();
+		assertFalse("Promoted key should expire", replica.inStorage(key));
+
+		replica.kill();
+	}
+
+	@Test
+	public void testForwardedRequestsCarryRingEpoch() throws Exception {
+		KVServer first = new KVServer(6824, 0, "None");
+		first.dataPath = "./storage_forward1.json";
+		KVServer second = new KVServer(6825, 0, "None");
+		second.dataPath = "./storage_forward2.json";
+		first.start();
+		second.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		String metadata = "0,7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6824;"
+				+ "80000000000000000000000000000000,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6825;";
+		first.handleMessage(new KVMessage("@3 KEYRANGE_UPDATE " + metadata));
+		second.handleMessage(new KVMessage("@3 KEYRANGE_UPDATE " + metadata));
+
+		String key = null;
+		for (int i = 0; key == null; i++) {
+			if (Hash.inHashRange("forwardKey" + i,
+					new BigInteger("80000000000000000000000000000000", 16),
+					new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16))) {
+				key = "forwardKey" + i;
+			}
+		}
+
+		// the client still believes the first server holds every key
+		KVStore client = new KVStore("localhost", 6824);
+		client.connect();
+		client.setForwarding(true);
+		KVMessage res = client.put(key, "forwardValue");
+		assertEquals(StatusType.PUT_SUCCESS, res.getStatus());
+		assertEquals(3, res.getEpoch());
+		assertEquals(6824, client.port);
+		assertTrue(second.inStorage(key));
+
+		// the newer epoch triggers a metadata refresh in the background
+		for (int i = 0; i < 20 && client.getRingEpoch() < 3; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(3, client.getRingEpoch());
+
+		client.disconnect();
+		first.kill();
+		second.kill();
+	}
+
+	@Test
+	public void testClientRefreshesWhenEpochLags() throws Exception {
+		KVServer epochServer = new KVServer(6826, 0, "None");
+		epochServer.dataPath = "./storage_epoch.json";
+		epochServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		String metadata = "0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6826;";
+		epochServer.handleMessage(new KVMessage("@5 KEYRANGE_UPDATE " + metadata));
+
+		KVStore client = new KVStore("localhost", 6826);
+		client.connect();
+		KVMessage res = client.put("epochKey", "epochValue");
+		assertEquals(5, res.getEpoch());
+		for (int i = 0; i < 20 && client.getRingEpoch() < 5; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(5, client.getRingEpoch());
+
+		// a successful read is enough to notice the ring changed
+		epochServer.handleMessage(new KVMessage("@6 KEYRANGE_UPDATE " + metadata));
+		assertEquals("epochValue", client.get("epochKey").getValue());
+		for (int i = 0; i < 20 && client.getRingEpoch() < 6; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(6, client.getRingEpoch());
+
+		client.disconnect();
+		epochServer.kill();
+	}
+
+	@Test
+	public void testMetadataDeltaAppliesOnlyToPreviousEpoch() throws Exception {
+		KVServer deltaServer = new KVServer(6827, 0, "None");
+		deltaServer.dataPath = "./storage_delta.json";
+		deltaServer.replicationFactor = 1;
+		deltaServer.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		deltaServer.handleMessage(new KVMessage(
+				"@7 KEYRANGE_UPDATE 0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6827;"));
+
+		// a node joins and takes half of the ring
+		KVMessage res = deltaServer.handleMessage(new KVMessage(
+				"@8 KEYRANGE_DELTA 7 "
+				+ "0,7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6827;"
+				+ "80000000000000000000000000000000,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6828;"));
+		assertEquals(StatusType.KEYRANGE_SUCCESS, res.getStatus());
+		assertEquals(8, res.getEpoch());
+		String metadata = deltaServer.serializeMetadata();
+		assertTrue(metadata.contains("0,7fffffffffffffffffffffffffffffff,localhost:6827;"));
+		assertTrue(metadata.contains("localhost:6828;"));
+
+		// a delta based on an epoch the server missed is refused
+		res = deltaServer.handleMessage(new KVMessage(
+				"@10 KEYRANGE_DELTA 9 -localhost:6828;"));
+		assertEquals(StatusType.KEYRANGE_DELTA_ERROR, res.getStatus());
+		assertTrue(deltaServer.serializeMetadata().contains("localhost:6828;"));
+
+		res = deltaServer.handleMessage(new KVMessage(
+				"@9 KEYRANGE_DELTA 8 -localhost:6828;"
+				+ "0,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,localhost:6827;"));
+		assertEquals(StatusType.KEYRANGE_SUCCESS, res.getStatus());
+		assertEquals("0,ffffffffffffffffffffffffffffffff,localhost:6827;",
+				deltaServer.serializeMetadata());
+
+		deltaServer.kill();
+	}
+
+	@Test
+	public void testMetadataBroadcastWaitsForAcks() throws Exception {
+		ECSClient ackEcs = new ECSClient("localhost", 6829);
+		KVServer[] ackServers = new KVServer[2];
+		for (int i = 0; i < ackServers.length; i++) {
+			ackServers[i] = new KVServer(6830 + i, 0, "None");
+			ackServers[i].dataPath = "./storage_ack" + i + ".json";
+			ackServers[i].ecsAddress = "localhost";
+			ackServers[i].ecsPort = 6829;
+			ackServers[i].start();
+		}
+		// Wait for both servers to join
+		Thread.sleep(2000);
+		assertEquals(2, ackEcs.getNodes().size());
+
+		// the broadcast returns once both nodes acknowledged it
+		long start = System.currentTimeMillis();
+		ackEcs.setReplicationFactor(2);
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		for (String nodeName : ackEcs.getNodes().keySet()) {
+			assertEquals(ackEcs.getRingEpoch(), ackEcs.getAckedEpoch(nodeName));
+		}
+
+		for (KVServer ackServer : ackServers) {
+			ackServer.kill();
+		}
+		ackEcs.close();
+	}
+
+	@Test
+	public void testVirtualNodesSplitTheRing() throws Exception {
+		ECSClient vnodeEcs = new ECSClient("localhost", 6832);
+		vnodeEcs.setReplicationFactor(1);
+		vnodeEcs.setVirtualNodes(4);
+		KVServer[] vnodeServers = new KVServer[2];
+		for (int i = 0; i < vnodeServers.length; i++) {
+			vnodeServers[i] = new KVServer(6833 + i, 0, "None");
+			vnodeServers[i].dataPath = "./storage_vnode" + i + ".json";
+			vnodeServers[i].ecsAddress = "localhost";
+			vnodeServers[i].ecsPort = 6832;
+			vnodeServers[i].start();
+		}
+		// Wait for both servers to join
+		Thread.sleep(2000);
+
+		String metadata = vnodeServers[0].serializeMetadata();
+		assertEquals(8, metadata.split(";").length);
+		assertTrue(metadata.contains(",localhost:6834#3;"));
+
+		KVStore vnodeStore = new KVStore("localhost", 6833);
+		vnodeStore.connect();
+		for (int i = 0; i < 20; i++) {
+			KVMessage res = vnodeStore.put("vnode" + i, "v");
+			assertEquals(StatusType.PUT_SUCCESS, res.getStatus());
+		}
+		vnodeStore.disconnect();
+
+		// every key is stored by the server owning the token its hash falls in
+		for (int i = 0; i < 20; i++) {
+			String owner = null;
+			for (String token : metadata.split(";")) {
+				String[] info = token.split(",");
+				if (Hash.inHashRange("vnode" + i,
+						new BigInteger(info[0], 16), new BigInteger(info[1], 16))) {
+					owner = Hash.serverOf(info[2]);
+				}
+			}
+			assertEquals(owner.equals("localhost:6833"), vnodeServers[0].inStorage("vnode" + i));
+			assertEquals(owner.equals("localhost:6834"), vnodeServers[1].inStorage("vnode" + i));
+		}
+
+		for (KVServer vnodeServer : vnodeServers) {
+			vnodeServer.kill();
+		}
+		vnodeEcs.close();
+	}
+
+	@Test
+	public void testServerWeightScalesTokens() throws Exception {
+		ECSClient weightEcs = new ECSClient("localhost", 6835);
+		KVServer[] weightServers = new KVServer[2];
+		for (int i = 0; i < weightServers.length; i++) {
+			weightServers[i] = new KVServer(6836 + i, 0, "None");
+			weightServers[i].dataPath = "./storage_weight" + i + ".json";
+			weightServers[i].ecsAddress = "localhost";
+			weightServers[i].ecsPort = 6835;
+		}
+		weightServers[0].weight = 3;
+		for (KVServer weightServer : weightServers) {
+			weightServer.start();
+		}
+		// Wait for both servers to join
+		Thread.sleep(2000);
+
+		assertEquals(3, weightEcs.getNodes().get("localhost:6836").getTokens().size());
+		assertEquals(1, weightEcs.getNodes().get("localhost:6837").getTokens().size());
+		String metadata = weightServers[1].serializeMetadata();
+		assertEquals(4, metadata.split(";").length);
+		assertTrue(metadata.contains(",localhost:6836#2;"));
+
+		for (KVServer weightServer : weightServers) {
+			weightServer.kill();
+		}
+		weightEcs.close();
+	}
+
+	@Test
+	public void testHotRangeIsSplit() throws Exception {
+		ECSClient loadEcs = new ECSClient("localhost", 6838);
+		loadEcs.setReplicationFactor(1);
+		KVServer[] loadServers = new KVServer[2];
+		for (int i = 0; i < loadServers.length; i++) {
+			loadServers[i] = new KVServer(6839 + i, 0, "None");
+			loadServers[i].dataPath = "./storage_load" + i + ".json";
+			loadServers[i].ecsAddress = "localhost";
+			loadServers[i].ecsPort = 6838;
+			loadServers[i].start();
+		}
+		// Wait for both servers to join
+		Thread.sleep(2000);
+
+		KVStore loadStore = new KVStore("localhost", 6839);
+		loadStore.connect();
+		for (int i = 0; i < 20; i++) {
+			loadStore.put("load" + i, "v");
+		}
+		loadStore.disconnect();
+
+		// nothing is hot yet
+		assertFalse(loadEcs.balanceLoad());
+
+		loadEcs.loadReported("localhost:6839", "localhost:6839,500,20;");
+		assertTrue(loadEcs.balanceLoad());
+		// Wait for the rebalance
+		Thread.sleep(1000);
+
+		String metadata = loadServers[0].serializeMetadata();
+		assertEquals(3, metadata.split(";").length);
+		assertTrue(metadata.contains(",localhost:6840#1;"));
+		for (int i = 0; i < 20; i++) {
+			String owner = null;
+			for (String token : metadata.split(";")) {
+				String[] info = token.split(",");
+				if (Hash.inHashRange("load" + i,
+						new BigInteger(info[0], 16), new BigInteger(info[1], 16))) {
+					owner = Hash.serverOf(info[2]);
+				}
+			}
+			assertEquals(owner.equals("localhost:6839"), loadServers[0].inStorage("load" + i));
+			assertEquals(owner.equals("localhost:6840"), loadServers[1].inStorage("load" + i));
+		}
+
+		for (KVServer loadServer : loadServers) {
+			loadServer.kill();
+		}
+		loadEcs.close();
+	}
+
+	@Test
+	public void testHotKeyIsCopiedUntilItCools() throws Exception {
+		ECSClient hotEcs = new ECSClient("localhost", 6841);
+		hotEcs.setReplicationFactor(1);
+		KVServer[] hotServers = new KVServer[3];
+		for (int i = 0; i < hotServers.length; i++) {
+			hotServers[i] = new KVServer(6842 + i, 0, "None");
+			hotServers[i].dataPath = "./storage_hot" + i + ".json";
+			hotServers[i].ecsAddress = "localhost";
+			hotServers[i].ecsPort = 6841;
+			hotServers[i].hotKeyThreshold = 5;
+			hotServers[i].start();
+		}
+		// Wait for the servers to join
+		Thread.sleep(2000);
+
+		KVStore hotStore = new KVStore("localhost", 6842);
+		hotStore.connect();
+		hotStore.setHotKeyReads(true);
+		hotStore.put("viral", "cat");
+		for (int i = 0; i < 10; i++) {
+			KVMessage res = hotStore.get("viral");
+			assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+			assertEquals("cat", res.getValue());
+		}
+		// Wait for the copies to arrive
+		Thread.sleep(500);
+
+		// every server can now serve the key, and writes reach the copies
+		hotStore.put("viral", "dog");
+		Thread.sleep(500);
+		for (KVServer hotServer : hotServers) {
+			KVMessage res = hotServer.handleMessage(new KVMessage("GET viral"));
+			assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+			assertEquals("dog", res.getValue());
+		}
+
+		// only the coordinator names the servers keeping copies
+		KVServer coordinator = null;
+		for (KVServer hotServer : hotServers) {
+			KVMessage res = hotServer.handleMessage(new KVMessage("GET_WITH_REPLICAS viral"));
+			if (res.getStatus() == StatusType.GET_HOT_SUCCESS) {
+				assertNull(coordinator);
+				coordinator = hotServer;
+			} else {
+				assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+			}
+		}
+		assertNotNull(coordinator);
+
+		// the client spreads its reads over the servers keeping copies
+		for (KVServer hotServer : hotServers) {
+			if (hotServer != coordinator) {
+				hotServer.handleMessage(new KVMessage(
+						"HOT_KEY_COPY viral localhost:6842 fromCopy"));
+			}
+		}
+		boolean servedByCopy = false;
+		for (int i = 0; i < 20; i++) {
+			servedByCopy |= "fromCopy".equals(hotStore.get("viral").getValue());
+		}
+		assertTrue("Reads of a hot key should reach its copies", servedByCopy);
+
+		// the coordinator renews the copies while the key stays hot
+		coordinator.coolHotKeys();
+		Thread.sleep(500);
+		for (KVServer hotServer : hotServers) {
+			assertEquals("dog",
+					hotServer.handleMessage(new KVMessage("GET viral")).getValue());
+		}
+
+		// once reads stop the copies are dropped
+		for (int i = 0; i < 3; i++) {
+			for (KVServer hotServer : hotServers) {
+				hotServer.coolHotKeys();
+			}
+		}
+		Thread.sleep(500);
+		int holders = 0;
+		for (KVServer hotServer : hotServers) {
+			KVMessage res = hotServer.handleMessage(new KVMessage("GET viral"));
+			if (res.getStatus() == StatusType.GET_SUCCESS) {
+				holders++;
+			}
+		}
+		assertEquals(1, holders);
+		hotStore.disconnect();
+
+		for (KVServer hotServer : hotServers) {
+			hotServer.kill();
+		}
+		hotEcs.close();
+	}
+
+	@Test
+	public void testHotKeyCopyLapsesWithoutRenewal() throws Exception {
+		KVServer copyHolder = new KVServer(6868, 0, "None");
+		copyHolder.dataPath = "./storage_hot_lease.json";
+		copyHolder.hotCopyLease = 500;
+		copyHolder.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		copyHolder.handleMessage(new KVMessage("HOT_KEY_COPY leased localhost:6869 copied"));
+		KVMessage res = copyHolder.handleMessage(new KVMessage("GET_WITH_REPLICAS leased"));
+		assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+		assertEquals("copied", res.getValue());
+
+		// the coordinator never renews it
+		Thread.sleep(600);
+		res = copyHolder.handleMessage(new KVMessage("GET leased"));
+		assertEquals(StatusType.GET_ERROR, res.getStatus());
+
+		copyHolder.kill();
+	}
+
+	@Test
+	public void testSimultaneousJoinsShareOneBroadcast() throws Exception {
+		ECSClient joinEcs = new ECSClient("localhost", 6845);
+		long epoch = joinEcs.getRingEpoch();
+		KVServer[] joinServers = new KVServer[3];
+		for (int i = 0; i < joinServers.length; i++) {
+			joinServers[i] = new KVServer(6846 + i, 0, "None");
+			joinServers[i].dataPath = "./storage_join" + i + ".json";
+			joinServers[i].ecsAddress = "localhost";
+			joinServers[i].ecsPort = 6845;
+			joinServers[i].start();
+		}
+		// Wait for the servers to join
+		Thread.sleep(2000);
+
+		assertEquals(3, joinEcs.getNodes().size());
+		assertEquals(epoch + 1, joinEcs.getRingEpoch());
+		for (KVServer joinServer : joinServers) {
+			assertEquals(3, joinServer.serializeMetadata().split(";").length);
+		}
+
+		for (KVServer joinServer : joinServers) {
+			joinServer.kill();
+		}
+		joinEcs.close();
+	}
+
+	@Test
+	public void testRebalanceMovesRangesToTheirNewOwners() throws Exception {
+		ECSClient planEcs = new ECSClient("localhost", 6849);
+		planEcs.setReplicationFactor(1);
+		planEcs.setVirtualNodes(4);
+		KVServer[] planServers = new KVServer[3];
+		for (int i = 0; i < planServers.length; i++) {
+			planServers[i] = new KVServer(6850 + i, 0, "None");
+			planServers[i].dataPath = "./storage_plan" + i + ".json";
+			planServers[i].ecsAddress = "localhost";
+			planServers[i].ecsPort = 6849;
+		}
+		planServers[0].start();
+		// Wait for the first server to join
+		Thread.sleep(2000);
+
+		KVStore planStore = new KVStore("localhost", 6850);
+		planStore.connect();
+		for (int i = 0; i < 40; i++) {
+			KVMessage res = planStore.put("plan" + i, "v" + i);
+			assertEquals(StatusType.PUT_SUCCESS, res.getStatus());
+		}
+		planStore.disconnect();
+
+		// both join in one step, their ranges come from the first server
+		planServers[1].start();
+		planServers[2].start();
+		Thread.sleep(3000);
+
+		String metadata = planServers[0].serializeMetadata();
+		assertEquals(12, metadata.split(";").length);
+		for (int i = 0; i < 40; i++) {
+			String owner = null;
+			for (String token : metadata.split(";")) {
+				String[] info = token.split(",");
+				if (Hash.inHashRange("plan" + i,
+						new BigInteger(info[0], 16), new BigInteger(info[1], 16))) {
+					owner = Hash.serverOf(info[2]);
+				}
+			}
+			for (int j = 0; j < planServers.length; j++) {
+				assertEquals(owner.equals("localhost:" + (6850 + j)),
+						planServers[j].inStorage("plan" + i));
+			}
+		}
+
+		for (KVServer planServer : planServers) {
+			planServer.kill();
+		}
+		planEcs.close();
+	}
+
+	@Test
+	public void testRangeTransferStreamsEveryRangeAtOnce() throws Exception {
+		KVServer source = new KVServer(6859, 0, "None");
+		source.dataPath = "./storage_stream_source.json";
+		KVServer dest = new KVServer(6860, 0, "None");
+		dest.dataPath = "./storage_stream_dest.json";
+		source.start();
+		dest.start();
+		// Wait for startup process
+		Thread.sleep(1000);
+
+		KVStore client = new KVStore("localhost", 6859);
+		client.connect();
+		for (int i = 0; i < 30; i++) {
+			client.put("stream" + i, "value " + i);
+		}
+		client.put("streamTtl", "expiring", 1000);
+		client.disconnect();
+
+		// both halves of the ring go in one request
+		KVMessage res = source.handleMessage(new KVMessage("REBALANCE_RANGE "
+				+ "0 7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF localhost:6860 "
+				+ "80000000000000000000000000000000 FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF localhost:6860"));
+		assertEquals(StatusType.REBALANCE_RANGE_SUCCESS, res.getStatus());
+		for (int i = 0; i < 30; i++) {
+			assertFalse(source.inStorage("stream" + i));
+			assertEquals("value " + i, dest.getKV("stream" + i));
+		}
+
+		// the moved key keeps its TTL
+		assertTrue(dest.inStorage("streamTtl"));
+		Thread.sleep(1100);
+		dest.reapExpired();
+		assertFalse(dest.inStorage("streamTtl"));
+
+		// the source forgot the versions of the keys it sent
+		assertEquals(StatusType.PUT_IF_VERSION_SUCCESS, source.handleMessage(
+				new KVMessage("PUT_IF_VERSION stream0 0 back")).getStatus());
+
+		source.kill();
+		dest.kill();
+	}
+
+	@Test
+	public void testRebalanceGivesUpOnFailedSource() throws Exception {
+		// a source that takes the request but never answers
+		ServerSocket silent = new ServerSocket(6865);
+		Socket toSource = new Socket("localhost", 6865);
+		Socket atSource = silent.accept();
+		Map<String, IECSNode> planNodes = new HashMap<String, IECSNode>();
+		planNodes.put("localhost:6866", new ECSNode("localhost", 6866, toSource));
+
+		final RebalancePlanner planner = new RebalancePlanner();
+		List<RangeTransfer> plan = new ArrayList<RangeTransfer>();
+		plan.add(new RangeTransfer("localhost:6866", "localhost:6867", "0", "ff"));
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					return;
+				}
+				planner.nodesFailed(Arrays.asList(new String[] { "localhost:6866" }));
+			}
+		}).start();
+
+		long start = System.currentTimeMillis();
+		assertFalse(planner.execute(plan, planNodes));
+		assertTrue("Plan should stop waiting once the source fails",
+				System.currentTimeMillis() - start < 5000);
+
+		atSource.close();
+		toSource.close();
+		silent.close();
+	}
+
+	@Test
+	public void testLoadBalancerStopsWithTheECS() throws Exception {
+		ECSClient closingEcs = new ECSClient("localhost", 6869);
+		Thread.sleep(200);
+		closingEcs.close();
+		Thread.sleep(200);
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertFalse("Load balancer should stop when the ECS closes",
+					thread.getName().equals("ecs-load-balancer-6869"));
+		}
+	}
+
+	@Test
+	public void testClosedECSIgnoresLateRemovals() throws Exception {
+		ECSClient closedEcs = new ECSClient("localhost", 6871);
+		KVServer lateServer = new KVServer(6872, 0, "None");
+		lateServer.dataPath = "./storage_late.json";
+		lateServer.ecsAddress = "localhost";
+		lateServer.ecsPort = 6871;
+		lateServer.start();
+		// Wait for the server to join
+		Thread.sleep(2000);
+		assertEquals(1, closedEcs.getNodes().size());
+
+		// a server reporting its shutdown after the ECS closed
+		closedEcs.close();
+		assertFalse(closedEcs.updateHashranges());
+		assertFalse(closedEcs.removeNodes(Arrays.asList(new String[] { "localhost:6872" })));
+
+		lateServer.kill();
+	}
+
+	@Test
+	public void testFailedServerIsDetectedWithinASecond() throws Exception {
+		ECSClient phiEcs = new ECSClient("localhost", 6853);
+		phiEcs.setReplicationFactor(1);
+		KVServer[] phiServers = new KVServer[2];
+		for (int i = 0; i < phiServers.length; i++) {
+			phiServers[i] = new KVServer(6854 + i, 0, "None");
+			phiServers[i].dataPath = "./storage_phi" + i + ".json";
+			phiServers[i].ecsAddress = "localhost";
+			phiServers[i].ecsPort = 6853;
+			phiServers[i].start();
+		}
+		// Wait for both servers to join and beat for a while
+		Thread.sleep(3000);
+		assertEquals(2, phiEcs.getNodes().size());
+
+		// a killed server stops beating
+		phiServers[1].kill();
+		Thread.sleep(1500);
+
+		assertEquals(1, phiEcs.getNodes().size());
+		assertTrue(phiEcs.getNodes().containsKey("localhost:6854"));
+		assertEquals(1, phiServers[0].serializeMetadata().split(";").length);
+
+		phiServers[0].kill();
+		phiEcs.close();
+	}
+
+	@Test
+	public void testHeartbeatDatagramsKeepPhiLow() throws Exception {
+		ECSClient udpEcs = new ECSClient("localhost", 6861);
+		udpEcs.setReplicationFactor(1);
+		// the node must stay on the ring to watch its phi rise
+		udpEcs.setPhiThreshold(1000);
+		KVServer udpServer = new KVServer(6862, 0, "None");
+		udpServer.dataPath = "./storage_udp.json";
+		udpServer.ecsAddress = "localhost";
+		udpServer.ecsPort = 6861;
+		udpServer.start();
+		// Wait for the server to join and beat for a while
+		Thread.sleep(2000);
+		assertTrue(udpEcs.getNodes().containsKey("localhost:6862"));
+
+		// the server stops beating and the test beats for it
+		udpServer.kill();
+		byte[] heartbeat = "HEARTBEAT localhost 6862".getBytes();
+		DatagramSocket socket = new DatagramSocket();
+		for (int i = 0; i < 8; i++) {
+			socket.send(new DatagramPacket(heartbeat, heartbeat.length,
+					new InetSocketAddress("localhost", 6861)));
+			Thread.sleep(250);
+			assertTrue(udpEcs.getNodes().get("localhost:6862").getPhi() < 8);
+		}
+		socket.close();
+
+		// once the datagrams stop the node looks failed
+		Thread.sleep(2000);
+		assertTrue(udpEcs.getNodes().get("localhost:6862").getPhi() > 8);
+
+		udpEcs.close();
+	}
+
 }